@@ -0,0 +1,116 @@
+package eu.europeana.sitemap.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Simulated crawler that requests sitemap files from the application and records the results. Connections are kept
+ * alive between requests (by HttpURLConnection), like real crawlers do.
+ */
+public class Crawler {
+
+    /** Request types used in the statistics **/
+    public static final String INDEX = "index";
+    public static final String FILE = "file";
+    public static final String HEAD = "head";
+    public static final String RANGE = "range";
+
+    private static final int TIMEOUT_MS = 60_000;
+    private static final int RANGE_BYTES = 1024;
+
+    private final String baseUrl;
+    private final List<String> files;
+    private final int walkLength;
+    private final LoadTestStats stats;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    /**
+     * Create a new crawler
+     * @param baseUrl url of the application, ending with a slash
+     * @param files paths (relative to the base url) of all sitemap files listed in the index
+     * @param walkLength number of consecutive files read in a walk
+     * @param stats where results are recorded
+     */
+    public Crawler(String baseUrl, List<String> files, int walkLength, LoadTestStats stats) {
+        this.baseUrl = baseUrl;
+        this.files = files;
+        this.walkLength = walkLength;
+        this.stats = stats;
+    }
+
+    /**
+     * Read the index and then a number of consecutive files, like a crawler that processes the whole sitemap
+     */
+    public void walk() {
+        request(INDEX, "GET", "index", null, null);
+        int start = ThreadLocalRandom.current().nextInt(files.size());
+        for (int i = 0; i < walkLength; i++) {
+            request(FILE, "GET", files.get((start + i) % files.size()), null, null);
+        }
+    }
+
+    /**
+     * Read a random file
+     */
+    public void fetchRandom() {
+        request(FILE, "GET", randomFile(), null, null);
+    }
+
+    /**
+     * Check if a random file changed with a HEAD request and then read its first bytes if the ETag still matches
+     */
+    public void checkRandom() {
+        String file = randomFile();
+        String eTag = request(HEAD, "HEAD", file, null, null);
+        if (eTag != null) {
+            request(RANGE, "GET", file, "bytes=0-" + (RANGE_BYTES - 1), eTag);
+        }
+    }
+
+    private String randomFile() {
+        return files.get(ThreadLocalRandom.current().nextInt(files.size()));
+    }
+
+    /**
+     * Do a request, read the complete response and record the result
+     * @return the ETag of the response (if any)
+     */
+    private String request(String type, String method, String path, String range, String ifRange) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        int status = 0;
+        String eTag = null;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (range != null) {
+                connection.setRequestProperty("Range", range);
+            }
+            if (ifRange != null) {
+                connection.setRequestProperty("If-Range", ifRange);
+            }
+            status = connection.getResponseCode();
+            eTag = connection.getHeaderField("ETag");
+            try (InputStream in = (status < 400 ? connection.getInputStream() : connection.getErrorStream())) {
+                int read;
+                while (in != null && (read = in.read(buffer)) != -1) {
+                    bytes += read;
+                }
+            }
+        } catch (IOException e) {
+            status = 0;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        stats.record(type, System.nanoTime() - start, bytes, status);
+        return eTag;
+    }
+}
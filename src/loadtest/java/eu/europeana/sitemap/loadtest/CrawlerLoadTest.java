@@ -0,0 +1,231 @@
+package eu.europeana.sitemap.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.SitemapApplication;
+import eu.europeana.sitemap.storage.LocalObjectStorageClient;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test of the sitemap read endpoints. Starts the application in read-only mode against local storage filled with
+ * a test generation (see {@link LoadTestData}), or uses an already running instance, and lets a number of concurrent
+ * crawlers request files for a fixed duration. Afterwards throughput, latency percentiles per request type and heap/cpu
+ * usage are reported.
+ *
+ * Run with 'mvn -Ploadtest test-compile exec:java', settings are provided as system properties, e.g.
+ * -Dloadtest.concurrency=100. See the README for all settings.
+ */
+public final class CrawlerLoadTest {
+
+    private static final Logger LOG = LogManager.getLogger(CrawlerLoadTest.class);
+
+    private static final Pattern LOC = Pattern.compile("<loc>([^<]+)</loc>");
+
+    private CrawlerLoadTest() {
+        // empty constructor to prevent initialization
+    }
+
+    /**
+     * Run the load test
+     * @param args not used, settings are read from system properties
+     * @throws Exception when the test can't be run
+     */
+    public static void main(String[] args) throws Exception {
+        String target = System.getProperty("loadtest.target", "");
+        int concurrency = Integer.getInteger("loadtest.concurrency", 50);
+        int durationSeconds = Integer.getInteger("loadtest.duration.s", 60);
+        int warmupSeconds = Integer.getInteger("loadtest.warmup.s", 10);
+        int walkLength = Integer.getInteger("loadtest.walk.length", 20);
+        Map<String, Integer> mix = parseMix(System.getProperty("loadtest.mix", "walk:1,random:3,check:1"));
+        String reportFile = System.getProperty("loadtest.report", "");
+
+        ConfigurableApplicationContext application = null;
+        String baseUrl = target;
+        if (baseUrl.isEmpty()) {
+            int port = Integer.getInteger("loadtest.port", 8089);
+            application = startApplication(port);
+            baseUrl = "http://localhost:" + port + "/sitemap/";
+        } else if (!baseUrl.endsWith("/")) {
+            baseUrl = baseUrl + '/';
+        }
+
+        try {
+            List<String> files = readFileList(baseUrl);
+            LOG.info("Index lists {} files, starting {} crawlers (mix {})", files.size(), concurrency, mix);
+
+            run(baseUrl, files, walkLength, mix, concurrency, warmupSeconds, new LoadTestStats());
+            LoadTestStats stats = new LoadTestStats();
+            ResourceSampler sampler = new ResourceSampler();
+            sampler.start();
+            long durationMs = run(baseUrl, files, walkLength, mix, concurrency, durationSeconds, stats);
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("target", baseUrl);
+            report.put("concurrency", concurrency);
+            report.put("durationMs", durationMs);
+            report.put("mix", mix);
+            report.put("requests", stats.summarize(durationMs));
+            report.put("resources", sampler.stop());
+            ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+            if (application != null) {
+                report.put("metrics", readMetrics(mapper, baseUrl));
+            }
+            String json = mapper.writeValueAsString(report);
+            LOG.info("Load test results:\n{}", json);
+            if (!reportFile.isEmpty()) {
+                mapper.writeValue(new File(reportFile), report);
+            }
+        } finally {
+            if (application != null) {
+                application.close();
+            }
+        }
+    }
+
+    /**
+     * Fill local storage and start the application in read-only mode on that storage
+     */
+    private static ConfigurableApplicationContext startApplication(int port) {
+        File dir = new File(System.getProperty("loadtest.dir",
+                new File(System.getProperty("java.io.tmpdir"), "sitemap-loadtest").getAbsolutePath()));
+        LoadTestData.populate(new LocalObjectStorageClient(dir), Integer.getInteger("loadtest.files", 2000),
+                Integer.getInteger("loadtest.file.mb", 10));
+
+        // system properties override the application properties, unlike properties set via the builder
+        System.setProperty("storage.local.dir", dir.getAbsolutePath());
+        System.setProperty("server.port", String.valueOf(port));
+        System.setProperty("ratelimit.enabled", System.getProperty("ratelimit.enabled", "false"));
+        System.setProperty("management.security.enabled", "false");
+        return new SpringApplicationBuilder(SitemapApplication.class)
+                .profiles(SitemapApplication.READ_ONLY_PROFILE)
+                .run();
+    }
+
+    /**
+     * @return the actuator metrics of the application (e.g. rate limiting and cache counters), or null if not available
+     */
+    private static Map<?, ?> readMetrics(ObjectMapper mapper, String baseUrl) {
+        try {
+            return mapper.readValue(new URL(baseUrl + "metrics"), Map.class);
+        } catch (IOException e) {
+            LOG.warn("Unable to read application metrics", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the sitemap index like a crawler would and return the paths of all listed files
+     */
+    private static List<String> readFileList(String baseUrl) throws IOException {
+        String index;
+        try (InputStream in = new URL(baseUrl + "index").openStream()) {
+            index = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        List<String> result = new ArrayList<>();
+        Matcher matcher = LOC.matcher(index);
+        while (matcher.find()) {
+            String loc = matcher.group(1).replace("&amp;", "&");
+            int start = loc.indexOf(Naming.SITEMAP_FILE);
+            if (start >= 0) {
+                result.add(loc.substring(start));
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalStateException("The sitemap index doesn't list any files");
+        }
+        return result;
+    }
+
+    /**
+     * Let all crawlers run for the provided number of seconds
+     * @return the actual duration in milliseconds
+     */
+    private static long run(String baseUrl, List<String> files, int walkLength, Map<String, Integer> mix,
+                            int concurrency, int seconds, LoadTestStats stats) throws InterruptedException {
+        if (seconds <= 0) {
+            return 0;
+        }
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Crawler crawler = new Crawler(baseUrl, files, walkLength, stats);
+            executor.submit(() -> {
+                while (System.currentTimeMillis() < end) {
+                    crawl(crawler, mix, ThreadLocalRandom.current().nextInt(totalWeight));
+                }
+            });
+        }
+        executor.shutdown();
+        // crawlers finish their current session, a walk may take a while
+        if (!executor.awaitTermination(seconds + 600L, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void crawl(Crawler crawler, Map<String, Integer> mix, int choice) {
+        int remaining = choice;
+        for (Map.Entry<String, Integer> pattern : mix.entrySet()) {
+            remaining -= pattern.getValue();
+            if (remaining < 0) {
+                switch (pattern.getKey()) {
+                    case "walk":
+                        crawler.walk();
+                        break;
+                    case "random":
+                        crawler.fetchRandom();
+                        break;
+                    default:
+                        crawler.checkRandom();
+                        break;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parse the access pattern mix, e.g. 'walk:1,random:3,check:1'
+     */
+    private static Map<String, Integer> parseMix(String value) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (String part : value.split(",")) {
+            String[] pattern = part.trim().split(":");
+            String name = pattern[0].trim();
+            if (!"walk".equals(name) && !"random".equals(name) && !"check".equals(name)) {
+                throw new IllegalArgumentException("Unknown access pattern " + name + ", use walk, random or check");
+            }
+            int weight = (pattern.length > 1 ? Integer.parseInt(pattern[1].trim()) : 1);
+            if (weight > 0) {
+                result.put(name, weight);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("No access patterns configured");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+package eu.europeana.sitemap.loadtest;
+
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.generate.SitemapManifest;
+import eu.europeana.sitemap.service.ActiveSiteMapService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jclouds.io.payloads.ByteArrayPayload;
+import org.jclouds.io.payloads.StringPayload;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fills (local) storage with a complete sitemap generation: sitemap files of a realistic size, the manifest, the
+ * sitemap index and the active pointer, so the read endpoints can be load tested without running a generation.
+ * Data is only written when storage doesn't contain a generation with the same number of files yet.
+ */
+public final class LoadTestData {
+
+    private static final Logger LOG = LogManager.getLogger(LoadTestData.class);
+
+    /** Test files are always stored in the blue deployment **/
+    public static final String DEPLOYMENT = ActiveSiteMapService.EUROPEANA_SITEMAP_HASHED_BLUE;
+
+    private static final String PORTAL_URL = "https://www.europeana.eu/portal";
+    private static final String URL_TEMPLATE = "<url><loc>" + PORTAL_URL + "/record/%d/loadtest_%08d.html</loc>"
+            + "<lastmod>2018-06-01</lastmod><changefreq>monthly</changefreq><priority>0.%d</priority></url>\n";
+
+    private LoadTestData() {
+        // empty constructor to prevent initialization
+    }
+
+    /**
+     * Make sure storage contains a generation with the requested number of files
+     * @param storage storage to fill
+     * @param nrFiles number of sitemap files
+     * @param fileMb approximate size of each sitemap file in megabytes
+     */
+    public static void populate(ObjectStorageClient storage, int nrFiles, int fileMb) {
+        String manifestFile = DEPLOYMENT + Naming.MANIFEST_SUFFIX;
+        if (storage.isAvailable(manifestFile) && SitemapManifest.parse(new String(storage.getContent(manifestFile),
+                StandardCharsets.UTF_8), DEPLOYMENT).size() == nrFiles) {
+            LOG.info("Storage already contains {} test files", nrFiles);
+            return;
+        }
+
+        LOG.info("Writing {} test files of {} MB...", nrFiles, fileMb);
+        long start = System.currentTimeMillis();
+        StringBuilder manifest = new StringBuilder();
+        StringBuilder index = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        long from = 0;
+        for (int i = 0; i < nrFiles; i++) {
+            byte[] content = createSitemapFile(i, from, fileMb * 1024L * 1024L);
+            long to = from + countUrls(content);
+            storage.put(Naming.getSitemapFileName(DEPLOYMENT, Naming.DEFAULT_FILE_SET, from, to),
+                    new ByteArrayPayload(content));
+            SitemapManifest.appendEntry(manifest, Naming.DEFAULT_FILE_SET, from, to);
+            index.append("<sitemap><loc>").append(PORTAL_URL).append('/')
+                    .append(Naming.getPublicSitemapFileName(Naming.DEFAULT_FILE_SET, from, to).replace("&", "&amp;"))
+                    .append("</loc></sitemap>\n");
+            from = to;
+            if ((i + 1) % 100 == 0) {
+                LOG.info("Written {} of {} test files", i + 1, nrFiles);
+            }
+        }
+        index.append("</sitemapindex>\n");
+        storage.put(Naming.SITEMAP_INDEX_FILE, new StringPayload(index.toString()));
+        storage.put(manifestFile, new StringPayload(manifest.toString()));
+        storage.put(ActiveSiteMapService.EUROPEANA_ACTIVE_SITEMAP_SWITCH_FILE, new StringPayload(DEPLOYMENT));
+        LOG.info("Written {} test files in {} ms", nrFiles, System.currentTimeMillis() - start);
+    }
+
+    private static byte[] createSitemapFile(int fileNr, long from, long size) {
+        StringBuilder result = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, size + 1024));
+        result.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        long record = from;
+        while (result.length() < size) {
+            result.append(String.format(URL_TEMPLATE, 9200000 + fileNr, record, record % 10));
+            record++;
+        }
+        result.append("</urlset>\n");
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long countUrls(byte[] content) {
+        long result = 0;
+        for (byte b : content) {
+            if (b == '\n') {
+                result++;
+            }
+        }
+        // header, urlset start and end lines
+        return result - 3;
+    }
+}
@@ -0,0 +1,88 @@
+package eu.europeana.sitemap.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects the latency, size and status of all requests done during a load test, per type of request
+ */
+public class LoadTestStats {
+
+    private final ConcurrentMap<String, RequestStats> statsPerType = new ConcurrentHashMap<>();
+
+    /**
+     * Record a finished request
+     * @param type type of request, e.g. 'file' or 'head'
+     * @param latencyNanos time between sending the request and reading the last byte of the response
+     * @param bytes number of bytes in the response body
+     * @param status http status code, or 0 if the request failed
+     */
+    public void record(String type, long latencyNanos, long bytes, int status) {
+        statsPerType.computeIfAbsent(type, t -> new RequestStats()).add(latencyNanos, bytes, status);
+    }
+
+    /**
+     * @param durationMs duration of the measurement
+     * @return summary per request type, in alphabetical order
+     */
+    public Map<String, Map<String, Object>> summarize(long durationMs) {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        for (Map.Entry<String, RequestStats> entry : statsPerType.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().summarize(durationMs));
+        }
+        return result;
+    }
+
+    /**
+     * Statistics of one type of request. Latencies are kept in an array that grows when needed, a load test of a few
+     * minutes does at most a few million requests
+     */
+    private static final class RequestStats {
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private long bytes;
+        private final Map<Integer, Long> statusCounts = new TreeMap<>();
+
+        private synchronized void add(long latencyNanos, long responseBytes, int status) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            bytes += responseBytes;
+            statusCounts.merge(status, 1L, Long::sum);
+        }
+
+        private synchronized Map<String, Object> summarize(long durationMs) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("requests", count);
+            result.put("requestsPerSecond", round(count * 1000.0 / Math.max(1, durationMs)));
+            result.put("mbPerSecond", round(bytes / 1024.0 / 1024.0 * 1000.0 / Math.max(1, durationMs)));
+            result.put("p50Ms", percentileMs(sorted, 50));
+            result.put("p90Ms", percentileMs(sorted, 90));
+            result.put("p99Ms", percentileMs(sorted, 99));
+            result.put("p999Ms", percentileMs(sorted, 99.9));
+            result.put("maxMs", (count == 0 ? 0 : round(sorted[count - 1] / 1_000_000.0)));
+            result.put("statusCounts", new TreeMap<>(statusCounts));
+            return result;
+        }
+
+        private static double percentileMs(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return round(sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1_000_000.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 100) / 100.0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package eu.europeana.sitemap.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples heap usage and process cpu load every second during a load test. Note that when the application runs in the
+ * same JVM as the load test, the cpu load includes the load of the test clients as well.
+ */
+public class ResourceSampler {
+
+    private static final long INTERVAL_MS = 1000;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "loadtest-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long nrSamples;
+    private long peakHeapBytes;
+    private double totalCpuLoad;
+    private double peakCpuLoad;
+    private long startGcCount;
+    private long startGcMs;
+
+    /**
+     * Start sampling
+     */
+    public void start() {
+        startGcCount = getGcCount();
+        startGcMs = getGcMs();
+        executor.scheduleAtFixedRate(this::sample, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void sample() {
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        peakHeapBytes = Math.max(peakHeapBytes, heap);
+        double cpu = getProcessCpuLoad();
+        if (cpu >= 0) {
+            totalCpuLoad += cpu;
+            peakCpuLoad = Math.max(peakCpuLoad, cpu);
+            nrSamples++;
+        }
+    }
+
+    /**
+     * Stop sampling
+     * @return summary of the resource usage
+     */
+    public synchronized Map<String, Object> stop() {
+        executor.shutdownNow();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("peakHeapMb", peakHeapBytes / 1024 / 1024);
+        result.put("maxHeapMb", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax() / 1024 / 1024);
+        result.put("avgCpuPercent", (nrSamples == 0 ? -1 : Math.round(totalCpuLoad / nrSamples * 100)));
+        result.put("peakCpuPercent", Math.round(peakCpuLoad * 100));
+        result.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        result.put("gcCount", getGcCount() - startGcCount);
+        result.put("gcMs", getGcMs() - startGcMs);
+        return result;
+    }
+
+    private static double getProcessCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        return -1;
+    }
+
+    private static long getGcCount() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionCount());
+        }
+        return result;
+    }
+
+    private static long getGcMs() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+}
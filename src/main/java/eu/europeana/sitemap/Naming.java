@@ -9,8 +9,142 @@ public class Naming {
 
     public static final String SITEMAP_INDEX_FILE = "europeana-sitemap-index-hashed.xml";
     public static final String SITEMAP_FILE = "europeana-sitemap-hashed.xml";
+    /** Appended to the blue/green deployment name to get the name of the manifest listing all files of that deployment **/
+    public static final String MANIFEST_SUFFIX = ".manifest";
+    /** Appended to the blue/green deployment name to get the name of the snapshot of all records in that deployment **/
+    public static final String SNAPSHOT_SUFFIX = ".snapshot.gz";
+    /** Appended to the blue/green deployment name to get the name of the file with the latest revision of that deployment **/
+    public static final String REVISION_SUFFIX = ".revision";
+    /** Appended to the blue/green deployment name to get the name of the file listing the first key of each sitemap file **/
+    public static final String BOUNDS_SUFFIX = ".bounds";
+    /** Position in the Mongo change stream up to which all changes are processed **/
+    public static final String CHANGE_STREAM_TOKEN_FILE = "europeana-sitemap-changestream-token.json";
+    /** Prefix of the names of saved Java Flight Recorder recordings **/
+    public static final String RECORDING_PREFIX = "europeana-sitemap-recording-";
+    /** Prefix of the names of saved update run reports **/
+    public static final String RUN_PREFIX = "europeana-sitemap-run-";
+    /** Reports of the last update runs **/
+    public static final String RUN_HISTORY_FILE = "europeana-sitemap-runs.json";
+    /** Prefix of the names of saved snapshots of sitemap file request counts **/
+    public static final String HEATMAP_PREFIX = "europeana-sitemap-heatmap-";
+    /** Sitemap listing all records that were added or changed in the last generation **/
+    public static final String SITEMAP_DELTA_FILE = "europeana-sitemap-delta.xml";
+    /** Prefix of the names of the changed urls of each source, together these make up the delta sitemap **/
+    public static final String DELTA_PART_PREFIX = "europeana-sitemap-delta-";
+
+    /** Name of the file set containing records. For backwards compatibility file names of this set have no set parameter **/
+    public static final String DEFAULT_FILE_SET = "record";
 
     private Naming() {
         // empty constructor to avoid initialization
     }
+
+    /**
+     * @param fileSet name of a file set
+     * @return the parameter that identifies the file set in a sitemap file name (empty for the default file set)
+     */
+    private static String getFileSetParameter(String fileSet) {
+        if (fileSet == null || DEFAULT_FILE_SET.equals(fileSet)) {
+            return "";
+        }
+        return "set=" + fileSet + "&";
+    }
+
+    /**
+     * @param deployment name of the deployment (blue/green)
+     * @param fileSet name of the file set
+     * @param from start index of the file
+     * @param to end index of the file
+     * @return the name under which a sitemap file is stored
+     */
+    public static String getSitemapFileName(String deployment, String fileSet, long from, long to) {
+        return getSitemapFilePrefix(deployment, fileSet) + from + "&to=" + to;
+    }
+
+    /**
+     * @param deployment name of the deployment (blue/green)
+     * @param fileSet name of the file set
+     * @return the start of the names of all stored sitemap files of the file set in the deployment
+     */
+    public static String getSitemapFilePrefix(String deployment, String fileSet) {
+        return deployment + "?" + getFileSetParameter(fileSet) + "from=";
+    }
+
+    /**
+     * @param fileSet name of the file set
+     * @param from start index of the file
+     * @param to end index of the file
+     * @return the name under which a sitemap file is publicly available (and listed in the sitemap index)
+     */
+    public static String getPublicSitemapFileName(String fileSet, long from, long to) {
+        return SITEMAP_FILE + "?" + getFileSetParameter(fileSet) + "from=" + from + "&to=" + to;
+    }
+
+    /**
+     * @param variant name of the portal variant, null for the default variant
+     * @return the name of the sitemap index file of a variant
+     */
+    public static String getIndexFileName(String variant) {
+        if (variant == null) {
+            return SITEMAP_INDEX_FILE;
+        }
+        return SITEMAP_INDEX_FILE.replace(".xml", "-" + variant + ".xml");
+    }
+
+    /**
+     * @param deployment name of the deployment (blue/green)
+     * @param fileSet name of the file set
+     * @return the name under which the record snapshot of a file set is stored
+     */
+    public static String getSnapshotFileName(String deployment, String fileSet) {
+        if (fileSet == null || DEFAULT_FILE_SET.equals(fileSet)) {
+            return deployment + SNAPSHOT_SUFFIX;
+        }
+        return deployment + "." + fileSet + SNAPSHOT_SUFFIX;
+    }
+
+    /**
+     * @param deployment name of the deployment (blue/green)
+     * @param fileSet name of the file set
+     * @return the name under which the first key of each sitemap file of a file set is stored
+     */
+    public static String getBoundsFileName(String deployment, String fileSet) {
+        if (fileSet == null || DEFAULT_FILE_SET.equals(fileSet)) {
+            return deployment + BOUNDS_SUFFIX;
+        }
+        return deployment + "." + fileSet + BOUNDS_SUFFIX;
+    }
+
+    /**
+     * @param source name of a sitemap source
+     * @return the name under which the delta sitemap entries of the last generation of a source are stored
+     */
+    public static String getDeltaPartFileName(String source) {
+        return DELTA_PART_PREFIX + source + ".part";
+    }
+
+    /**
+     * @param recording name of a flight recording
+     * @return the name under which the recording is stored
+     */
+    public static String getRecordingFileName(String recording) {
+        return RECORDING_PREFIX + recording + ".jfr";
+    }
+
+    /**
+     * @param runId identifies an update run
+     * @return the name under which the report of the run is stored
+     */
+    public static String getRunReportFileName(String runId) {
+        return RUN_PREFIX + runId + ".json";
+    }
+
+    /**
+     * @param deployment name of the deployment (blue/green)
+     * @param instance name of the application instance that counted the requests
+     * @return the name under which the request counts of a deployment are stored
+     */
+    public static String getHeatmapFileName(String deployment, String instance) {
+        return HEATMAP_PREFIX + deployment + "-" + instance + ".json";
+    }
 }
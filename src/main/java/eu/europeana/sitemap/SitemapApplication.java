@@ -2,12 +2,37 @@ package eu.europeana.sitemap;
 
 import eu.europeana.features.ObjectStorageClient;
 import eu.europeana.features.S3ObjectStorageClient;
+import eu.europeana.sitemap.delta.IndexNowNotifier;
+import eu.europeana.sitemap.delta.LoggingUrlNotifier;
+import eu.europeana.sitemap.delta.UrlNotifier;
+import eu.europeana.sitemap.monitor.CacheWarmupHealthIndicator;
+import eu.europeana.sitemap.monitor.CrawlerHeatmap;
+import eu.europeana.sitemap.monitor.FlightRecorder;
+import eu.europeana.sitemap.monitor.RateLimitMetrics;
+import eu.europeana.sitemap.monitor.ReadCoalescingMetrics;
+import eu.europeana.sitemap.monitor.RunHistory;
 import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+import eu.europeana.sitemap.index.RecordIndexStore;
 import eu.europeana.sitemap.service.ActiveSiteMapService;
+import eu.europeana.sitemap.service.ChangeStreamUpdater;
+import eu.europeana.sitemap.service.DeltaFeedService;
 import eu.europeana.sitemap.service.GenerateSitemapServiceImpl;
 import eu.europeana.sitemap.service.ReadSitemapServiceImpl;
 import eu.europeana.sitemap.service.ResubmitService;
+import eu.europeana.sitemap.service.SitemapCacheWarmer;
+import eu.europeana.sitemap.service.SitemapVerifier;
 import eu.europeana.sitemap.service.UpdateScheduler;
+import eu.europeana.sitemap.storage.CircuitBreaker;
+import eu.europeana.sitemap.storage.CachedFile;
+import eu.europeana.sitemap.storage.ContentCache;
+import eu.europeana.sitemap.storage.HedgedReader;
+import eu.europeana.sitemap.storage.LocalObjectStorageClient;
+import eu.europeana.sitemap.storage.SingleFlight;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import eu.europeana.sitemap.web.AsyncReadExecutor;
+import eu.europeana.sitemap.web.SitemapRateLimitFilter;
+import eu.europeana.sitemap.web.TokenBucketLimiter;
 import eu.europeana.sitemap.web.context.SocksProxyConfigInjector;
 import org.apache.logging.log4j.LogManager;
 import org.springframework.beans.factory.annotation.Value;
@@ -15,13 +40,21 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.mongo.MongoAutoConfiguration;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.boot.web.support.SpringBootServletInitializer;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.util.StringUtils;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Main application and configuration
@@ -33,6 +66,13 @@ import java.io.IOException;
 @PropertySource(value = "classpath:sitemap.user.properties", ignoreResourceNotFound = true)
 public class SitemapApplication extends SpringBootServletInitializer {
 
+    /**
+     * Spring profile for instances that only serve sitemaps. These don't connect to Mongo and don't load any of the
+     * generation beans (scheduler, change stream, update endpoints)
+     */
+    public static final String READ_ONLY_PROFILE = "readonly";
+    private static final String NOT_READ_ONLY = "!" + READ_ONLY_PROFILE;
+
     @Value("${s3.key}")
     private String key;
     @Value("${s3.secret}")
@@ -41,6 +81,8 @@ public class SitemapApplication extends SpringBootServletInitializer {
     private String region;
     @Value("${s3.bucket}")
     private String bucket;
+    @Value("${storage.local.dir:}")
+    private String localStorageDir;
 
     @Value("${mongo.hosts}")
     private String hosts;
@@ -55,29 +97,274 @@ public class SitemapApplication extends SpringBootServletInitializer {
     @Value("${mongo.database}")
     private String database;
 
+    @Value("${read.threads:20}")
+    private int readThreads;
+    @Value("${read.queue.size:200}")
+    private int readQueueSize;
+    @Value("${read.timeout.ms:30000}")
+    private long readTimeoutMs;
+
+    @Value("${read.hedge.enabled:true}")
+    private boolean hedgeEnabled;
+    @Value("${read.hedge.percentile:95}")
+    private double hedgePercentile;
+    @Value("${read.hedge.min.delay.ms:50}")
+    private long hedgeMinDelayMs;
+    @Value("${read.hedge.max.fraction:0.05}")
+    private double hedgeMaxFraction;
+
+    @Value("${storage.read.max.concurrent:40}")
+    private int storageReadMaxConcurrent;
+    @Value("${storage.read.max.wait.ms:2000}")
+    private long storageReadMaxWaitMs;
+    @Value("${storage.write.max.concurrent:10}")
+    private int storageWriteMaxConcurrent;
+    @Value("${storage.write.max.wait.ms:60000}")
+    private long storageWriteMaxWaitMs;
+
+    @Value("${read.breaker.window:50}")
+    private int breakerWindow;
+    @Value("${read.breaker.min.calls:20}")
+    private int breakerMinCalls;
+    @Value("${read.breaker.failure.rate:0.5}")
+    private double breakerFailureRate;
+    @Value("${read.breaker.slow.call.ms:5000}")
+    private long breakerSlowCallMs;
+    @Value("${read.breaker.open.ms:30000}")
+    private long breakerOpenMs;
+    @Value("${read.lastknowngood.cache.mb:256}")
+    private long lastKnownGoodCacheMb;
+    @Value("${read.cache.mb:256}")
+    private long fileCacheMb;
+    @Value("${read.coalesce.enabled:true}")
+    private boolean coalesceEnabled;
+    @Value("${read.coalesce.failure.ttl.ms:1000}")
+    private long coalesceFailureTtlMs;
+    @Value("${read.warmup.concurrency:4}")
+    private int warmupConcurrency;
+    @Value("${read.warmup.max.files:20}")
+    private int warmupMaxFiles;
+
+    @Value("${ratelimit.enabled:false}")
+    private boolean rateLimitEnabled;
+    @Value("${ratelimit.client.key:ip}")
+    private String rateLimitClientKey;
+    @Value("${ratelimit.forwarded.header:}")
+    private String rateLimitForwardedHeader;
+    @Value("${ratelimit.trusted.proxies:0}")
+    private int rateLimitTrustedProxies;
+    @Value("${ratelimit.stripes:4096}")
+    private int rateLimitStripes;
+    @Value("${ratelimit.index.rate:5}")
+    private double indexRate;
+    @Value("${ratelimit.index.burst:10}")
+    private int indexBurst;
+    @Value("${ratelimit.file.rate:10}")
+    private double fileRate;
+    @Value("${ratelimit.file.burst:50}")
+    private int fileBurst;
+    @Value("${ratelimit.delta.rate:2}")
+    private double deltaRate;
+    @Value("${ratelimit.delta.burst:5}")
+    private int deltaBurst;
+    @Value("${ratelimit.list.rate:1}")
+    private double listRate;
+    @Value("${ratelimit.list.burst:2}")
+    private int listBurst;
+    @Value("${ratelimit.max.inflight:250}")
+    private int maxInFlight;
+
+    @Value("${verify.enabled:true}")
+    private boolean verifyEnabled;
+    @Value("${verify.threads:10}")
+    private int verifyThreads;
+    @Value("${verify.sample.files:5}")
+    private int verifySampleFiles;
+
+    @Value("${record.index.enabled:false}")
+    private boolean recordIndexEnabled;
+    @Value("${record.index.dir:${java.io.tmpdir}/sitemap-record-index}")
+    private String recordIndexDir;
+
+    @Value("${throttle.enabled:false}")
+    private boolean throttleEnabled;
+    @Value("${throttle.rate.min:5000}")
+    private double throttleMinRate;
+    @Value("${throttle.rate.max:100000}")
+    private double throttleMaxRate;
+    @Value("${throttle.increase:2000}")
+    private double throttleIncrease;
+    @Value("${throttle.decrease.factor:0.5}")
+    private double throttleDecreaseFactor;
+    @Value("${throttle.latency.target.ms:500}")
+    private long throttleLatencyTargetMs;
+    @Value("${throttle.replication.lag.max.s:0}")
+    private long throttleMaxReplicationLagSeconds;
+    @Value("${throttle.replication.lag.check.ms:10000}")
+    private long throttleLagCheckIntervalMs;
+
+    @Value("${heatmap.enabled:false}")
+    private boolean heatmapEnabled;
+    @Value("${heatmap.instance:}")
+    private String heatmapInstance;
+    @Value("${heatmap.max.families:50}")
+    private int heatmapMaxFamilies;
+    @Value("${heatmap.flush.interval.ms:300000}")
+    private long heatmapFlushIntervalMs;
+
+    @Value("${jfr.update.enabled:false}")
+    private boolean jfrUpdateEnabled;
+    @Value("${jfr.settings:profile}")
+    private String jfrSettings;
+    @Value("${jfr.dir:${java.io.tmpdir}}")
+    private String jfrDir;
+    @Value("${jfr.max.minutes:60}")
+    private long jfrMaxMinutes;
+
+    @Value("${run.history.max.runs:100}")
+    private int runHistoryMaxRuns;
+    @Value("${run.history.trend.window:5}")
+    private int runHistoryTrendWindow;
+    @Value("${run.history.regression.threshold:0.25}")
+    private double runHistoryRegressionThreshold;
+
+    @Value("${changestream.enabled:false}")
+    private boolean changeStreamEnabled;
+    @Value("${changestream.window.ms:900000}")
+    private long changeStreamWindowMs;
+    @Value("${changestream.max.batch.size:100000}")
+    private int changeStreamMaxBatchSize;
+
+    @Value("${portal.base.url}")
+    private String portalBaseUrl;
+    @Value("${delta.enabled:true}")
+    private boolean deltaEnabled;
+    @Value("${delta.work.dir:${java.io.tmpdir}}")
+    private String deltaWorkDir;
+    @Value("${delta.sort.chunk.size:500000}")
+    private int deltaSortChunkSize;
+    @Value("${delta.sitemap.max.urls:50000}")
+    private int deltaSitemapMaxUrls;
+    @Value("${delta.notifier:log}")
+    private String deltaNotifier;
+    @Value("${delta.notifier.batch.size:10000}")
+    private int deltaNotifierBatchSize;
+    @Value("${indexnow.endpoint:https://api.indexnow.org/indexnow}")
+    private String indexNowEndpoint;
+    @Value("${indexnow.key:}")
+    private String indexNowKey;
+    @Value("${indexnow.key.location:}")
+    private String indexNowKeyLocation;
+    @Value("${indexnow.timeout.ms:10000}")
+    private int indexNowTimeoutMs;
+
     /**
      * Mongo database from which we retrieve all records
      * @return
      */
     @Bean
+    @Profile(NOT_READ_ONLY)
     public MongoProvider mongoProvider() {
         return new MongoProvider(hosts, port, authDatabase, username, password, database);
     }
 
     /**
-     * Location where all sitemap files are stored (Amazon S3)
+     * Location where all sitemap files are stored (Amazon S3, or a local directory if storage.local.dir is set). This
+     * client is used for generating sitemaps
      * @return
      */
     @Bean
+    @Primary
     public ObjectStorageClient objectStorageClient() {
+        if (!StringUtils.isEmpty(localStorageDir)) {
+            return new LocalObjectStorageClient(new File(localStorageDir));
+        }
         return new S3ObjectStorageClient(key, secret, region, bucket);
     }
 
+    /**
+     * Separate client (with its own connection pool) for serving sitemap files, so reads are not affected by the
+     * many storage requests done during sitemap generation
+     * @return
+     */
+    @Bean
+    public ObjectStorageClient readObjectStorageClient() {
+        if (!StringUtils.isEmpty(localStorageDir)) {
+            return new LocalObjectStorageClient(new File(localStorageDir));
+        }
+        return new S3ObjectStorageClient(key, secret, region, bucket);
+    }
+
+    /**
+     * Limits the number of concurrent storage reads
+     * @return
+     */
+    @Bean
+    public StorageBulkhead readStorageBulkhead() {
+        return new StorageBulkhead("read", storageReadMaxConcurrent, storageReadMaxWaitMs);
+    }
+
+    /**
+     * Limits the number of concurrent storage writes (and deletes)
+     * @return
+     */
+    @Bean
+    public StorageBulkhead writeStorageBulkhead() {
+        return new StorageBulkhead("write", storageWriteMaxConcurrent, storageWriteMaxWaitMs);
+    }
+
+    /**
+     * Stops sending read requests to storage when it's failing or very slow
+     * @return
+     */
+    @Bean
+    public CircuitBreaker readCircuitBreaker() {
+        return new CircuitBreaker("storage-read", breakerWindow, breakerMinCalls, breakerFailureRate,
+                breakerSlowCallMs, breakerOpenMs);
+    }
+
+    /**
+     * Last known good version of recently read files, used when the read circuit breaker is open
+     * @return
+     */
+    @Bean
+    public ContentCache lastKnownGoodCache() {
+        return new ContentCache(lastKnownGoodCacheMb * 1024 * 1024);
+    }
+
+    /**
+     * Cache of sitemap and index files of the active deployment
+     * @return
+     */
+    @Bean
+    public ContentCache fileCache() {
+        return new ContentCache(fileCacheMb * 1024 * 1024);
+    }
+
+    /**
+     * Preloads files into the file cache after startup and before switching to a new deployment
+     * @return
+     */
+    @Bean
+    public SitemapCacheWarmer cacheWarmer() {
+        return new SitemapCacheWarmer(warmupConcurrency, warmupMaxFiles);
+    }
+
+    /**
+     * Reports cache warm-up progress in the actuator health endpoint
+     * @return
+     */
+    @Bean
+    public CacheWarmupHealthIndicator cacheWarmupHealthIndicator() {
+        return new CacheWarmupHealthIndicator(cacheWarmer());
+    }
+
     /**
      * Regularly schedules an new sitemap update (if this is configured in sitemap.properties)
      * @return
      */
     @Bean
+    @Profile(NOT_READ_ONLY)
     public UpdateScheduler updateScheduler() {
         return new UpdateScheduler(generateSitemapService());
     }
@@ -87,26 +374,199 @@ public class SitemapApplication extends SpringBootServletInitializer {
      * @return
      */
     @Bean
+    @Profile(NOT_READ_ONLY)
     public ResubmitService resubmitSitemapService() {
         return new ResubmitService();
     }
 
+    /**
+     * Pushes changed urls to search engines (IndexNow), or only logs them (default)
+     * @return
+     */
+    @Bean
+    @Profile(NOT_READ_ONLY)
+    public UrlNotifier urlNotifier() {
+        if ("indexnow".equalsIgnoreCase(deltaNotifier)) {
+            return new IndexNowNotifier(indexNowEndpoint, URI.create(portalBaseUrl.trim()).getHost(), indexNowKey,
+                    indexNowKeyLocation, deltaNotifierBatchSize, indexNowTimeoutMs);
+        }
+        return new LoggingUrlNotifier(deltaNotifierBatchSize);
+    }
+
+    /**
+     * Publishes the urls that changed between 2 sitemap generations
+     * @return
+     */
+    @Bean
+    @Profile(NOT_READ_ONLY)
+    public DeltaFeedService deltaFeedService() {
+        return new DeltaFeedService(deltaEnabled, objectStorageClient(), writeStorageBulkhead(), urlNotifier(),
+                new File(deltaWorkDir), deltaSortChunkSize, deltaSitemapMaxUrls);
+    }
+
+    /**
+     * Local index of all records, so sitemaps can be generated without a full scan of the record collection
+     * @return
+     */
+    @Bean
+    @Profile(NOT_READ_ONLY)
+    public RecordIndexStore recordIndexStore() {
+        return new RecordIndexStore(recordIndexEnabled, mongoProvider(), new File(recordIndexDir), deltaSortChunkSize,
+                scanThrottle(), GenerateSitemapServiceImpl.NUMBER_OF_ELEMENTS);
+    }
+
+    /**
+     * Limits the rate of full Mongo scans, adapting to Mongo latency and replication lag
+     * @return
+     */
+    @Bean
+    @Profile(NOT_READ_ONLY)
+    public ScanThrottle scanThrottle() {
+        return new ScanThrottle(throttleEnabled, mongoProvider(), throttleMinRate, throttleMaxRate, throttleIncrease,
+                throttleDecreaseFactor, throttleLatencyTargetMs, throttleMaxReplicationLagSeconds,
+                throttleLagCheckIntervalMs);
+    }
+
+    /**
+     * Records updates (or the application on demand) with Java Flight Recorder
+     * @return
+     */
+    @Bean
+    public FlightRecorder flightRecorder() {
+        return new FlightRecorder(jfrUpdateEnabled, jfrSettings, new File(jfrDir), jfrMaxMinutes, objectStorageClient(),
+                writeStorageBulkhead());
+    }
+
+    /**
+     * Counts requests for sitemap files per crawler family
+     * @return
+     */
+    @Bean
+    public CrawlerHeatmap crawlerHeatmap() {
+        return new CrawlerHeatmap(heatmapEnabled, objectStorageClient(), readStorageBulkhead(), writeStorageBulkhead(),
+                heatmapInstance, heatmapMaxFamilies, heatmapFlushIntervalMs);
+    }
+
+    /**
+     * Saves a performance report of every update
+     * @return
+     */
+    @Bean
+    public RunHistory runHistory() {
+        return new RunHistory(objectStorageClient(), writeStorageBulkhead(), runHistoryMaxRuns, runHistoryTrendWindow,
+                runHistoryRegressionThreshold);
+    }
+
+    /**
+     * Checks all files of a new sitemap before we switch to it
+     * @return
+     */
+    @Bean
+    @Profile(NOT_READ_ONLY)
+    public SitemapVerifier sitemapVerifier() {
+        return new SitemapVerifier(verifyEnabled, objectStorageClient(), writeStorageBulkhead(), verifyThreads,
+                verifySampleFiles);
+    }
+
     /**
      * Determines which version of the sitemap files is active (green/blue deployment)
      * @return
      */
     @Bean
+    @Profile(NOT_READ_ONLY)
     public ActiveSiteMapService activeSitemapService() {
         return new ActiveSiteMapService(objectStorageClient());
     }
 
+    /**
+     * Hedges slow storage reads to reduce tail latency of sitemap file requests
+     * @return
+     */
+    @Bean
+    public HedgedReader hedgedReader() {
+        // primary and hedged reads together never need more than twice the number of request threads
+        return new HedgedReader(hedgeEnabled, 2 * readThreads, hedgePercentile, hedgeMinDelayMs, hedgeMaxFraction,
+                readTimeoutMs);
+    }
+
+    /**
+     * Coalesces concurrent reads of the same file into a single storage read
+     * @return
+     */
+    @Bean
+    public SingleFlight<CachedFile> fileReads() {
+        return new SingleFlight<>(coalesceEnabled, coalesceFailureTtlMs, readTimeoutMs);
+    }
+
+    /**
+     * Exposes read coalescing counters in the actuator metrics endpoint
+     * @return
+     */
+    @Bean
+    public ReadCoalescingMetrics readCoalescingMetrics() {
+        return new ReadCoalescingMetrics(fileReads());
+    }
+
     /**
      * Main application service1 for reading files from s3
      * @return
      */
     @Bean
     public ReadSitemapServiceImpl readSitemapService() {
-        return new ReadSitemapServiceImpl(objectStorageClient());
+        return new ReadSitemapServiceImpl(readObjectStorageClient(), hedgedReader(), readStorageBulkhead(),
+                readCircuitBreaker(), lastKnownGoodCache(), fileCache(), cacheWarmer(), fileReads());
+    }
+
+    /**
+     * Dedicated thread pool on which all sitemap file requests are handled, so Tomcat threads are not blocked by
+     * storage calls
+     * @return
+     */
+    @Bean
+    public AsyncReadExecutor asyncReadExecutor() {
+        return new AsyncReadExecutor(readThreads, readQueueSize, readTimeoutMs);
+    }
+
+    /**
+     * Per-client rate limiting and load shedding on all sitemap read endpoints
+     * @return
+     */
+    @Bean
+    public SitemapRateLimitFilter sitemapRateLimitFilter() {
+        Map<String, TokenBucketLimiter> limiters = new HashMap<>();
+        limiters.put(SitemapRateLimitFilter.ENDPOINT_INDEX,
+                new TokenBucketLimiter(SitemapRateLimitFilter.ENDPOINT_INDEX, indexRate, indexBurst, rateLimitStripes));
+        limiters.put(SitemapRateLimitFilter.ENDPOINT_FILE,
+                new TokenBucketLimiter(SitemapRateLimitFilter.ENDPOINT_FILE, fileRate, fileBurst, rateLimitStripes));
+        limiters.put(SitemapRateLimitFilter.ENDPOINT_DELTA,
+                new TokenBucketLimiter(SitemapRateLimitFilter.ENDPOINT_DELTA, deltaRate, deltaBurst, rateLimitStripes));
+        limiters.put(SitemapRateLimitFilter.ENDPOINT_LIST,
+                new TokenBucketLimiter(SitemapRateLimitFilter.ENDPOINT_LIST, listRate, listBurst, rateLimitStripes));
+        return new SitemapRateLimitFilter(limiters, maxInFlight, rateLimitClientKey,
+                StringUtils.isEmpty(rateLimitForwardedHeader) ? null : rateLimitForwardedHeader,
+                rateLimitTrustedProxies);
+    }
+
+    /**
+     * Registers the rate limit filter for the sitemap read endpoints only
+     * @return
+     */
+    @Bean
+    public FilterRegistrationBean sitemapRateLimitFilterRegistration() {
+        FilterRegistrationBean registration = new FilterRegistrationBean(sitemapRateLimitFilter());
+        registration.setUrlPatterns(SitemapRateLimitFilter.getUrlPatterns());
+        registration.setAsyncSupported(true);
+        registration.setEnabled(rateLimitEnabled);
+        return registration;
+    }
+
+    /**
+     * Exposes rate limiting counters in the actuator metrics endpoint
+     * @return
+     */
+    @Bean
+    public RateLimitMetrics rateLimitMetrics() {
+        return new RateLimitMetrics(sitemapRateLimitFilter());
     }
 
     /**
@@ -114,8 +574,23 @@ public class SitemapApplication extends SpringBootServletInitializer {
      * @return
      */
     @Bean
+    @Profile(NOT_READ_ONLY)
     public GenerateSitemapServiceImpl generateSitemapService() {
-        return new GenerateSitemapServiceImpl(mongoProvider(), objectStorageClient(), activeSitemapService(), readSitemapService(), resubmitSitemapService());
+        return new GenerateSitemapServiceImpl(mongoProvider(), objectStorageClient(), activeSitemapService(),
+                readSitemapService(), resubmitSitemapService(), writeStorageBulkhead(), deltaFeedService(),
+                sitemapVerifier(), recordIndexStore(), flightRecorder(), runHistory(), scanThrottle());
+    }
+
+    /**
+     * Applies record changes from the Mongo change stream to the active sitemap (if enabled)
+     * @return
+     */
+    @Bean
+    @Profile(NOT_READ_ONLY)
+    public ChangeStreamUpdater changeStreamUpdater() {
+        return new ChangeStreamUpdater(changeStreamEnabled, mongoProvider(), objectStorageClient(),
+                writeStorageBulkhead(), generateSitemapService(), recordIndexStore(), changeStreamWindowMs,
+                changeStreamMaxBatchSize);
     }
 
     /**
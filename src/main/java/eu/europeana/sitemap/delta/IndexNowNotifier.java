@@ -0,0 +1,113 @@
+package eu.europeana.sitemap.delta;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pushes changed urls to search engines using the IndexNow protocol (see https://www.indexnow.org/documentation).
+ * Requests are sent with a pooled http client with connect, socket and connection-request timeouts.
+ */
+public class IndexNowNotifier implements UrlNotifier {
+
+    private static final Logger LOG = LogManager.getLogger(IndexNowNotifier.class);
+
+    /** IndexNow accepts at most 10.000 urls per request **/
+    private static final int MAX_URLS_PER_REQUEST = 10_000;
+
+    private final String endpoint;
+    private final String host;
+    private final String key;
+    private final String keyLocation;
+    private final int maxBatchSize;
+    private final CloseableHttpClient httpClient;
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    /**
+     * Create a new IndexNow notifier
+     * @param endpoint IndexNow endpoint to post to, e.g. https://api.indexnow.org/indexnow
+     * @param host host name of the urls that are submitted
+     * @param key IndexNow key of the host
+     * @param keyLocation url of the key file (optional)
+     * @param maxBatchSize maximum number of urls per request
+     * @param timeoutMs connect, socket and connection-request timeout in milliseconds
+     */
+    public IndexNowNotifier(String endpoint, String host, String key, String keyLocation, int maxBatchSize, int timeoutMs) {
+        this.endpoint = endpoint;
+        this.host = host;
+        this.key = key;
+        this.keyLocation = keyLocation;
+        this.maxBatchSize = Math.min(maxBatchSize, MAX_URLS_PER_REQUEST);
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(4);
+        connectionManager.setDefaultMaxPerRoute(4);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMs)
+                .setSocketTimeout(timeoutMs)
+                .setConnectionRequestTimeout(timeoutMs)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+    }
+
+    @Override
+    public String getName() {
+        return "IndexNow";
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public void notify(List<String> urls) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("host", host);
+        body.put("key", key);
+        if (keyLocation != null && !keyLocation.isEmpty()) {
+            body.put("keyLocation", keyLocation);
+        }
+        body.put("urlList", urls);
+
+        HttpPost post = new HttpPost(endpoint);
+        post.setEntity(new StringEntity(jsonMapper.writeValueAsString(body), ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            EntityUtils.consumeQuietly(response.getEntity());
+            if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_ACCEPTED) {
+                LOG.info("IndexNow accepted {} urls", urls.size());
+            } else {
+                throw new IOException("IndexNow says " + response.getStatusLine().getReasonPhrase()
+                        + " (status code " + statusCode + ")");
+            }
+        }
+    }
+
+    /**
+     * Clean up when the application is shutting down
+     */
+    @PreDestroy
+    public void shutdown() throws IOException {
+        httpClient.close();
+    }
+}
@@ -0,0 +1,45 @@
+package eu.europeana.sitemap.delta;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+
+/**
+ * Notifier that only logs changed urls instead of sending them anywhere. Used for testing and in deployments that
+ * should not notify search engines.
+ */
+public class LoggingUrlNotifier implements UrlNotifier {
+
+    private static final Logger LOG = LogManager.getLogger(LoggingUrlNotifier.class);
+
+    private final int maxBatchSize;
+
+    /**
+     * Create a new logging notifier
+     * @param maxBatchSize number of urls per batch
+     */
+    public LoggingUrlNotifier(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public String getName() {
+        return "log";
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public void notify(List<String> urls) {
+        LOG.info("Batch of {} changed urls, first is {}", urls.size(), urls.isEmpty() ? null : urls.get(0));
+        if (LOG.isDebugEnabled()) {
+            for (String url : urls) {
+                LOG.debug("Changed url {}", url);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package eu.europeana.sitemap.delta;
+
+import java.io.IOException;
+
+/**
+ * Compares two sorted snapshots in a single streaming pass (merge-diff), so memory use is constant regardless of the
+ * size of the snapshots. Keys are compared in the same order as they are sorted by {@link SnapshotWriter}.
+ */
+public final class SnapshotDiff {
+
+    private SnapshotDiff() {
+        // empty constructor to avoid initialization
+    }
+
+    /**
+     * Report all records that were added, removed or modified in the new snapshot compared to the old one
+     * @param oldSnapshot reader positioned before the first record of the old snapshot
+     * @param newSnapshot reader positioned before the first record of the new snapshot
+     * @param listener receives all differences
+     * @throws IOException when there is a problem reading one of the snapshots
+     */
+    public static void diff(SnapshotReader oldSnapshot, SnapshotReader newSnapshot, Listener listener) throws IOException {
+        boolean hasOld = oldSnapshot.next();
+        boolean hasNew = newSnapshot.next();
+        while (hasOld || hasNew) {
+            int compare;
+            if (!hasOld) {
+                compare = 1;
+            } else if (!hasNew) {
+                compare = -1;
+            } else {
+                compare = SnapshotWriter.compareKeys(oldSnapshot.getKey(), newSnapshot.getKey());
+            }
+
+            if (compare < 0) {
+                listener.removed(oldSnapshot.getKey());
+                hasOld = oldSnapshot.next();
+            } else if (compare > 0) {
+                listener.added(newSnapshot.getKey(), newSnapshot.getLastModifiedDay());
+                hasNew = newSnapshot.next();
+            } else {
+                if (oldSnapshot.getLastModifiedDay() != newSnapshot.getLastModifiedDay()) {
+                    listener.modified(newSnapshot.getKey(), newSnapshot.getLastModifiedDay());
+                }
+                hasOld = oldSnapshot.next();
+                hasNew = newSnapshot.next();
+            }
+        }
+    }
+
+    /**
+     * Receives the differences between two snapshots
+     */
+    public interface Listener {
+
+        /**
+         * @param key key of the record that is only present in the new snapshot
+         * @param lastModifiedDay last modified epoch day of the record (or {@link SnapshotWriter#UNKNOWN_DAY})
+         * @throws IOException when processing the difference fails
+         */
+        void added(String key, long lastModifiedDay) throws IOException;
+
+        /**
+         * @param key key of the record that is only present in the old snapshot
+         * @throws IOException when processing the difference fails
+         */
+        void removed(String key) throws IOException;
+
+        /**
+         * @param key key of the record that is present in both snapshots but with a different last modified date
+         * @param lastModifiedDay new last modified epoch day of the record (or {@link SnapshotWriter#UNKNOWN_DAY})
+         * @throws IOException when processing the difference fails
+         */
+        void modified(String key, long lastModifiedDay) throws IOException;
+    }
+}
@@ -0,0 +1,73 @@
+package eu.europeana.sitemap.delta;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the records of a (sorted) snapshot one by one, see also {@link SnapshotWriter}
+ */
+public class SnapshotReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BufferedReader reader;
+    private String currentLine;
+    private String currentKey;
+    private long currentLastModifiedDay;
+
+    /**
+     * Create a new snapshot reader
+     * @param in uncompressed snapshot data
+     */
+    public SnapshotReader(InputStream in) {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Move to the next record
+     * @return true if there was a next record, false if we reached the end of the snapshot
+     * @throws IOException when there is a problem reading the snapshot
+     */
+    public boolean next() throws IOException {
+        currentLine = reader.readLine();
+        if (currentLine == null) {
+            currentKey = null;
+            return false;
+        }
+        int separator = currentLine.lastIndexOf(SnapshotWriter.SEPARATOR);
+        currentKey = currentLine.substring(0, separator);
+        currentLastModifiedDay = (separator == currentLine.length() - 1
+                ? SnapshotWriter.UNKNOWN_DAY : Long.parseLong(currentLine.substring(separator + 1)));
+        return true;
+    }
+
+    /**
+     * @return the complete line of the current record
+     */
+    String getCurrentLine() {
+        return currentLine;
+    }
+
+    /**
+     * @return key of the current record, or null if there is no current record
+     */
+    public String getKey() {
+        return currentKey;
+    }
+
+    /**
+     * @return last modified epoch day of the current record, or {@link SnapshotWriter#UNKNOWN_DAY}
+     */
+    public long getLastModifiedDay() {
+        return currentLastModifiedDay;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
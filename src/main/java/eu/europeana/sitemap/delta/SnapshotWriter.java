@@ -0,0 +1,180 @@
+package eu.europeana.sitemap.delta;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates a compact, sorted snapshot of all record keys and their last modification date. Records are provided in any
+ * order; they are sorted in memory in chunks of limited size which are written to temporary files and merged at the
+ * end (external merge sort), so memory use doesn't grow with the size of the collection.
+ *
+ * The snapshot is a gzipped text file with one record per line: the key, a tab and the last modified epoch day (empty
+ * if unknown). Lines are sorted on key only (see {@link #compareKeys(String, String)}), the same order in which
+ * {@link SnapshotDiff} compares them.
+ */
+public class SnapshotWriter implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(SnapshotWriter.class);
+
+    /** Last modified day of records without a last modified date (written as an empty field) **/
+    public static final long UNKNOWN_DAY = Long.MIN_VALUE;
+
+    static final char SEPARATOR = '\t';
+    private static final Comparator<String> LINE_ORDER = (line1, line2) ->
+            compareKeys(line1.substring(0, line1.lastIndexOf(SEPARATOR)),
+                    line2.substring(0, line2.lastIndexOf(SEPARATOR)));
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File workDir;
+    private final String[] chunk;
+    private final List<File> chunkFiles = new ArrayList<>();
+    private int chunkCount;
+    private long nrRecords;
+    private File result;
+
+    /**
+     * Create a new snapshot writer
+     * @param workDir directory where temporary files are written
+     * @param chunkSize maximum number of records that is sorted in memory
+     */
+    public SnapshotWriter(File workDir, int chunkSize) {
+        this.workDir = workDir;
+        this.chunk = new String[chunkSize];
+    }
+
+    /**
+     * Add a record to the snapshot
+     * @param key unique record key
+     * @param lastModifiedDay last modified date as epoch day, or {@link #UNKNOWN_DAY}
+     * @throws IOException when there is a problem writing a temporary file
+     */
+    public void add(String key, long lastModifiedDay) throws IOException {
+        chunk[chunkCount++] = key + SEPARATOR + (lastModifiedDay == UNKNOWN_DAY ? "" : Long.toString(lastModifiedDay));
+        nrRecords++;
+        if (chunkCount == chunk.length) {
+            writeChunk();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        Arrays.sort(chunk, 0, chunkCount, LINE_ORDER);
+        File chunkFile = File.createTempFile("sitemap-snapshot-chunk-", ".gz", workDir);
+        chunkFiles.add(chunkFile);
+        try (Writer out = openWriter(chunkFile)) {
+            for (int i = 0; i < chunkCount; i++) {
+                out.write(chunk[i]);
+                out.write('\n');
+                chunk[i] = null;
+            }
+        }
+        chunkCount = 0;
+    }
+
+    /**
+     * Merge all sorted chunks into the final snapshot file
+     * @return the sorted snapshot file (gzipped)
+     * @throws IOException when there is a problem reading or writing temporary files
+     */
+    public File finish() throws IOException {
+        if (chunkCount > 0 || chunkFiles.isEmpty()) {
+            writeChunk();
+        }
+        long start = System.currentTimeMillis();
+        result = File.createTempFile("sitemap-snapshot-", ".gz", workDir);
+        List<SnapshotReader> readers = new ArrayList<>(chunkFiles.size());
+        try (Writer out = openWriter(result)) {
+            // records with the same key are written in the order in which they were added, so the merge is stable
+            Comparator<SnapshotReader> order = (r1, r2) -> compareKeys(r1.getKey(), r2.getKey());
+            PriorityQueue<SnapshotReader> queue = new PriorityQueue<>(Math.max(1, chunkFiles.size()),
+                    order.thenComparingInt(readers::indexOf));
+            for (File chunkFile : chunkFiles) {
+                SnapshotReader reader = new SnapshotReader(new GZIPInputStream(new FileInputStream(chunkFile), BUFFER_SIZE));
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                SnapshotReader reader = queue.poll();
+                out.write(reader.getCurrentLine());
+                out.write('\n');
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (SnapshotReader reader : readers) {
+                reader.close();
+            }
+            deleteChunks();
+        }
+        LOG.info("Merged {} snapshot chunks with {} records in {} ms", chunkFiles.size(), nrRecords,
+                System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Compare two record keys, snapshots are sorted in this order
+     * @param key1 first key
+     * @param key2 second key
+     * @return negative if key1 sorts before key2, 0 if they are equal and positive if key1 sorts after key2
+     */
+    public static int compareKeys(String key1, String key2) {
+        return key1.compareTo(key2);
+    }
+
+    /**
+     * @return the number of records added to the snapshot
+     */
+    public long getNrRecords() {
+        return nrRecords;
+    }
+
+    private static Writer openWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private void deleteChunks() {
+        for (File chunkFile : chunkFiles) {
+            deleteQuietly(chunkFile);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOG.warn("Unable to delete temporary file {}", file, e);
+        }
+    }
+
+    /**
+     * Remove all temporary files, including the final snapshot file
+     */
+    @Override
+    public void close() {
+        deleteChunks();
+        if (result != null) {
+            deleteQuietly(result);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package eu.europeana.sitemap.delta;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Pushes changed urls (added, modified or removed) to search engines
+ */
+public interface UrlNotifier {
+
+    /**
+     * @return name of the notifier (used for logging)
+     */
+    String getName();
+
+    /**
+     * @return maximum number of urls that can be sent in one notification
+     */
+    int getMaxBatchSize();
+
+    /**
+     * Notify about a batch of changed urls
+     * @param urls the changed urls, at most {@link #getMaxBatchSize()}
+     * @throws IOException when sending the notification failed
+     */
+    void notify(List<String> urls) throws IOException;
+}
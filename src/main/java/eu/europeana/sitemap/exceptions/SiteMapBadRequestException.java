@@ -0,0 +1,27 @@
+package eu.europeana.sitemap.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Error that is thrown when a request has invalid parameters
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class SiteMapBadRequestException extends SiteMapException {
+
+    /**
+     * Error that is thrown when a request has invalid parameters
+     * @param msg
+     */
+    public SiteMapBadRequestException(String msg) {
+        super(msg);
+    }
+
+    /**
+     * @return false because we don't want to explicitly log this type of exception
+     */
+    @Override
+    public boolean doLog() {
+        return false;
+    }
+}
@@ -0,0 +1,28 @@
+package eu.europeana.sitemap.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Error thrown when a request cannot be handled at this moment, for example because the server is too busy or the
+ * storage provider did not respond in time. Clients are expected to try again later.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class SiteMapUnavailableException extends SiteMapException {
+
+    /**
+     * Error thrown when a request cannot be handled at this moment
+     * @param s
+     */
+    public SiteMapUnavailableException(String s) {
+        super(s);
+    }
+
+    /**
+     * @return false because this is an expected situation under heavy load that we don't want to log explicitly
+     */
+    @Override
+    public boolean doLog() {
+        return false;
+    }
+}
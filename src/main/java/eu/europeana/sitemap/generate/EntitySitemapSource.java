@@ -0,0 +1,123 @@
+package eu.europeana.sitemap.generate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Lists all agents (people) and concepts (topics) from the entity collection. Entity urls have the form
+ * &lt;entityUrlPath&gt;/&lt;people|topics&gt;/&lt;id&gt;-&lt;english-label&gt;.html
+ */
+public class EntitySitemapSource extends MongoSitemapSource {
+
+    public static final String NAME = "entity";
+
+    /** Used mongo fields **/
+    private static final String CODE_URI = "codeUri";
+    private static final String PREF_LABEL_EN = "representation.prefLabel.en";
+    private static final String MODIFIED = "modified";
+
+    private static final String ENTITY_BASE_URI = "http://data.europeana.eu/";
+    private static final String AGENT_TYPE = "agent";
+    private static final String CONCEPT_TYPE = "concept";
+    private static final String PRIORITY = "0.8";
+    private static final String HTML = ".html";
+
+    private final MongoProvider mongoProvider;
+    private final String database;
+    private final String collection;
+    private final String entityUrlPath;
+
+    /**
+     * Create a new entity source
+     * @param mongoProvider provides the connection to Mongo
+     * @param database name of the database containing the entity collection
+     * @param collection name of the entity collection
+     * @param entityUrlPath path of entity urls, type, id and label will be appended to this
+     * @param throttle limits the rate at which entities are retrieved
+     * @param batchSize number of documents retrieved from Mongo per batch
+     */
+    public EntitySitemapSource(MongoProvider mongoProvider, String database, String collection, String entityUrlPath,
+                               ScanThrottle throttle, int batchSize) {
+        super(throttle, batchSize);
+        this.mongoProvider = mongoProvider;
+        this.database = database;
+        this.collection = collection;
+        this.entityUrlPath = entityUrlPath;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected DBCollection getCollection() {
+        return mongoProvider.getCollection(database, collection);
+    }
+
+    @Override
+    protected DBObject getQuery() {
+        return new BasicDBObject(CODE_URI, Pattern.compile("^" + Pattern.quote(ENTITY_BASE_URI)
+                + "(" + AGENT_TYPE + "|" + CONCEPT_TYPE + ")/"));
+    }
+
+    @Override
+    protected DBObject getProjection() {
+        DBObject fields = new BasicDBObject();
+        fields.put(CODE_URI, 1);
+        fields.put(PREF_LABEL_EN, 1);
+        fields.put(MODIFIED, 1);
+        return fields;
+    }
+
+    @Override
+    protected SitemapEntry toEntry(DBObject document) {
+        // e.g. http://data.europeana.eu/agent/base/146741
+        String[] uriParts = document.get(CODE_URI).toString().substring(ENTITY_BASE_URI.length()).split("/");
+        String label = getEnglishLabel(document);
+        if (uriParts.length < 3 || label == null) {
+            return null;
+        }
+        String portalType = AGENT_TYPE.equals(uriParts[0]) ? "people" : "topics";
+        String key = "/" + portalType + "/" + uriParts[uriParts.length - 1] + "-" + toSlug(label);
+        Object modified = document.get(MODIFIED);
+        return new SitemapEntry(key, getUrlPath(key), PRIORITY, modified instanceof Date ? (Date) modified : null);
+    }
+
+    private static String getEnglishLabel(DBObject document) {
+        Object representation = document.get("representation");
+        if (!(representation instanceof DBObject)) {
+            return null;
+        }
+        Object prefLabel = ((DBObject) representation).get("prefLabel");
+        if (!(prefLabel instanceof DBObject)) {
+            return null;
+        }
+        Object english = ((DBObject) prefLabel).get("en");
+        if (english instanceof List && !((List) english).isEmpty()) {
+            return ((List) english).get(0).toString();
+        }
+        return (english == null ? null : english.toString());
+    }
+
+    /**
+     * @param label english label of an entity
+     * @return the label in lowercase with all sequences of other characters than letters and digits replaced by a dash
+     */
+    static String toSlug(String label) {
+        return label.toLowerCase(Locale.ENGLISH).replaceAll("[^\\p{L}\\p{N}]+", "-").replaceAll("(^-|-$)", "");
+    }
+
+    @Override
+    public String getUrlPath(String key) {
+        return entityUrlPath + key + HTML;
+    }
+}
@@ -0,0 +1,25 @@
+package eu.europeana.sitemap.generate;
+
+import java.io.Closeable;
+
+/**
+ * Iterates over all entries of a {@link SitemapSource}
+ */
+public interface EntryCursor extends Closeable {
+
+    /**
+     * @return true if there are more entries
+     */
+    boolean hasNext();
+
+    /**
+     * @return the next entry
+     */
+    SitemapEntry next();
+
+    /**
+     * Release all resources (e.g. the database cursor)
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,267 @@
+package eu.europeana.sitemap.generate;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timings and sizes of one sitemap generation run, so the generation pipeline can be profiled on real data.
+ * Stage timings are summed over all threads, so with multiple sources or variants their total can exceed the duration.
+ *
+ * Stages are
+ * <ul>
+ *     <li>fetch: retrieving documents from the database cursor (including the BSON decoding done by the driver)</li>
+ *     <li>throttle: waiting before fetching so the database isn't overloaded (see ScanThrottle)</li>
+ *     <li>map: converting documents to sitemap entries</li>
+ *     <li>render: generating the xml of all entries and counting their (UTF-8) size</li>
+ *     <li>serialize: converting the xml of a file to a string</li>
+ *     <li>save: saving a file to the sink (i.e. storage)</li>
+ * </ul>
+ */
+public class GenerationStats {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean dryRun;
+    private final long startNanos = System.nanoTime();
+    private final long startGcTimeMs;
+    private final long startGcCount;
+
+    private final LongAdder fetchNanos = new LongAdder();
+    private final LongAdder throttleNanos = new LongAdder();
+    private final LongAdder mapNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+    private final LongAdder serializeNanos = new LongAdder();
+    private final LongAdder saveNanos = new LongAdder();
+    private final LongAdder nrRecords = new LongAdder();
+    private final LongAdder nrFiles = new LongAdder();
+    private final LongAdder totalBytes = new LongAdder();
+    private final LongAccumulator minFileBytes = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator maxFileBytes = new LongAccumulator(Math::max, 0);
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    private volatile long durationMs = -1;
+    private volatile long gcTimeMs;
+    private volatile long gcCount;
+
+    /**
+     * Start collecting statistics
+     * @param dryRun true if the generated files are not saved
+     */
+    public GenerationStats(boolean dryRun) {
+        this.dryRun = dryRun;
+        long[] gc = getGcTotals();
+        this.startGcTimeMs = gc[0];
+        this.startGcCount = gc[1];
+    }
+
+    private static long[] getGcTotals() {
+        long time = 0;
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return new long[]{time, count};
+    }
+
+    /**
+     * @return the number of bytes allocated so far by the current thread, or -1 if that is not supported by the JVM
+     */
+    static long getThreadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the bytes allocated by the current thread since the provided start value
+     * @param start value of {@link #getThreadAllocatedBytes()} when the current thread started its work
+     */
+    void addAllocatedSince(long start) {
+        if (start >= 0) {
+            allocatedBytes.add(getThreadAllocatedBytes() - start);
+        }
+    }
+
+    void addFetch(long nanos) {
+        fetchNanos.add(nanos);
+    }
+
+    void addThrottle(long nanos) {
+        throttleNanos.add(nanos);
+    }
+
+    void addMap(long nanos) {
+        mapNanos.add(nanos);
+    }
+
+    void addRender(long nanos) {
+        renderNanos.add(nanos);
+    }
+
+    void addSerialize(long nanos) {
+        serializeNanos.add(nanos);
+    }
+
+    void addSave(long nanos) {
+        saveNanos.add(nanos);
+    }
+
+    void addRecords(long count) {
+        nrRecords.add(count);
+    }
+
+    void addFile(long bytes) {
+        nrFiles.increment();
+        totalBytes.add(bytes);
+        minFileBytes.accumulate(bytes);
+        maxFileBytes.accumulate(bytes);
+    }
+
+    /**
+     * @param text some text
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the size of the text in bytes when encoded as UTF-8 (without actually encoding it)
+     */
+    static long getUtf8Length(CharSequence text, int start, int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                result++;
+            } else if (c < 0x800) {
+                result += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                result += 4;
+                i++;
+            } else {
+                result += 3;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stop collecting, this sets the duration and garbage collection totals
+     */
+    public void finish() {
+        long[] gc = getGcTotals();
+        gcTimeMs = gc[0] - startGcTimeMs;
+        gcCount = gc[1] - startGcCount;
+        durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static long toMs(LongAdder nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos.sum());
+    }
+
+    private double perSecond(double value) {
+        return (durationMs <= 0 ? 0 : value * 1000 / durationMs);
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public long getNrRecords() {
+        return nrRecords.sum();
+    }
+
+    public double getRecordsPerSecond() {
+        return perSecond(nrRecords.sum());
+    }
+
+    public long getFetchMs() {
+        return toMs(fetchNanos);
+    }
+
+    /**
+     * @return time spent waiting for the Mongo scan throttle, summed over all sources
+     */
+    public long getThrottleMs() {
+        return toMs(throttleNanos);
+    }
+
+    public long getMapMs() {
+        return toMs(mapNanos);
+    }
+
+    public long getRenderMs() {
+        return toMs(renderNanos);
+    }
+
+    public long getSerializeMs() {
+        return toMs(serializeNanos);
+    }
+
+    public long getSaveMs() {
+        return toMs(saveNanos);
+    }
+
+    public long getNrFiles() {
+        return nrFiles.sum();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.sum();
+    }
+
+    public long getMinFileBytes() {
+        return (nrFiles.sum() == 0 ? 0 : minFileBytes.get());
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes.get();
+    }
+
+    public long getAvgFileBytes() {
+        long files = nrFiles.sum();
+        return (files == 0 ? 0 : totalBytes.sum() / files);
+    }
+
+    /**
+     * @return number of bytes allocated by the generation threads (0 if not supported by the JVM)
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    public double getAllocationRateMbPerSecond() {
+        return perSecond(allocatedBytes.sum() / (1024.0 * 1024.0));
+    }
+
+    /**
+     * @return time spent in garbage collection by the whole JVM during the run
+     */
+    public long getGcTimeMs() {
+        return gcTimeMs;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%d records in %d ms (%.0f records/s), %d files (avg %d, min %d, max %d bytes). "
+                        + "Stage times: fetch %d ms, throttle %d ms, map %d ms, render %d ms, serialize %d ms, "
+                        + "save %d ms. Allocated %d MB (%.1f MB/s), gc %d ms (%d collections)",
+                (dryRun ? "Dry run: " : ""), getNrRecords(), durationMs, getRecordsPerSecond(), getNrFiles(),
+                getAvgFileBytes(), getMinFileBytes(), getMaxFileBytes(), getFetchMs(), getThrottleMs(), getMapMs(),
+                getRenderMs(), getSerializeMs(), getSaveMs(), getAllocatedBytes() / (1024 * 1024),
+                getAllocationRateMbPerSecond(), gcTimeMs, gcCount);
+    }
+}
@@ -0,0 +1,195 @@
+package eu.europeana.sitemap.generate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Adds images to the entries of a record source, so they are listed as image sitemap entries. Images are not retrieved
+ * per record, but in bulk: the cursor reads ahead a batch of records and retrieves the aggregations of all these records
+ * with a single query. These queries are paced by the scan throttle, like the record scans themselves.
+ *
+ * Only edm:object is used. It is meant for previews so it's always an image, whereas edm:isShownBy may be any type of
+ * media and its type is only known from its web resource.
+ */
+public class ImageSitemapSource implements SitemapSource {
+
+    private static final Logger LOG = LogManager.getLogger(ImageSitemapSource.class);
+
+    /** Used mongo fields **/
+    private static final String ABOUT = "about";
+    private static final String OBJECT = "edmObject";
+
+    /** The provider aggregation of a record has the same id as the record, prefixed with this **/
+    private static final String AGGREGATION_PREFIX = "/aggregation/provider";
+
+    private final SitemapSource records;
+    private final MongoProvider mongoProvider;
+    private final ScanThrottle throttle;
+    private final int batchSize;
+
+    /**
+     * Create a new source that adds images to the entries of a record source
+     * @param records a source listing records
+     * @param mongoProvider provides the aggregation collection
+     * @param throttle limits the rate at which aggregations are retrieved
+     * @param batchSize number of records for which images are retrieved at a time
+     */
+    public ImageSitemapSource(SitemapSource records, MongoProvider mongoProvider, ScanThrottle throttle,
+                              int batchSize) {
+        this.records = records;
+        this.mongoProvider = mongoProvider;
+        this.throttle = throttle;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public String getName() {
+        return records.getName();
+    }
+
+    @Override
+    public EntryCursor open(GenerationStats stats) {
+        return new ImageEntryCursor(records.open(stats), stats, key -> true);
+    }
+
+    @Override
+    public EntryCursor open(GenerationStats stats, Predicate<String> rendered) {
+        return new ImageEntryCursor(records.open(stats, rendered), stats, rendered);
+    }
+
+    @Override
+    public boolean isSortedByKey() {
+        return records.isSortedByKey();
+    }
+
+    @Override
+    public String getUrlPath(String key) {
+        return records.getUrlPath(key);
+    }
+
+    /**
+     * Reads ahead a batch of entries and adds the images of all entries in the batch that are rendered
+     */
+    private final class ImageEntryCursor implements EntryCursor {
+
+        private final EntryCursor entries;
+        private final GenerationStats stats;
+        private final Predicate<String> rendered;
+        private final ScanThrottle.Scan scan;
+        private final Deque<SitemapEntry> batch = new ArrayDeque<>();
+        private long nrEntries;
+        private long nrWithImage;
+        private long nrLookups;
+
+        private ImageEntryCursor(EntryCursor entries, GenerationStats stats, Predicate<String> rendered) {
+            this.entries = entries;
+            this.stats = stats;
+            this.rendered = rendered;
+            this.scan = throttle.startScan(batchSize);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batch.isEmpty()) {
+                readBatch();
+            }
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public SitemapEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.poll();
+        }
+
+        private void readBatch() {
+            List<SitemapEntry> read = new ArrayList<>(batchSize);
+            List<String> lookup = new ArrayList<>(batchSize);
+            while (read.size() < batchSize && entries.hasNext()) {
+                SitemapEntry entry = entries.next();
+                read.add(entry);
+                if (rendered.test(entry.getKey())) {
+                    lookup.add(entry.getKey());
+                }
+            }
+            if (read.isEmpty()) {
+                return;
+            }
+            Map<String, String> images = (lookup.isEmpty() ? Collections.emptyMap() : retrieveImages(lookup));
+            for (SitemapEntry entry : read) {
+                String image = images.get(entry.getKey());
+                if (image == null) {
+                    batch.add(entry);
+                } else {
+                    batch.add(entry.withImages(Collections.singletonList(image)));
+                    nrWithImage++;
+                }
+            }
+            nrEntries += read.size();
+        }
+
+        /**
+         * Retrieve the aggregations of all provided records in one query
+         * @return map of record key and (escaped) image url
+         */
+        private Map<String, String> retrieveImages(List<String> keys) {
+            List<String> aggregations = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                aggregations.add(AGGREGATION_PREFIX + key);
+            }
+            DBObject query = new BasicDBObject(ABOUT, new BasicDBObject("$in", aggregations));
+            DBObject fields = new BasicDBObject(ABOUT, 1);
+            fields.put(OBJECT, 1);
+            Map<String, String> result = new HashMap<>();
+            nrLookups++;
+            try {
+                stats.addThrottle(scan.beforeFetch());
+            } catch (InterruptedException e) {
+                // we don't wait anymore, the generation checks for interruption itself
+                LOG.warn("Interrupted while waiting for Mongo scan throttle");
+                Thread.currentThread().interrupt();
+            }
+            long start = System.nanoTime();
+            try (DBCursor cursor = mongoProvider.getAggregationCollection().find(query, fields).batchSize(batchSize)) {
+                while (cursor.hasNext()) {
+                    DBObject aggregation = cursor.next();
+                    Object image = aggregation.get(OBJECT);
+                    Object about = aggregation.get(ABOUT);
+                    if (image != null && about != null && about.toString().startsWith(AGGREGATION_PREFIX)) {
+                        result.put(about.toString().substring(AGGREGATION_PREFIX.length()),
+                                StringEscapeUtils.escapeXml(image.toString()));
+                    }
+                }
+            }
+            long fetchNanos = System.nanoTime() - start;
+            scan.afterBatch(fetchNanos);
+            stats.addFetch(fetchNanos);
+            return result;
+        }
+
+        @Override
+        public void close() {
+            LOG.info("Added images to {} of {} entries of {} ({} lookups)", nrWithImage, nrEntries, getName(),
+                    nrLookups);
+            entries.close();
+        }
+    }
+}
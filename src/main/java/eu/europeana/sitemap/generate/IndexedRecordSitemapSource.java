@@ -0,0 +1,136 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.index.RecordIndex;
+import eu.europeana.sitemap.index.RecordIndexStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the same records as {@link RecordSitemapSource}, but reads them from the local record index instead of
+ * scanning the record collection. Records are listed in order of their key.
+ */
+public class IndexedRecordSitemapSource implements SitemapSource {
+
+    private static final Logger LOG = LogManager.getLogger(IndexedRecordSitemapSource.class);
+
+    private final RecordIndexStore indexStore;
+    private final String name;
+    private final String recordUrlPath;
+    private final int minRecordCompleteness;
+    private final int maxRecordCompleteness;
+
+    /**
+     * Create a new record source that reads from the local record index
+     * @param indexStore provides the record index
+     * @param name name of the source, see also {@link RecordSitemapSource#getTierSourceName(String)}
+     * @param recordUrlPath path of record urls, the record id and '.html' will be appended to this
+     * @param minRecordCompleteness only records with at least this completeness are listed, use -1 for no minimum
+     * @param maxRecordCompleteness only records with at most this completeness are listed, use -1 for no maximum
+     */
+    public IndexedRecordSitemapSource(RecordIndexStore indexStore, String name, String recordUrlPath,
+                                      int minRecordCompleteness, int maxRecordCompleteness) {
+        this.indexStore = indexStore;
+        this.name = name;
+        this.recordUrlPath = recordUrlPath;
+        this.minRecordCompleteness = minRecordCompleteness;
+        this.maxRecordCompleteness = maxRecordCompleteness;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public EntryCursor open(GenerationStats stats) {
+        RecordIndex index = indexStore.getIndex();
+        if (index == null) {
+            throw new IllegalStateException("No record index available for " + name);
+        }
+        LOG.info("Reading {} from record index with {} records...", name, index.getNrRecords());
+        try {
+            return new IndexEntryCursor(index.open(), stats);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening record index", e);
+        }
+    }
+
+    @Override
+    public boolean isSortedByKey() {
+        return true;
+    }
+
+    @Override
+    public String getUrlPath(String key) {
+        return RecordSitemapSource.getUrlPath(recordUrlPath, key);
+    }
+
+    private boolean isIncluded(int completeness) {
+        return (minRecordCompleteness < 0 || completeness >= minRecordCompleteness)
+                && (maxRecordCompleteness < 0 || completeness <= maxRecordCompleteness);
+    }
+
+    /**
+     * Maps index records to entries while iterating, skipping records that are not part of this source
+     */
+    private final class IndexEntryCursor implements EntryCursor {
+
+        private final RecordIndex.Cursor cursor;
+        private final GenerationStats stats;
+        private SitemapEntry nextEntry;
+        private boolean finished;
+
+        private IndexEntryCursor(RecordIndex.Cursor cursor, GenerationStats stats) {
+            this.cursor = cursor;
+            this.stats = stats;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextEntry == null && !finished) {
+                long start = System.nanoTime();
+                try {
+                    finished = !cursor.next();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error reading record index", e);
+                }
+                long fetched = System.nanoTime();
+                stats.addFetch(fetched - start);
+                if (!finished && isIncluded(cursor.getCompleteness())) {
+                    String key = cursor.getKey();
+                    long lastModifiedDay = cursor.getLastModifiedDay();
+                    nextEntry = new SitemapEntry(key, getUrlPath(key),
+                            RecordSitemapSource.getPriority(cursor.getCompleteness()),
+                            lastModifiedDay < 0 ? null : new Date(TimeUnit.DAYS.toMillis(lastModifiedDay)));
+                    stats.addMap(System.nanoTime() - fetched);
+                }
+            }
+            return nextEntry != null;
+        }
+
+        @Override
+        public SitemapEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SitemapEntry result = nextEntry;
+            nextEntry = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing record index", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eu.europeana.sitemap.generate;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for sources that retrieve their items from a Mongo collection. Subclasses define the query, the retrieved
+ * fields and how a document is mapped to a sitemap entry.
+ */
+public abstract class MongoSitemapSource implements SitemapSource {
+
+    private static final Logger LOG = LogManager.getLogger(MongoSitemapSource.class);
+
+    private final ScanThrottle throttle;
+    private final int batchSize;
+
+    /**
+     * @param throttle limits the rate at which documents are retrieved
+     * @param batchSize number of documents retrieved from Mongo per batch
+     */
+    protected MongoSitemapSource(ScanThrottle throttle, int batchSize) {
+        this.throttle = throttle;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the collection containing all items
+     */
+    protected abstract DBCollection getCollection();
+
+    /**
+     * @return query selecting all items that should be in the sitemap
+     */
+    protected abstract DBObject getQuery();
+
+    /**
+     * @return fields that need to be retrieved
+     */
+    protected abstract DBObject getProjection();
+
+    /**
+     * @param document a retrieved document
+     * @return sitemap entry for the document, or null if the document should be skipped
+     */
+    protected abstract SitemapEntry toEntry(DBObject document);
+
+    @Override
+    public EntryCursor open(GenerationStats stats) {
+        LOG.info("Starting {} query...", getName());
+        DBCursor cursor = getCollection().find(getQuery(), getProjection()).batchSize(batchSize);
+        return new MongoEntryCursor(cursor, throttle.startScan(batchSize), stats);
+    }
+
+    /**
+     * Maps documents to entries while iterating, skipping documents that can't be mapped. Retrieval is paced by the
+     * throttle
+     */
+    private final class MongoEntryCursor implements EntryCursor {
+
+        private final DBCursor cursor;
+        private final ScanThrottle.Scan scan;
+        private final GenerationStats stats;
+        private SitemapEntry nextEntry;
+
+        private MongoEntryCursor(DBCursor cursor, ScanThrottle.Scan scan, GenerationStats stats) {
+            this.cursor = cursor;
+            this.scan = scan;
+            this.stats = stats;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextEntry == null) {
+                waitForThrottle();
+                long start = System.nanoTime();
+                DBObject document = (cursor.hasNext() ? cursor.next() : null);
+                long fetched = System.nanoTime();
+                stats.addFetch(fetched - start);
+                scan.afterFetch(fetched - start);
+                if (document == null) {
+                    break;
+                }
+                nextEntry = toEntry(document);
+                stats.addMap(System.nanoTime() - fetched);
+            }
+            return nextEntry != null;
+        }
+
+        private void waitForThrottle() {
+            try {
+                stats.addThrottle(scan.beforeFetch());
+            } catch (InterruptedException e) {
+                // we don't wait anymore, the generation checks for interruption itself
+                LOG.warn("Interrupted while waiting for Mongo scan throttle");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public SitemapEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SitemapEntry result = nextEntry;
+            nextEntry = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package eu.europeana.sitemap.generate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Date;
+
+/**
+ * Lists all records (with a minimum completeness) from the record collection. Records can optionally be split in
+ * tiers by completeness, where each tier is a separate source with its own file set.
+ */
+public class RecordSitemapSource extends MongoSitemapSource {
+
+    private static final Logger LOG = LogManager.getLogger(RecordSitemapSource.class);
+
+    /** Used mongo fields **/
+    private static final String ABOUT = "about";
+    private static final String LASTUPDATED = "timestampUpdated";
+    private static final String COMPLETENESS = "europeanaCompleteness";
+
+    private static final String HTML = ".html";
+
+    private final MongoProvider mongoProvider;
+    private final String name;
+    private final String recordUrlPath;
+    private final int minRecordCompleteness;
+    private final int maxRecordCompleteness;
+
+    /**
+     * Create a new record source for all records
+     * @param mongoProvider provides the record collection
+     * @param recordUrlPath path of record urls, the record id and '.html' will be appended to this
+     * @param minRecordCompleteness only records with at least this completeness are listed, use -1 to list all records
+     * @param throttle limits the rate at which records are retrieved
+     * @param batchSize number of documents retrieved from Mongo per batch
+     */
+    public RecordSitemapSource(MongoProvider mongoProvider, String recordUrlPath, int minRecordCompleteness,
+                               ScanThrottle throttle, int batchSize) {
+        this(mongoProvider, Naming.DEFAULT_FILE_SET, recordUrlPath, minRecordCompleteness, -1, throttle, batchSize);
+    }
+
+    /**
+     * Create a new record source for one completeness tier
+     * @param mongoProvider provides the record collection
+     * @param name name of the source, see also {@link #getTierSourceName(String)}
+     * @param recordUrlPath path of record urls, the record id and '.html' will be appended to this
+     * @param minRecordCompleteness only records with at least this completeness are listed, use -1 for no minimum
+     * @param maxRecordCompleteness only records with at most this completeness are listed, use -1 for no maximum
+     * @param throttle limits the rate at which records are retrieved
+     * @param batchSize number of documents retrieved from Mongo per batch
+     */
+    @SuppressWarnings("squid:S00107") // all parameters are needed to define the source
+    public RecordSitemapSource(MongoProvider mongoProvider, String name, String recordUrlPath,
+                               int minRecordCompleteness, int maxRecordCompleteness, ScanThrottle throttle,
+                               int batchSize) {
+        super(throttle, batchSize);
+        this.mongoProvider = mongoProvider;
+        this.name = name;
+        this.recordUrlPath = recordUrlPath;
+        this.minRecordCompleteness = minRecordCompleteness;
+        this.maxRecordCompleteness = maxRecordCompleteness;
+    }
+
+    /**
+     * @param tier name of a completeness tier
+     * @return name of the source (and file set) of the tier
+     */
+    public static String getTierSourceName(String tier) {
+        return Naming.DEFAULT_FILE_SET + "-" + tier;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    protected DBCollection getCollection() {
+        return mongoProvider.getCollection();
+    }
+
+    @Override
+    protected DBObject getQuery() {
+        DBObject query = new BasicDBObject();
+        BasicDBObject completeness = new BasicDBObject();
+        // 2017-05-30 as part of ticket #624 we are filtering records based on completeness value.
+        // This is an experiment to see if high-quality records improve the number of indexed records
+        if (minRecordCompleteness >= 0) {
+            LOG.info("Filtering {} based on Europeana Completeness score of at least {}", name, minRecordCompleteness);
+            completeness.put("$gte", minRecordCompleteness);
+        }
+        if (maxRecordCompleteness >= 0) {
+            LOG.info("Filtering {} based on Europeana Completeness score of at most {}", name, maxRecordCompleteness);
+            completeness.put("$lte", maxRecordCompleteness);
+        }
+        if (!completeness.isEmpty()) {
+            query.put(COMPLETENESS, completeness);
+        }
+        return query;
+    }
+
+    @Override
+    protected DBObject getProjection() {
+        DBObject fields = new BasicDBObject();
+        fields.put(ABOUT, 1);
+        fields.put(COMPLETENESS, 1);
+        fields.put(LASTUPDATED, 1);
+        return fields;
+    }
+
+    @Override
+    protected SitemapEntry toEntry(DBObject document) {
+        String about = document.get(ABOUT).toString();
+        int completeness = Integer.parseInt(document.get(COMPLETENESS).toString());
+        Object timestampUpdated = document.get(LASTUPDATED);
+        // very old records do not have a timestampUpdated or timestampCreated field
+        Date dateUpdated = (timestampUpdated == null ? null : (Date) timestampUpdated);
+        return new SitemapEntry(about, getUrlPath(about), getPriority(completeness), dateUpdated);
+    }
+
+    /**
+     * @param completeness europeanaCompleteness of a record
+     * @return sitemap priority of a record with the provided completeness
+     */
+    public static String getPriority(int completeness) {
+        return completeness > 9 ? "1.0" : ("0." + completeness);
+    }
+
+    @Override
+    public String getUrlPath(String key) {
+        return getUrlPath(recordUrlPath, key);
+    }
+
+    /**
+     * @param recordUrlPath path of record urls
+     * @param about record id
+     * @return path of the url of the record
+     */
+    public static String getUrlPath(String recordUrlPath, String about) {
+        return recordUrlPath + about + HTML;
+    }
+}
@@ -0,0 +1,67 @@
+package eu.europeana.sitemap.generate;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * One url in a sitemap file, independent of the host on which it will be published
+ */
+public final class SitemapEntry {
+
+    private final String key;
+    private final String urlPath;
+    private final String priority;
+    private final Date lastModified;
+    private final List<String> images;
+
+    /**
+     * Create a new sitemap entry
+     * @param key unique key of the item within its source (e.g. the record id)
+     * @param urlPath path of the url, to be appended to the portal base url
+     * @param priority sitemap priority (optional)
+     * @param lastModified last modification date (optional)
+     */
+    public SitemapEntry(String key, String urlPath, String priority, Date lastModified) {
+        this(key, urlPath, priority, lastModified, Collections.emptyList());
+    }
+
+    private SitemapEntry(String key, String urlPath, String priority, Date lastModified, List<String> images) {
+        this.key = key;
+        this.urlPath = urlPath;
+        this.priority = priority;
+        this.lastModified = lastModified;
+        this.images = images;
+    }
+
+    /**
+     * @param images XML-escaped absolute urls of images shown on the page of this entry
+     * @return a copy of this entry with the provided images
+     */
+    public SitemapEntry withImages(List<String> images) {
+        return new SitemapEntry(key, urlPath, priority, lastModified, images);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getUrlPath() {
+        return urlPath;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return XML-escaped absolute urls of images shown on the page of this entry, empty if there are none
+     */
+    public List<String> getImages() {
+        return images;
+    }
+}
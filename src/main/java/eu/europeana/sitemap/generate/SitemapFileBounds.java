@@ -0,0 +1,103 @@
+package eu.europeana.sitemap.generate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lists the range and first key of all sitemap files of a file set, for sources that are sorted by key (see
+ * {@link SitemapSource#isSortedByKey()}). A file contains all entries with a key from its own first key up to the
+ * first key of the next file, so with this list we can find out which file contains a particular entry.
+ *
+ * The textual representation has one line per file, containing the from and to values and the first key separated by
+ * tabs.
+ */
+public final class SitemapFileBounds {
+
+    private static final char SEPARATOR = '\t';
+
+    private final long[] from;
+    private final long[] to;
+    private final String[] firstKeys;
+
+    private SitemapFileBounds(long[] from, long[] to, String[] firstKeys) {
+        this.from = from;
+        this.to = to;
+        this.firstKeys = firstKeys;
+    }
+
+    /**
+     * Create bounds from their textual representation
+     * @param text bounds file contents
+     * @return new bounds
+     * @throws NumberFormatException if the text contains invalid values
+     */
+    public static SitemapFileBounds parse(String text) {
+        List<String[]> lines = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty()) {
+                String[] parts = line.split(String.valueOf(SEPARATOR), 3);
+                if (parts.length != 3) {
+                    throw new NumberFormatException("Invalid sitemap file bounds " + line);
+                }
+                lines.add(parts);
+            }
+        }
+        long[] from = new long[lines.size()];
+        long[] to = new long[lines.size()];
+        String[] firstKeys = new String[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            from[i] = Long.parseLong(lines.get(i)[0]);
+            to[i] = Long.parseLong(lines.get(i)[1]);
+            firstKeys[i] = lines.get(i)[2];
+        }
+        return new SitemapFileBounds(from, to, firstKeys);
+    }
+
+    /**
+     * Add a file to the textual representation of bounds
+     * @param bounds the bounds
+     * @param from start index of the file
+     * @param to end index of the file
+     * @param firstKey key of the first entry in the file
+     */
+    public static void appendFile(StringBuilder bounds, long from, long to, String firstKey) {
+        bounds.append(from).append(SEPARATOR).append(to).append(SEPARATOR).append(firstKey).append('\n');
+    }
+
+    /**
+     * @return the number of files
+     */
+    public int size() {
+        return firstKeys.length;
+    }
+
+    /**
+     * @param file number of the file
+     * @return start index of the file
+     */
+    public long getFrom(int file) {
+        return from[file];
+    }
+
+    /**
+     * @param file number of the file
+     * @return end index of the file
+     */
+    public long getTo(int file) {
+        return to[file];
+    }
+
+    /**
+     * @param key key of an entry
+     * @return number of the file that contains (or would contain) the entry, or -1 if there are no files
+     */
+    public int findFile(String key) {
+        int index = Arrays.binarySearch(firstKeys, key);
+        if (index >= 0) {
+            return index;
+        }
+        // entries before the first key of the first file belong to the first file
+        return Math.max(-index - 2, Math.min(0, firstKeys.length - 1));
+    }
+}
@@ -0,0 +1,479 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.delta.SnapshotWriter;
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.service.DeltaFeedService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates a complete sitemap from one or more {@link SitemapSource}s. All sources are processed concurrently on a
+ * shared worker pool, each into its own set of sitemap files. When all sources are done, the files of all sources are
+ * listed in one sitemap index and one manifest.
+ *
+ * Each source is scanned only once, regardless of the number of {@link SitemapVariant}s. Entries are collected in
+ * chunks and each chunk is handed to the renderers of all variants in parallel, while the scan continues with the next
+ * chunk. Every variant gets its own file set per source and its own sitemap index.
+ *
+ * A sitemap file is finished when it reaches either the maximum number of urls or the maximum (UTF-8 encoded) size,
+ * whichever comes first. Since alternate urls make files of some variants larger than others, the variants of one
+ * source don't necessarily have the same number of files.
+ */
+public class SitemapGenerator {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapGenerator.class);
+
+    private final ExecutorService workerPool;
+    private final ExecutorService renderPool;
+    private final List<SitemapVariant> variants;
+    private final int maxUrlsPerFile;
+    private final long maxBytesPerFile;
+    private final DeltaFeedService deltaFeedService;
+
+    /**
+     * Create a new generator
+     * @param threads number of sources that can be processed concurrently
+     * @param variants variants to render, the first one is the default variant
+     * @param maxUrlsPerFile maximum number of urls per sitemap file, also the number of entries rendered at a time
+     * @param maxBytesPerFile maximum size of a sitemap file in bytes
+     * @param deltaFeedService used for saving snapshots of each source, can be null if no snapshots should be made
+     */
+    public SitemapGenerator(int threads, List<SitemapVariant> variants, int maxUrlsPerFile, long maxBytesPerFile,
+                            DeltaFeedService deltaFeedService) {
+        this.workerPool = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("sitemap-generate-"));
+        // each source has at most one file per variant being rendered, so there's never a need to queue
+        this.renderPool = Executors.newFixedThreadPool(threads * variants.size(),
+                new CustomizableThreadFactory("sitemap-render-"));
+        this.variants = new ArrayList<>(variants);
+        this.maxUrlsPerFile = maxUrlsPerFile;
+        this.maxBytesPerFile = maxBytesPerFile;
+        this.deltaFeedService = deltaFeedService;
+    }
+
+    /**
+     * Generate the sitemap files of some sources and keep the existing files of all other sources. The sitemap index
+     * of each variant and the manifest list the files of all sources.
+     * @param sources all sources to include in the sitemap, in the order in which they are listed in the index
+     * @param targets for each source that is regenerated, the deployment (blue/green) where its files are written
+     * @param previous manifest listing the existing files of the sources that are not regenerated, can be null if
+     *                 all sources are regenerated
+     * @param deployment name of the deployment (blue/green) the manifest is saved for
+     * @param sink destination of all generated files
+     * @param stats collects timings and sizes of the generation (it is finished when generation is done)
+     * @throws SiteMapException when generation of one of the sources fails, or if there are no existing files for a
+     * source that is not regenerated
+     * @throws InterruptedException when generation is interrupted
+     */
+    public void generate(List<SitemapSource> sources, Map<String, String> targets, SitemapManifest previous,
+                         String deployment, SitemapSink sink, GenerationStats stats)
+            throws SiteMapException, InterruptedException {
+        List<Future<List<FileSet>>> tasks = new ArrayList<>(sources.size());
+        for (SitemapSource source : sources) {
+            String target = targets.get(source.getName());
+            if (target == null) {
+                tasks.add(CompletableFuture.completedFuture(keepFileSets(source, previous)));
+            } else {
+                tasks.add(workerPool.submit(() -> generateFileSets(source, target, sink, stats)));
+            }
+        }
+
+        List<StringBuilder> indexes = new ArrayList<>(variants.size());
+        for (SitemapVariant variant : variants) {
+            indexes.add(variant.getRenderer().startIndex());
+        }
+        StringBuilder manifest = new StringBuilder();
+        long nrRecords = 0;
+        int nrSitemaps = 0;
+        try {
+            for (Future<List<FileSet>> task : tasks) {
+                List<FileSet> fileSets = getResult(task);
+                for (int i = 0; i < variants.size(); i++) {
+                    FileSet fileSet = fileSets.get(i);
+                    SitemapManifest.appendLocation(manifest, fileSet.name, fileSet.location);
+                    for (long[] range : fileSet.ranges) {
+                        variants.get(i).getRenderer().appendIndexEntry(indexes.get(i),
+                                Naming.getPublicSitemapFileName(fileSet.name, range[0], range[1]));
+                        SitemapManifest.appendEntry(manifest, fileSet.name, range[0], range[1]);
+                    }
+                    nrSitemaps += fileSet.ranges.size();
+                }
+                nrRecords += fileSets.get(0).nrRecords;
+            }
+        } finally {
+            // if one source fails there's no point in continuing with the others
+            for (Future<List<FileSet>> task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        if (deltaFeedService != null && deltaFeedService.isEnabled()) {
+            // the delta sitemap lists urls of the default variant only
+            variants.get(0).getRenderer().appendIndexEntry(indexes.get(0), Naming.SITEMAP_DELTA_FILE);
+        }
+        sink.save(deployment + Naming.MANIFEST_SUFFIX, manifest.toString());
+        for (int i = 0; i < variants.size(); i++) {
+            sink.save(variants.get(i).getIndexFileName(), variants.get(i).getRenderer().endIndex(indexes.get(i)));
+        }
+        stats.finish();
+        LOG.info("Records processed {}, listed {} sitemap files ({} sources kept) and written {} sitemap index files",
+                nrRecords, nrSitemaps, sources.size() - targets.size(), variants.size());
+        LOG.info("Generation stats: {}", stats);
+    }
+
+    /**
+     * @return the existing file sets of a source that is not regenerated
+     */
+    private List<FileSet> keepFileSets(SitemapSource source, SitemapManifest previous) throws SiteMapException {
+        List<FileSet> result = new ArrayList<>(variants.size());
+        for (SitemapVariant variant : variants) {
+            String name = variant.getFileSetName(source.getName());
+            String location = (previous == null ? null : previous.getLocation(name));
+            if (location == null) {
+                throw new SiteMapException("No existing files of " + name + " available, it needs to be regenerated");
+            }
+            FileSet fileSet = new FileSet(name, location);
+            fileSet.ranges.addAll(previous.getRanges(name));
+            result.add(fileSet);
+        }
+        LOG.info("Keeping existing files of {}", source.getName());
+        return result;
+    }
+
+    private static <T> T getResult(Future<T> task) throws SiteMapException, InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SiteMapException) {
+                throw (SiteMapException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new SiteMapException("Error generating sitemap files", cause);
+        }
+    }
+
+    /**
+     * Generate all sitemap files of one source, for all variants
+     * @return a file set for each variant (in the same order as the variants)
+     */
+    private List<FileSet> generateFileSets(SitemapSource source, String deployment, SitemapSink sink,
+                                           GenerationStats stats) throws SiteMapException, InterruptedException {
+        long allocatedStart = GenerationStats.getThreadAllocatedBytes();
+        List<FileSet> result = new ArrayList<>(variants.size());
+        for (SitemapVariant variant : variants) {
+            result.add(new FileSet(variant.getFileSetName(source.getName()), deployment));
+        }
+        List<Future<Void>> rendering = new ArrayList<>();
+        SnapshotWriter snapshot = (deltaFeedService == null ? null : deltaFeedService.createSnapshotWriter());
+        try (EntryCursor cursor = source.open(stats)) {
+            LOG.info("Retrieving {} items...", source.getName());
+            long from = 0;
+            long nrRecords = 0;
+            List<SitemapEntry> chunk = new ArrayList<>(maxUrlsPerFile);
+
+            while (cursor.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Generation of " + source.getName() + " was interrupted");
+                }
+                SitemapEntry entry = cursor.next();
+                chunk.add(entry);
+                nrRecords++;
+                snapshot = addToSnapshot(snapshot, entry);
+
+                boolean last = !cursor.hasNext();
+                if (chunk.size() == maxUrlsPerFile || last) {
+                    // wait until the previous chunk is done, so we never keep more than 2 chunks in memory
+                    waitFor(rendering);
+                    rendering = render(chunk, deployment, from, last, result, sink, stats);
+                    chunk = new ArrayList<>(maxUrlsPerFile);
+                    from = nrRecords;
+                }
+            }
+            waitFor(rendering);
+            for (FileSet fileSet : result) {
+                fileSet.nrRecords = nrRecords;
+            }
+            stats.addRecords(nrRecords);
+            if (source.isSortedByKey()) {
+                for (FileSet fileSet : result) {
+                    sink.save(Naming.getBoundsFileName(deployment, fileSet.name), fileSet.bounds.toString());
+                }
+            }
+            saveSnapshot(snapshot, Naming.getSnapshotFileName(deployment, source.getName()));
+        } finally {
+            for (Future<Void> task : rendering) {
+                task.cancel(true);
+            }
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            stats.addAllocatedSince(allocatedStart);
+        }
+        LOG.info("Finished {}: {} items in {} files per variant", source.getName(), result.get(0).nrRecords,
+                result.get(0).ranges.size());
+        return result;
+    }
+
+    /**
+     * Render a chunk of entries for each variant in parallel. Files that are full are saved, the last file of each
+     * variant is kept open for the next chunk, unless this is the last chunk of the source
+     */
+    private List<Future<Void>> render(List<SitemapEntry> chunk, String deployment, long from, boolean last,
+                                      List<FileSet> fileSets, SitemapSink sink, GenerationStats stats) {
+        List<Future<Void>> result = new ArrayList<>(variants.size());
+        for (int i = 0; i < variants.size(); i++) {
+            SitemapRenderer renderer = variants.get(i).getRenderer();
+            FileSet fileSet = fileSets.get(i);
+            result.add(renderPool.submit(() -> {
+                // only one chunk of a file set is rendered at a time, and waitFor() makes its state visible to others
+                long allocatedStart = GenerationStats.getThreadAllocatedBytes();
+                long start = System.nanoTime();
+                long savingNanos = 0;
+                long index = from;
+                for (SitemapEntry entry : chunk) {
+                    if (fileSet.file == null) {
+                        startFile(fileSet, renderer, index, entry.getKey());
+                    }
+                    int entryStart = fileSet.file.length();
+                    renderer.appendEntry(fileSet.file, entry);
+                    long entryBytes = GenerationStats.getUtf8Length(fileSet.file, entryStart, fileSet.file.length());
+                    if (fileSet.fileUrls > 0 && fileSet.fileBytes + entryBytes > maxBytesPerFile) {
+                        // entry doesn't fit anymore, so move it to a new file
+                        fileSet.file.setLength(entryStart);
+                        savingNanos += saveFile(fileSet, renderer, deployment, index, sink, stats);
+                        startFile(fileSet, renderer, index, entry.getKey());
+                        renderer.appendEntry(fileSet.file, entry);
+                    }
+                    fileSet.fileBytes += entryBytes;
+                    fileSet.fileUrls++;
+                    index++;
+                    if (fileSet.fileUrls == maxUrlsPerFile) {
+                        savingNanos += saveFile(fileSet, renderer, deployment, index, sink, stats);
+                    }
+                }
+                if (last && fileSet.file != null) {
+                    savingNanos += saveFile(fileSet, renderer, deployment, index, sink, stats);
+                }
+                stats.addRender(System.nanoTime() - start - savingNanos);
+                stats.addAllocatedSince(allocatedStart);
+                return null;
+            }));
+        }
+        return result;
+    }
+
+    private static void startFile(FileSet fileSet, SitemapRenderer renderer, long from, String firstKey) {
+        fileSet.file = renderer.startFile();
+        fileSet.fileFrom = from;
+        fileSet.fileFirstKey = firstKey;
+        fileSet.fileUrls = 0;
+        fileSet.fileBytes = GenerationStats.getUtf8Length(fileSet.file, 0, fileSet.file.length())
+                + renderer.getFileClosingSize();
+    }
+
+    /**
+     * Close and save the open file of a file set
+     * @return time spent in nanoseconds
+     */
+    private static long saveFile(FileSet fileSet, SitemapRenderer renderer, String deployment, long to,
+                                 SitemapSink sink, GenerationStats stats)
+            throws SiteMapException, InterruptedException {
+        long start = System.nanoTime();
+        String content = renderer.endFile(fileSet.file);
+        long serialized = System.nanoTime();
+        String fileName = Naming.getSitemapFileName(deployment, fileSet.name, fileSet.fileFrom, to);
+        sink.save(fileName, content);
+        long saved = System.nanoTime();
+        fileSet.ranges.add(new long[]{fileSet.fileFrom, to});
+        SitemapFileBounds.appendFile(fileSet.bounds, fileSet.fileFrom, to, fileSet.fileFirstKey);
+        stats.addSerialize(serialized - start);
+        stats.addSave(saved - serialized);
+        stats.addFile(fileSet.fileBytes);
+        LOG.info("Created sitemap file {} ({} urls, {} bytes) in {} ms", fileName, fileSet.fileUrls,
+                fileSet.fileBytes, TimeUnit.NANOSECONDS.toMillis(saved - start));
+        fileSet.file = null;
+        return saved - start;
+    }
+
+    /**
+     * Render some existing sitemap files of a source again with the current entries of the source, e.g. after some
+     * entries were changed. This only works for sources that are sorted by key: each file is rendered with all entries
+     * from its own first key up to the first key of the next file. File names (from/to) stay the same, so the sitemap
+     * index doesn't change. Files that would exceed the maximum number of urls or bytes are not saved; they are fixed
+     * by the next full generation of the source.
+     * @param source a source that is sorted by key
+     * @param bounds for each variant the bounds of the files of the source, or null if they are not available
+     * @param files for each variant the numbers of the files to render again
+     * @param locations for each variant the deployment (blue/green) where its files are stored
+     * @param sink destination of all rendered files
+     * @return names of all saved files
+     * @throws SiteMapException when rendering or saving fails
+     * @throws InterruptedException when rendering was interrupted
+     */
+    public List<String> rerender(SitemapSource source, List<SitemapFileBounds> bounds, List<Set<Integer>> files,
+                                 List<String> locations, SitemapSink sink) throws SiteMapException, InterruptedException {
+        List<Map<Integer, FileSet>> rendered = new ArrayList<>(variants.size());
+        for (int i = 0; i < variants.size(); i++) {
+            rendered.add(new HashMap<>());
+        }
+        try (EntryCursor cursor = source.open(new GenerationStats(false),
+                key -> isRendered(key, bounds, files))) {
+            while (cursor.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Rendering of " + source.getName() + " was interrupted");
+                }
+                SitemapEntry entry = cursor.next();
+                for (int i = 0; i < variants.size(); i++) {
+                    int file = getFile(entry.getKey(), bounds.get(i));
+                    if (file >= 0 && files.get(i).contains(file)) {
+                        SitemapRenderer renderer = variants.get(i).getRenderer();
+                        FileSet fileSet = rendered.get(i).computeIfAbsent(file, f -> newFileSet(source, f, renderer));
+                        int entryStart = fileSet.file.length();
+                        renderer.appendEntry(fileSet.file, entry);
+                        fileSet.fileBytes += GenerationStats.getUtf8Length(fileSet.file, entryStart, fileSet.file.length());
+                        fileSet.fileUrls++;
+                    }
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < variants.size(); i++) {
+            if (bounds.get(i) == null) {
+                continue;
+            }
+            SitemapRenderer renderer = variants.get(i).getRenderer();
+            String fileSetName = variants.get(i).getFileSetName(source.getName());
+            for (Integer file : files.get(i)) {
+                // a file can end up empty when all its entries were removed
+                FileSet fileSet = rendered.get(i).computeIfAbsent(file, f -> newFileSet(source, f, renderer));
+                if (fileSet.fileUrls > maxUrlsPerFile || fileSet.fileBytes > maxBytesPerFile) {
+                    LOG.warn("File {} of {} would contain {} urls ({} bytes), skipped until the next full generation",
+                            file, fileSetName, fileSet.fileUrls, fileSet.fileBytes);
+                    continue;
+                }
+                String fileName = Naming.getSitemapFileName(locations.get(i), fileSetName, bounds.get(i).getFrom(file),
+                        bounds.get(i).getTo(file));
+                sink.save(fileName, renderer.endFile(fileSet.file));
+                result.add(fileName);
+            }
+        }
+        LOG.info("Rendered {} files of {} again", result.size(), source.getName());
+        return result;
+    }
+
+    private static int getFile(String key, SitemapFileBounds bounds) {
+        return (bounds == null ? -1 : bounds.findFile(key));
+    }
+
+    /**
+     * @return true if the entry with this key is part of one of the files that are rendered again
+     */
+    private static boolean isRendered(String key, List<SitemapFileBounds> bounds, List<Set<Integer>> files) {
+        for (int i = 0; i < bounds.size(); i++) {
+            int file = getFile(key, bounds.get(i));
+            if (file >= 0 && files.get(i).contains(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static FileSet newFileSet(SitemapSource source, int file, SitemapRenderer renderer) {
+        FileSet result = new FileSet(source.getName(), null);
+        startFile(result, renderer, file, null);
+        return result;
+    }
+
+    private static void waitFor(List<Future<Void>> tasks) throws SiteMapException, InterruptedException {
+        for (Future<Void> task : tasks) {
+            getResult(task);
+        }
+    }
+
+    /**
+     * Add an entry to the snapshot. If that fails we stop creating the snapshot, but we do continue generating
+     * @return the snapshot writer, or null if there is no (working) snapshot writer
+     */
+    private static SnapshotWriter addToSnapshot(SnapshotWriter snapshot, SitemapEntry entry) {
+        if (snapshot != null) {
+            long lastModifiedDay = (entry.getLastModified() == null
+                    ? SnapshotWriter.UNKNOWN_DAY : TimeUnit.MILLISECONDS.toDays(entry.getLastModified().getTime()));
+            try {
+                snapshot.add(entry.getKey(), lastModifiedDay);
+            } catch (IOException e) {
+                LOG.error("Error creating snapshot, no sitemap delta will be published", e);
+                snapshot.close();
+                return null;
+            }
+        }
+        return snapshot;
+    }
+
+    private void saveSnapshot(SnapshotWriter snapshot, String snapshotName) throws SiteMapException, InterruptedException {
+        if (snapshot != null) {
+            try {
+                deltaFeedService.saveSnapshot(snapshot, snapshotName);
+            } catch (IOException e) {
+                LOG.error("Error saving snapshot {}, no sitemap delta will be published", snapshotName, e);
+            }
+        }
+    }
+
+    /**
+     * @return the variants rendered by this generator, the first one is the default variant
+     */
+    public List<SitemapVariant> getVariants() {
+        return Collections.unmodifiableList(variants);
+    }
+
+    /**
+     * Stop the worker pools
+     */
+    public void shutdown() {
+        workerPool.shutdownNow();
+        renderPool.shutdownNow();
+    }
+
+    /**
+     * Result of generating the files of one source
+     */
+    private static final class FileSet {
+        private final String name;
+        private final String location;
+        private final List<long[]> ranges = new ArrayList<>();
+        private long nrRecords;
+
+        private final StringBuilder bounds = new StringBuilder();
+
+        // the file that is currently being rendered
+        private StringBuilder file;
+        private long fileFrom;
+        private String fileFirstKey;
+        private int fileUrls;
+        private long fileBytes;
+
+        private FileSet(String name, String location) {
+            this.name = name;
+            this.location = location;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.Naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact list of all sitemap files (from/to ranges per file set) that are part of one sitemap deployment. The manifest
+ * is written during generation so requests for files that don't exist can be answered without a storage lookup.
+ *
+ * The textual format is one file per line, containing the from and to value separated by a space. For file sets other
+ * than the default set, the line starts with the name of the file set followed by a space.
+ *
+ * File sets don't have to be stored in the deployment the manifest belongs to. When only some file sets are
+ * regenerated, the others are kept where they are. A line starting with '@' followed by the name of a file set and
+ * a deployment name (separated by a space) records where the files of that set are stored.
+ */
+public final class SitemapManifest {
+
+    private static final char LOCATION_PREFIX = '@';
+
+    private final Map<String, long[]> rangesPerFileSet;
+    private final Map<String, String> locationPerFileSet;
+
+    private SitemapManifest(Map<String, long[]> rangesPerFileSet, Map<String, String> locationPerFileSet) {
+        this.rangesPerFileSet = rangesPerFileSet;
+        this.locationPerFileSet = locationPerFileSet;
+    }
+
+    /**
+     * Check if the manifest contains a file with the provided file set, from and to values
+     * @param fileSet name of the file set
+     * @param from start index of the file
+     * @param to end index of the file
+     * @return true if the file is listed in the manifest, otherwise false
+     */
+    public boolean contains(String fileSet, long from, long to) {
+        long[] ranges = rangesPerFileSet.get(fileSet);
+        return ranges != null && Arrays.binarySearch(ranges, pack(from, to)) >= 0;
+    }
+
+    /**
+     * @param fileSet name of the file set
+     * @return the deployment (blue/green) where the files of the file set are stored, or null if the file set is unknown
+     */
+    public String getLocation(String fileSet) {
+        return locationPerFileSet.get(fileSet);
+    }
+
+    /**
+     * @param fileSet name of the file set
+     * @return all from/to ranges of the file set in ascending order (empty if the file set is unknown)
+     */
+    public List<long[]> getRanges(String fileSet) {
+        long[] packed = rangesPerFileSet.get(fileSet);
+        if (packed == null) {
+            return Collections.emptyList();
+        }
+        List<long[]> result = new ArrayList<>(packed.length);
+        for (long range : packed) {
+            long unpacked = range ^ Long.MIN_VALUE;
+            result.add(new long[]{unpacked >>> 32, unpacked & 0xFFFF_FFFFL});
+        }
+        return result;
+    }
+
+    /**
+     * @return names of all file sets listed in the manifest, in the order in which they appear
+     */
+    public Set<String> getFileSets() {
+        return Collections.unmodifiableSet(rangesPerFileSet.keySet());
+    }
+
+    /**
+     * @return the number of files listed in the manifest
+     */
+    public int size() {
+        int result = 0;
+        for (long[] ranges : rangesPerFileSet.values()) {
+            result += ranges.length;
+        }
+        return result;
+    }
+
+    /**
+     * Create a manifest from its textual representation
+     * @param text manifest file contents
+     * @param deployment the deployment the manifest belongs to, used as location of file sets without a location
+     * @return new manifest
+     * @throws NumberFormatException if the text contains invalid values
+     */
+    public static SitemapManifest parse(String text, String deployment) {
+        Map<String, long[]> ranges = new LinkedHashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, String> locations = new HashMap<>();
+        for (String line : text.split("\n")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && trimmed.charAt(0) == LOCATION_PREFIX) {
+                String[] parts = trimmed.substring(1).split(" ");
+                locations.put(parts[0], parts[1]);
+            } else if (!trimmed.isEmpty()) {
+                String[] parts = trimmed.split(" ");
+                String fileSet = (parts.length == 3 ? parts[0] : Naming.DEFAULT_FILE_SET);
+                long from = Long.parseLong(parts[parts.length - 2]);
+                long to = Long.parseLong(parts[parts.length - 1]);
+
+                long[] setRanges = ranges.computeIfAbsent(fileSet, k -> new long[16]);
+                int count = counts.getOrDefault(fileSet, 0);
+                if (count == setRanges.length) {
+                    setRanges = Arrays.copyOf(setRanges, count * 2);
+                    ranges.put(fileSet, setRanges);
+                }
+                setRanges[count] = pack(from, to);
+                counts.put(fileSet, count + 1);
+            }
+        }
+        for (Map.Entry<String, long[]> entry : ranges.entrySet()) {
+            long[] result = Arrays.copyOf(entry.getValue(), counts.get(entry.getKey()));
+            Arrays.sort(result);
+            entry.setValue(result);
+            locations.putIfAbsent(entry.getKey(), deployment);
+        }
+        return new SitemapManifest(ranges, locations);
+    }
+
+    /**
+     * Add a file to a manifest in its textual representation
+     * @param manifest the manifest text so far
+     * @param fileSet name of the file set
+     * @param from start index of the file
+     * @param to end index of the file
+     */
+    public static void appendEntry(StringBuilder manifest, String fileSet, long from, long to) {
+        if (!Naming.DEFAULT_FILE_SET.equals(fileSet)) {
+            manifest.append(fileSet).append(' ');
+        }
+        manifest.append(from).append(' ').append(to).append('\n');
+    }
+
+    /**
+     * Add the location of a file set to a manifest in its textual representation
+     * @param manifest the manifest text so far
+     * @param fileSet name of the file set
+     * @param deployment the deployment (blue/green) where the files of the file set are stored
+     */
+    public static void appendLocation(StringBuilder manifest, String fileSet, String deployment) {
+        manifest.append(LOCATION_PREFIX).append(fileSet).append(' ').append(deployment).append('\n');
+    }
+
+    /**
+     * Record counts fit easily in 32 bits, so we store each from/to combination as 1 long. The sign bit is flipped so
+     * ranges are sorted correctly when from doesn't fit in 31 bits
+     */
+    private static long pack(long from, long to) {
+        return ((from << 32) | (to & 0xFFFF_FFFFL)) ^ Long.MIN_VALUE;
+    }
+
+}
@@ -0,0 +1,155 @@
+package eu.europeana.sitemap.generate;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.time.DateFormatUtils;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders sitemap files and sitemap index files for a particular portal base url
+ */
+public class SitemapRenderer {
+
+    /** XML definitions **/
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    private static final String SITEMAP_HEADER =
+            "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">";
+    private static final String URLSET_HEADER =
+            "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\""+
+                    " xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\""+
+                    " xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\""+
+                    " xmlns:xhtml=\"http://www.w3.org/1999/xhtml\">";
+    private static final String URL_OPENING = "<url>";
+    private static final String URL_CLOSING = "</url>";
+    private static final String LOC_OPENING = "<loc>";
+    private static final String LOC_CLOSING = "</loc>";
+    private static final char LN = '\n';
+    private static final String SITEMAP_OPENING = "<sitemap>";
+    private static final String SITEMAP_CLOSING = "</sitemap>";
+    private static final String SITEMAP_HEADER_CLOSING = "</sitemapindex>";
+    private static final String URLSET_HEADER_CLOSING = "</urlset>";
+    private static final String PRIORITY_OPENING = "<priority>";
+    private static final String PRIORITY_CLOSING = "</priority>";
+    private static final String LASTMOD_OPENING = "<lastmod>";
+    private static final String LASTMOD_CLOSING = "</lastmod>";
+    private static final String ALTERNATE_OPENING = "<xhtml:link rel=\"alternate\" hreflang=\"";
+    private static final String ALTERNATE_HREF = "\" href=\"";
+    private static final String ALTERNATE_CLOSING = "\"/>";
+    private static final String IMAGE_OPENING = "<image:image><image:loc>";
+    private static final String IMAGE_CLOSING = "</image:loc></image:image>";
+
+    private final String portalBaseUrl;
+    private final Map<String, String> alternates;
+
+    /**
+     * Create a new renderer
+     * @param portalBaseUrl base url (without trailing slash) of all urls in the generated sitemap
+     */
+    public SitemapRenderer(String portalBaseUrl) {
+        this(portalBaseUrl, Collections.emptyMap());
+    }
+
+    /**
+     * Create a new renderer that lists alternate language versions of each url
+     * @param portalBaseUrl base url (without trailing slash) of all urls in the generated sitemap
+     * @param alternates map of hreflang code and base url (without trailing slash) of each alternate version
+     */
+    public SitemapRenderer(String portalBaseUrl, Map<String, String> alternates) {
+        this.portalBaseUrl = portalBaseUrl;
+        this.alternates = new LinkedHashMap<>(alternates);
+    }
+
+    /**
+     * @return the base url of all rendered urls
+     */
+    public String getPortalBaseUrl() {
+        return portalBaseUrl;
+    }
+
+    /**
+     * @return new sitemap file, containing only the header
+     */
+    public StringBuilder startFile() {
+        return new StringBuilder().append(XML_HEADER).append(LN).append(URLSET_HEADER).append(LN);
+    }
+
+    /**
+     * Add an url to a sitemap file
+     * @param file the sitemap file
+     * @param entry the entry to add
+     */
+    public void appendEntry(StringBuilder file, SitemapEntry entry) {
+        file.append(URL_OPENING).append(LN)
+                .append(LOC_OPENING).append(portalBaseUrl).append(entry.getUrlPath()).append(LOC_CLOSING).append(LN);
+        // the sitemap schema requires loc, lastmod and priority in this order, extension elements come after these
+        appendLastModified(file, entry.getLastModified());
+        if (entry.getPriority() != null) {
+            file.append(PRIORITY_OPENING).append(entry.getPriority()).append(PRIORITY_CLOSING).append(LN);
+        }
+        for (Map.Entry<String, String> alternate : alternates.entrySet()) {
+            file.append(ALTERNATE_OPENING).append(alternate.getKey()).append(ALTERNATE_HREF)
+                    .append(alternate.getValue()).append(entry.getUrlPath()).append(ALTERNATE_CLOSING).append(LN);
+        }
+        for (String image : entry.getImages()) {
+            file.append(IMAGE_OPENING).append(image).append(IMAGE_CLOSING).append(LN);
+        }
+        file.append(URL_CLOSING).append(LN);
+    }
+
+    /**
+     * Close a sitemap file
+     * @param file the sitemap file
+     * @return the complete contents of the sitemap file
+     */
+    public String endFile(StringBuilder file) {
+        return file.append(URLSET_HEADER_CLOSING).toString();
+    }
+
+    /**
+     * @return the size in bytes of the text added by {@link #endFile(StringBuilder)}
+     */
+    public int getFileClosingSize() {
+        return URLSET_HEADER_CLOSING.length();
+    }
+
+    /**
+     * @return new sitemap index file, containing only the header
+     */
+    public StringBuilder startIndex() {
+        return new StringBuilder().append(XML_HEADER).append(LN).append(SITEMAP_HEADER).append(LN);
+    }
+
+    /**
+     * Add a sitemap file to a sitemap index
+     * @param index the sitemap index
+     * @param publicFileName public name of the sitemap file (including from/to parameters)
+     */
+    public void appendIndexEntry(StringBuilder index, String publicFileName) {
+        index.append(SITEMAP_OPENING).append(LN)
+                .append(LOC_OPENING).append(StringEscapeUtils.escapeXml(portalBaseUrl + "/" + publicFileName)).append(LOC_CLOSING).append(LN)
+                // TODO if we can compare a sitemap file with the previous version, we can check if it has changed and include a lastmodified?
+                //.append(generateLastModified(new Date()).toString())
+                .append(SITEMAP_CLOSING).append(LN);
+    }
+
+    /**
+     * Close a sitemap index file
+     * @param index the sitemap index
+     * @return the complete contents of the sitemap index
+     */
+    public String endIndex(StringBuilder index) {
+        return index.append(SITEMAP_HEADER_CLOSING).toString();
+    }
+
+    private static void appendLastModified(StringBuilder file, Date lastModifiedDate) {
+        if (lastModifiedDate != null) {
+            file.append(LASTMOD_OPENING)
+                    .append(DateFormatUtils.format(lastModifiedDate, DateFormatUtils.ISO_DATE_FORMAT.getPattern()))
+                    .append(LASTMOD_CLOSING)
+                    .append(LN);
+        }
+    }
+}
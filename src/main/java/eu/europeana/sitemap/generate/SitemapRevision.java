@@ -0,0 +1,73 @@
+package eu.europeana.sitemap.generate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Revision of the files of an active deployment. Every time sitemap files of the active deployment are rendered again
+ * (see {@link SitemapGenerator#rerender}), the revision number goes up by one and the names of the changed files are
+ * recorded, so all application instances can remove these files from their cache.
+ *
+ * The textual format is the revision number on the first line, followed by the names of the files changed in that
+ * revision, one per line.
+ */
+public final class SitemapRevision {
+
+    /** Revision of a deployment in which no files were rendered again yet **/
+    public static final SitemapRevision INITIAL = new SitemapRevision(0, Collections.emptyList());
+
+    private final long number;
+    private final List<String> fileNames;
+
+    private SitemapRevision(long number, List<String> fileNames) {
+        this.number = number;
+        this.fileNames = fileNames;
+    }
+
+    /**
+     * @return the revision number
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    /**
+     * @return names of the files that were changed in this revision
+     */
+    public List<String> getFileNames() {
+        return Collections.unmodifiableList(fileNames);
+    }
+
+    /**
+     * Create a revision from its textual representation
+     * @param text revision file contents
+     * @return new revision
+     * @throws NumberFormatException if the text doesn't start with a valid revision number
+     */
+    public static SitemapRevision parse(String text) {
+        String[] lines = text.split("\n");
+        long number = Long.parseLong(lines[0].trim());
+        List<String> fileNames = new ArrayList<>(lines.length - 1);
+        for (int i = 1; i < lines.length; i++) {
+            if (!lines[i].isEmpty()) {
+                fileNames.add(lines[i]);
+            }
+        }
+        return new SitemapRevision(number, fileNames);
+    }
+
+    /**
+     * Create the textual representation of the revision following this one
+     * @param changedFiles names of the files changed in the next revision
+     * @return revision file contents
+     */
+    public String next(Collection<String> changedFiles) {
+        StringBuilder result = new StringBuilder().append(number + 1).append('\n');
+        for (String fileName : changedFiles) {
+            result.append(fileName).append('\n');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.exceptions.SiteMapException;
+
+/**
+ * Destination of generated sitemap files
+ */
+@FunctionalInterface
+public interface SitemapSink {
+
+    /**
+     * Save a generated file
+     * @param fileName name of the file
+     * @param content contents of the file
+     * @throws SiteMapException when the file could not be saved
+     * @throws InterruptedException when saving was interrupted
+     */
+    void save(String fileName, String content) throws SiteMapException, InterruptedException;
+}
@@ -0,0 +1,46 @@
+package eu.europeana.sitemap.generate;
+
+import java.util.function.Predicate;
+
+/**
+ * A source of items (e.g. records or entities) that are listed in their own set of sitemap files
+ */
+public interface SitemapSource {
+
+    /**
+     * @return name of the source, this is also used as name of the file set
+     */
+    String getName();
+
+    /**
+     * Start retrieving all items that should be in the sitemap
+     * @param stats collects the time spent fetching and mapping items
+     * @return cursor over all entries of this source
+     */
+    EntryCursor open(GenerationStats stats);
+
+    /**
+     * Start retrieving all items, but only retrieve details that need extra lookups (e.g. images) for the entries
+     * that are actually rendered. By default all entries are complete.
+     * @param stats collects the time spent fetching and mapping items
+     * @param rendered returns true for the keys of entries that are rendered
+     * @return cursor over all entries of this source
+     */
+    default EntryCursor open(GenerationStats stats, Predicate<String> rendered) {
+        return open(stats);
+    }
+
+    /**
+     * @return true if entries are always returned in order of their key, so the sitemap file containing a particular
+     * entry can be determined from the first key of each file
+     */
+    default boolean isSortedByKey() {
+        return false;
+    }
+
+    /**
+     * @param key key of an entry of this source
+     * @return url path of the entry with the provided key
+     */
+    String getUrlPath(String key);
+}
@@ -0,0 +1,55 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.Naming;
+
+/**
+ * A portal variant (e.g. another host or language path) for which we generate a separate set of sitemap files and a
+ * separate sitemap index. All variants are rendered from the same scan of each source.
+ */
+public class SitemapVariant {
+
+    private final String name;
+    private final SitemapRenderer renderer;
+
+    /**
+     * Create a new variant
+     * @param name name of the variant, null for the default variant
+     * @param renderer renderer that generates the urls of this variant
+     */
+    public SitemapVariant(String name, SitemapRenderer renderer) {
+        this.name = name;
+        this.renderer = renderer;
+    }
+
+    /**
+     * @return name of the variant, null for the default variant
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return renderer that generates the urls of this variant
+     */
+    public SitemapRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * @param sourceName name of a source
+     * @return name of the file set containing the files of the provided source for this variant
+     */
+    public String getFileSetName(String sourceName) {
+        if (name == null) {
+            return sourceName;
+        }
+        return sourceName + "-" + name;
+    }
+
+    /**
+     * @return name of the sitemap index file of this variant
+     */
+    public String getIndexFileName() {
+        return Naming.getIndexFileName(name);
+    }
+}
@@ -0,0 +1,35 @@
+package eu.europeana.sitemap.index;
+
+/**
+ * A new or changed record that should be added to the record index
+ */
+public final class RecordChange {
+
+    private final String key;
+    private final int completeness;
+    private final long lastModifiedDay;
+
+    /**
+     * Create a new record change
+     * @param key record key
+     * @param completeness completeness of the record
+     * @param lastModifiedDay last modified epoch day of the record, or -1 if unknown
+     */
+    public RecordChange(String key, int completeness, long lastModifiedDay) {
+        this.key = key;
+        this.completeness = completeness;
+        this.lastModifiedDay = lastModifiedDay;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getCompleteness() {
+        return completeness;
+    }
+
+    public long getLastModifiedDay() {
+        return lastModifiedDay;
+    }
+}
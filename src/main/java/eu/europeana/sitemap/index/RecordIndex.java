@@ -0,0 +1,238 @@
+package eu.europeana.sitemap.index;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * One (immutable) version of the local record index, stored in its own directory. It contains the key, completeness
+ * and last modified epoch day of all records, sorted by key, see also {@link RecordIndexWriter}. Records are read
+ * sequentially; the key file is streamed and the column files are memory-mapped, so reading doesn't use heap memory
+ * regardless of the size of the index.
+ */
+public final class RecordIndex {
+
+    static final String KEYS_FILE = "keys.dat";
+    static final String COMPLETENESS_FILE = "completeness.dat";
+    static final String LASTMODIFIED_FILE = "lastmodified.dat";
+    private static final String METADATA_FILE = "index.properties";
+
+    private static final String NR_RECORDS = "nrRecords";
+    private static final String UPDATED_SINCE = "updatedSince";
+    private static final String CREATED = "created";
+    private static final String BUILD_TIME = "buildTimeMs";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final long nrRecords;
+    private final long updatedSince;
+    private final long created;
+    private final long buildTimeMs;
+
+    private RecordIndex(File dir, long nrRecords, long updatedSince, long created, long buildTimeMs) {
+        this.dir = dir;
+        this.nrRecords = nrRecords;
+        this.updatedSince = updatedSince;
+        this.created = created;
+        this.buildTimeMs = buildTimeMs;
+    }
+
+    /**
+     * Save the metadata of a newly written index
+     * @param dir directory of the index
+     * @param nrRecords number of records in the index
+     * @param updatedSince all changes made in Mongo before this time (epoch ms) are included in the index
+     * @param buildTimeMs time it took to create the index
+     * @return the new index
+     * @throws IOException when the metadata can't be written
+     */
+    static RecordIndex create(File dir, long nrRecords, long updatedSince, long buildTimeMs) throws IOException {
+        RecordIndex result = new RecordIndex(dir, nrRecords, updatedSince, System.currentTimeMillis(), buildTimeMs);
+        Properties metadata = new Properties();
+        metadata.setProperty(NR_RECORDS, Long.toString(result.nrRecords));
+        metadata.setProperty(UPDATED_SINCE, Long.toString(result.updatedSince));
+        metadata.setProperty(CREATED, Long.toString(result.created));
+        metadata.setProperty(BUILD_TIME, Long.toString(result.buildTimeMs));
+        try (OutputStream out = new FileOutputStream(new File(dir, METADATA_FILE))) {
+            metadata.store(out, "Sitemap record index");
+        }
+        return result;
+    }
+
+    /**
+     * Load an existing index
+     * @param dir directory of the index
+     * @return the index
+     * @throws IOException when the metadata can't be read
+     */
+    static RecordIndex load(File dir) throws IOException {
+        Properties metadata = new Properties();
+        try (InputStream in = new FileInputStream(new File(dir, METADATA_FILE))) {
+            metadata.load(in);
+        }
+        try {
+            return new RecordIndex(dir, Long.parseLong(metadata.getProperty(NR_RECORDS)),
+                    Long.parseLong(metadata.getProperty(UPDATED_SINCE)), Long.parseLong(metadata.getProperty(CREATED)),
+                    Long.parseLong(metadata.getProperty(BUILD_TIME)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid metadata in record index " + dir, e);
+        }
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return the number of records in the index
+     */
+    public long getNrRecords() {
+        return nrRecords;
+    }
+
+    /**
+     * @return time (epoch ms) since when changes in Mongo are not yet included in the index
+     */
+    public long getUpdatedSince() {
+        return updatedSince;
+    }
+
+    /**
+     * @return time (epoch ms) when this version of the index was created
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return time in milliseconds it took to create this version of the index
+     */
+    public long getBuildTimeMs() {
+        return buildTimeMs;
+    }
+
+    /**
+     * @return total size of the index files in bytes
+     */
+    public long getSizeBytes() {
+        return new File(dir, KEYS_FILE).length() + new File(dir, COMPLETENESS_FILE).length()
+                + new File(dir, LASTMODIFIED_FILE).length();
+    }
+
+    /**
+     * Start reading all records in the index, in order of their key
+     * @return a new cursor, positioned before the first record
+     * @throws IOException when the index files can't be opened
+     */
+    public Cursor open() throws IOException {
+        return new Cursor(this);
+    }
+
+    /**
+     * Reads all records of the index one by one
+     */
+    public static final class Cursor implements Closeable {
+
+        private final DataInputStream keys;
+        private final ByteBuffer completeness;
+        private final ByteBuffer lastModified;
+        private final long nrRecords;
+
+        private long position;
+        private byte[] keyBytes = new byte[256];
+        private String key;
+
+        private Cursor(RecordIndex index) throws IOException {
+            this.nrRecords = index.nrRecords;
+            this.completeness = map(new File(index.dir, COMPLETENESS_FILE));
+            this.lastModified = map(new File(index.dir, LASTMODIFIED_FILE));
+            this.keys = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(index.dir, KEYS_FILE)), BUFFER_SIZE));
+        }
+
+        private static MappedByteBuffer map(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        /**
+         * Move to the next record
+         * @return true if there was a next record, false if we reached the end of the index
+         * @throws IOException when there is a problem reading the index
+         */
+        public boolean next() throws IOException {
+            if (position >= nrRecords) {
+                key = null;
+                return false;
+            }
+            int shared = readVarInt();
+            int suffix = readVarInt();
+            if (keyBytes.length < shared + suffix) {
+                byte[] larger = new byte[Math.max(keyBytes.length * 2, shared + suffix)];
+                System.arraycopy(keyBytes, 0, larger, 0, shared);
+                keyBytes = larger;
+            }
+            keys.readFully(keyBytes, shared, suffix);
+            key = new String(keyBytes, 0, shared + suffix, StandardCharsets.UTF_8);
+            position++;
+            return true;
+        }
+
+        private int readVarInt() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = keys.read();
+                if (b < 0) {
+                    throw new EOFException("Unexpected end of record index");
+                }
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Invalid length in record index");
+        }
+
+        /**
+         * @return key of the current record
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return completeness of the current record
+         */
+        public int getCompleteness() {
+            return completeness.get((int) (position - 1)) & 0xFF;
+        }
+
+        /**
+         * @return last modified epoch day of the current record, or -1 if unknown
+         */
+        public long getLastModifiedDay() {
+            return lastModified.getInt((int) ((position - 1) * Integer.BYTES));
+        }
+
+        @Override
+        public void close() throws IOException {
+            keys.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package eu.europeana.sitemap.index;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import eu.europeana.sitemap.delta.SnapshotReader;
+import eu.europeana.sitemap.delta.SnapshotWriter;
+import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Maintains a compact local index of all records (key, completeness and last modified date), so sitemaps can be
+ * generated at disk speed without scanning the whole record collection every time. The index is kept up-to-date with
+ * incremental queries for records that were updated since the last update, and merged with the new changes into a new
+ * version of the index. Versions are stored in their own directory and a small pointer file refers to the current
+ * version, so the index survives restarts and a failed update never affects the current version.
+ *
+ * Incremental updates can't detect records that were deleted from Mongo, so the index should be rebuilt (a full scan)
+ * every now and then.
+ */
+public class RecordIndexStore {
+
+    private static final Logger LOG = LogManager.getLogger(RecordIndexStore.class);
+
+    /** Used mongo fields **/
+    private static final String ABOUT = "about";
+    private static final String LASTUPDATED = "timestampUpdated";
+    private static final String COMPLETENESS = "europeanaCompleteness";
+
+    static final String CURRENT_FILE = "CURRENT";
+    private static final String VERSION_PREFIX = "index-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the application and Mongo clocks may differ, reprocessing some changes twice is harmless
+    private static final long CLOCK_SKEW_MARGIN_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final boolean enabled;
+    private final MongoProvider mongoProvider;
+    private final File dir;
+    private final int sortChunkSize;
+    private final ScanThrottle throttle;
+    private final int batchSize;
+
+    private volatile RecordIndex index;
+
+    /**
+     * Create a new record index store
+     * @param enabled if false no index is loaded or maintained
+     * @param mongoProvider provides the record collection
+     * @param dir directory where the index is stored
+     * @param sortChunkSize maximum number of records sorted in memory when updating the index
+     * @param throttle limits the rate at which records are retrieved from Mongo
+     * @param batchSize number of documents retrieved from Mongo per batch
+     */
+    public RecordIndexStore(boolean enabled, MongoProvider mongoProvider, File dir, int sortChunkSize,
+                            ScanThrottle throttle, int batchSize) {
+        this.enabled = enabled;
+        this.mongoProvider = mongoProvider;
+        this.dir = dir;
+        this.sortChunkSize = sortChunkSize;
+        this.throttle = throttle;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Load the current version of the index (if any) on startup
+     */
+    @PostConstruct
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        File current = new File(dir, CURRENT_FILE);
+        if (!current.exists()) {
+            LOG.info("No record index found in {}, it will be built during the next update", dir);
+            return;
+        }
+        try {
+            String version = new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim();
+            index = RecordIndex.load(new File(dir, version));
+            LOG.info("Loaded record index {} with {} records ({} bytes)", version, index.getNrRecords(),
+                    index.getSizeBytes());
+        } catch (IOException e) {
+            LOG.error("Unable to load record index from {}, it will be rebuilt during the next update", dir, e);
+        }
+    }
+
+    /**
+     * @return true if the record index is used for generating sitemaps
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the current version of the index, or null if there is no index yet
+     */
+    public RecordIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Add all records that were changed in Mongo since the last update to the index. If there is no index yet, it is
+     * built from scratch
+     * @return the new version of the index
+     * @throws IOException when there is a problem reading or writing the index
+     */
+    public synchronized RecordIndex update() throws IOException {
+        RecordIndex previous = index;
+        if (previous == null) {
+            return rebuild();
+        }
+        DBObject query = new BasicDBObject(LASTUPDATED,
+                new BasicDBObject("$gte", new Date(previous.getUpdatedSince())));
+        return build(previous, changes -> retrieveRecords(query, changes), System.currentTimeMillis());
+    }
+
+    /**
+     * Add the provided changes to the index. This doesn't change the time since when the next {@link #update()}
+     * retrieves changes from Mongo
+     * @param changes new or changed records
+     * @return the new version of the index
+     * @throws IOException when there is no index yet, or a problem reading or writing the index
+     */
+    public synchronized RecordIndex apply(Collection<RecordChange> changes) throws IOException {
+        RecordIndex previous = index;
+        if (previous == null) {
+            throw new IOException("No record index available yet");
+        }
+        return build(previous, writer -> {
+            for (RecordChange change : changes) {
+                writer.add(change.getKey(), pack(change.getCompleteness(), change.getLastModifiedDay()));
+            }
+        }, previous.getUpdatedSince() + CLOCK_SKEW_MARGIN_MS);
+    }
+
+    /**
+     * Build a new index with a full scan of the record collection
+     * @return the new version of the index
+     * @throws IOException when there is a problem writing the index
+     */
+    public synchronized RecordIndex rebuild() throws IOException {
+        return build(null, changes -> retrieveRecords(new BasicDBObject(), changes), System.currentTimeMillis());
+    }
+
+    /**
+     * Provides the records to add to the index
+     */
+    @FunctionalInterface
+    private interface ChangeSource {
+        void addTo(SnapshotWriter changes) throws IOException;
+    }
+
+    /**
+     * Create a new version of the index with the records of the previous version and the provided changes
+     * @param updatedSince changes made in Mongo after this time (epoch ms) are not included in the new version
+     */
+    private RecordIndex build(RecordIndex previous, ChangeSource source, long updatedSince) throws IOException {
+        long start = System.currentTimeMillis();
+        LOG.info("{} record index...", (previous == null ? "Building" : "Updating"));
+        Files.createDirectories(dir.toPath());
+        File versionDir = new File(dir, VERSION_PREFIX + start);
+        try (SnapshotWriter changes = new SnapshotWriter(dir, sortChunkSize)) {
+            source.addTo(changes);
+            File sorted = changes.finish();
+            Files.createDirectories(versionDir.toPath());
+            long nrRecords;
+            try (InputStream in = new GZIPInputStream(new FileInputStream(sorted), BUFFER_SIZE);
+                 SnapshotReader changed = new SnapshotReader(in);
+                 RecordIndex.Cursor old = (previous == null ? null : previous.open());
+                 RecordIndexWriter writer = new RecordIndexWriter(versionDir)) {
+                merge(old, changed, writer);
+                nrRecords = writer.getNrRecords();
+            }
+            RecordIndex result = RecordIndex.create(versionDir, nrRecords, updatedSince - CLOCK_SKEW_MARGIN_MS,
+                    System.currentTimeMillis() - start);
+            switchTo(result);
+            LOG.info("Record index {}: {} records ({} changed), {} bytes, built in {} ms", versionDir.getName(),
+                    nrRecords, changes.getNrRecords(), result.getSizeBytes(), result.getBuildTimeMs());
+            return result;
+        } catch (IOException | RuntimeException e) {
+            deleteDir(versionDir.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieve records from Mongo and add them to the (unsorted) changes. The sort value holds both the completeness
+     * and last modified day, see {@link #pack(int, long)}
+     */
+    private void retrieveRecords(DBObject query, SnapshotWriter changes) throws IOException {
+        DBObject fields = new BasicDBObject();
+        fields.put(ABOUT, 1);
+        fields.put(COMPLETENESS, 1);
+        fields.put(LASTUPDATED, 1);
+        ScanThrottle.Scan scan = throttle.startScan(batchSize);
+        try (DBCursor cursor = mongoProvider.getCollection().find(query, fields).batchSize(batchSize)) {
+            while (true) {
+                waitForThrottle(scan);
+                long start = System.nanoTime();
+                DBObject document = (cursor.hasNext() ? cursor.next() : null);
+                scan.afterFetch(System.nanoTime() - start);
+                if (document == null) {
+                    break;
+                }
+                Object completeness = document.get(COMPLETENESS);
+                Object timestampUpdated = document.get(LASTUPDATED);
+                // very old records do not have a timestampUpdated field
+                long lastModifiedDay = (timestampUpdated == null
+                        ? -1 : TimeUnit.MILLISECONDS.toDays(((Date) timestampUpdated).getTime()));
+                changes.add(document.get(ABOUT).toString(),
+                        pack(completeness == null ? 0 : Integer.parseInt(completeness.toString()), lastModifiedDay));
+            }
+        }
+    }
+
+    private static void waitForThrottle(ScanThrottle.Scan scan) throws InterruptedIOException {
+        try {
+            scan.beforeFetch();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrieving records");
+        }
+    }
+
+    private static long pack(int completeness, long lastModifiedDay) {
+        return (lastModifiedDay << 8) | (completeness & 0xFF);
+    }
+
+    /**
+     * Write all records of the old index and the sorted changes to the new index. Changed records replace the old
+     * version of the same record. Without an old index (a rebuild) the new index only contains the changes, so records
+     * that were deleted from Mongo are dropped
+     */
+    static void merge(RecordIndex.Cursor old, SnapshotReader changed, RecordIndexWriter writer)
+            throws IOException {
+        boolean hasOld = (old != null && old.next());
+        boolean hasChanged = changed.next();
+        while (hasOld || hasChanged) {
+            int compare;
+            if (!hasOld) {
+                compare = 1;
+            } else if (!hasChanged) {
+                compare = -1;
+            } else {
+                compare = old.getKey().compareTo(changed.getKey());
+            }
+
+            if (compare < 0) {
+                writer.add(old.getKey(), old.getCompleteness(), old.getLastModifiedDay());
+                hasOld = old.next();
+            } else {
+                String key = changed.getKey();
+                long value = changed.getLastModifiedDay();
+                hasChanged = changed.next();
+                // a record can be retrieved twice when it was changed during the scan, the last version wins
+                while (hasChanged && key.equals(changed.getKey())) {
+                    value = changed.getLastModifiedDay();
+                    hasChanged = changed.next();
+                }
+                writer.add(key, (int) (value & 0xFF), value >> 8);
+                if (compare == 0) {
+                    hasOld = old.next();
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a new version of the index the current one and remove all other versions
+     */
+    private void switchTo(RecordIndex newIndex) throws IOException {
+        Path pointer = new File(dir, CURRENT_FILE).toPath();
+        Path tmpPointer = new File(dir, CURRENT_FILE + ".tmp").toPath();
+        Files.write(tmpPointer, newIndex.getDir().getName().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpPointer, pointer, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = newIndex;
+
+        File[] versions = dir.listFiles((d, name) -> name.startsWith(VERSION_PREFIX)
+                && !name.equals(newIndex.getDir().getName()));
+        if (versions != null) {
+            for (File version : versions) {
+                deleteDir(version.toPath());
+            }
+        }
+    }
+
+    private static void deleteDir(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            LOG.warn("Unable to delete {}", path, e);
+        }
+    }
+}
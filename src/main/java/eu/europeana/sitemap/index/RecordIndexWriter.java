@@ -0,0 +1,102 @@
+package eu.europeana.sitemap.index;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a new {@link RecordIndex}. Records have to be added in ascending order of their key.
+ *
+ * Keys are stored with prefix compression (front coding): each key is written as the number of bytes it shares with
+ * the previous key, followed by the length and bytes of the remaining part. Since record ids of one dataset share a
+ * long prefix, this makes the key file a lot smaller than the keys themselves. Completeness (1 byte) and last modified
+ * epoch day (4 bytes) are written to separate fixed-width column files.
+ */
+public class RecordIndexWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream keys;
+    private final DataOutputStream completeness;
+    private final DataOutputStream lastModified;
+
+    private String previousKey;
+    private byte[] previousKeyBytes = new byte[0];
+    private long nrRecords;
+
+    /**
+     * Create a new writer
+     * @param dir (empty) directory where the index files are written
+     * @throws IOException when the index files can't be created
+     */
+    public RecordIndexWriter(File dir) throws IOException {
+        this.keys = open(new File(dir, RecordIndex.KEYS_FILE));
+        this.completeness = open(new File(dir, RecordIndex.COMPLETENESS_FILE));
+        this.lastModified = open(new File(dir, RecordIndex.LASTMODIFIED_FILE));
+    }
+
+    private static DataOutputStream open(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Add a record to the index
+     * @param key record key, should be larger than the key of the previously added record
+     * @param recordCompleteness completeness of the record (0-255)
+     * @param lastModifiedDay last modified epoch day of the record, or -1 if unknown
+     * @throws IOException when there is a problem writing the index files
+     */
+    public void add(String key, int recordCompleteness, long lastModifiedDay) throws IOException {
+        if (previousKey != null && previousKey.compareTo(key) >= 0) {
+            throw new IllegalArgumentException("Key " + key + " is not larger than previous key " + previousKey);
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int shared = 0;
+        int max = Math.min(keyBytes.length, previousKeyBytes.length);
+        while (shared < max && keyBytes[shared] == previousKeyBytes[shared]) {
+            shared++;
+        }
+        writeVarInt(keys, shared);
+        writeVarInt(keys, keyBytes.length - shared);
+        keys.write(keyBytes, shared, keyBytes.length - shared);
+        completeness.writeByte(Math.max(0, Math.min(255, recordCompleteness)));
+        lastModified.writeInt((int) lastModifiedDay);
+
+        previousKey = key;
+        previousKeyBytes = keyBytes;
+        nrRecords++;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    /**
+     * @return the number of records added to the index
+     */
+    public long getNrRecords() {
+        return nrRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            keys.close();
+        } finally {
+            try {
+                completeness.close();
+            } finally {
+                lastModified.close();
+            }
+        }
+    }
+}
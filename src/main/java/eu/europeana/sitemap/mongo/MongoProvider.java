@@ -4,29 +4,43 @@ import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import eu.europeana.sitemap.SitemapApplication;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Connects to the (production) mongo server to retrieve all records.
+ * Connects to the (production) mongo server to retrieve all records. The connection is only made when Mongo is used for
+ * the first time, so the application can start (and serve sitemaps) when Mongo is not available.
  *
  * Created by ymamakis on 11/16/15.
  */
 @Component
+@Profile("!" + SitemapApplication.READ_ONLY_PROFILE)
 public class MongoProvider {
 
     private static final Logger LOG = LogManager.getLogger(MongoProvider.class);
 
-    private MongoClient mongoClient;
-    private DBCollection collection;
+    private static final String RECORD_COLLECTION = "record";
+    private static final String AGGREGATION_COLLECTION = "Aggregation";
+
+    private final List<ServerAddress> mongoAddresses;
+    private final List<MongoCredential> credentials;
+    private final String database;
+
+    private volatile MongoClient mongoClient;
 
     /**
-     * Setup a new connection to the Mongo database
+     * Setup a new connection to the Mongo database. The connection is opened on first use
      * @param mongoHosts
      * @param port
      * @param username
@@ -35,36 +49,101 @@ public class MongoProvider {
      */
     public MongoProvider(String mongoHosts, String port, String authDatabase, String username, String password, String database) {
         String[] addresses = mongoHosts.split(",");
-        List<ServerAddress> mongoAddresses = new ArrayList<>(addresses.length);
+        this.mongoAddresses = new ArrayList<>(addresses.length);
         for (String address : addresses) {
             ServerAddress mongoAddress = new ServerAddress(address, Integer.parseInt(port));
             mongoAddresses.add(mongoAddress);
         }
+        this.credentials = new ArrayList<>();
         if (StringUtils.isNotEmpty(username) && StringUtils.isNotEmpty(password)) {
-            MongoCredential credential = MongoCredential.createCredential(username, authDatabase, password.toCharArray());
-            List<MongoCredential> credentials = new ArrayList<>();
-            credentials.add(credential);
-            this.mongoClient = new MongoClient(mongoAddresses, credentials);
-        } else {
-            this.mongoClient = new MongoClient(mongoAddresses);
+            credentials.add(MongoCredential.createCredential(username, authDatabase, password.toCharArray()));
         }
-        LOG.info("Connected to Mongo at {} ", mongoAddresses);
+        this.database = database;
+    }
 
-        this.collection = this.mongoClient.getDB(database).getCollection("record");
+    private MongoClient getClient() {
+        MongoClient result = mongoClient;
+        if (result == null) {
+            synchronized (this) {
+                result = mongoClient;
+                if (result == null) {
+                    result = (credentials.isEmpty()
+                            ? new MongoClient(mongoAddresses) : new MongoClient(mongoAddresses, credentials));
+                    LOG.info("Connected to Mongo at {} ", mongoAddresses);
+                    mongoClient = result;
+                }
+            }
+        }
+        return result;
     }
 
     /**
-     * Close the connection to mongo
+     * Close the connection to mongo (if it was opened)
      */
-    public void close() {
-        LOG.info("Shutting down connections to Mongo...");
-        mongoClient.close();
+    public synchronized void close() {
+        if (mongoClient != null) {
+            LOG.info("Shutting down connections to Mongo...");
+            mongoClient.close();
+            mongoClient = null;
+        }
     }
 
     /**
      * @return Retrieve the entire record collection from our mongo database
      */
     public DBCollection getCollection() {
-        return collection;
+        return getClient().getDB(database).getCollection(RECORD_COLLECTION);
+    }
+
+    /**
+     * @return the collection containing the (provider) aggregations of all records
+     */
+    public DBCollection getAggregationCollection() {
+        return getClient().getDB(database).getCollection(AGGREGATION_COLLECTION);
+    }
+
+    /**
+     * @return the record collection, for operations that are only available in the new driver api (e.g. change streams)
+     */
+    public MongoCollection<Document> getRecordCollection() {
+        return getClient().getDatabase(database).getCollection(RECORD_COLLECTION);
+    }
+
+    /**
+     * @return the replication lag in seconds of the secondary that is furthest behind the primary, 0 if there is no
+     * replica set secondary
+     * @throws com.mongodb.MongoException if the replica set status can't be retrieved (e.g. missing permission)
+     */
+    @SuppressWarnings("unchecked")
+    public long getReplicationLagSeconds() {
+        Document status = getClient().getDatabase("admin").runCommand(new Document("replSetGetStatus", 1));
+        Date primaryOptime = null;
+        Date oldestSecondaryOptime = null;
+        for (Document member : (List<Document>) status.get("members", List.class)) {
+            Date optime = member.getDate("optimeDate");
+            if (optime == null) {
+                continue;
+            }
+            String state = member.getString("stateStr");
+            if ("PRIMARY".equals(state)) {
+                primaryOptime = optime;
+            } else if ("SECONDARY".equals(state)
+                    && (oldestSecondaryOptime == null || optime.before(oldestSecondaryOptime))) {
+                oldestSecondaryOptime = optime;
+            }
+        }
+        if (primaryOptime == null || oldestSecondaryOptime == null) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(primaryOptime.getTime() - oldestSecondaryOptime.getTime()));
+    }
+
+    /**
+     * @param database name of the database
+     * @param collectionName name of the collection
+     * @return Retrieve another collection (e.g. the entity collection) from the same mongo server
+     */
+    public DBCollection getCollection(String database, String collectionName) {
+        return getClient().getDB(database).getCollection(collectionName);
     }
 }
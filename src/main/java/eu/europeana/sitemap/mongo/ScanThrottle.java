@@ -0,0 +1,236 @@
+package eu.europeana.sitemap.mongo;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate (documents per second) at which full collection scans read from Mongo, so sitemap generation doesn't
+ * hurt other applications using the same cluster. The rate adapts AIMD-style (additive increase, multiplicative
+ * decrease): after every batch that was retrieved within the latency target the rate goes up a fixed step, when a
+ * batch is slower (or when replication lag is too high) the rate is cut by a factor. The rate always stays between the
+ * configured minimum and maximum.
+ *
+ * The rate is shared by all scans, so scans running in parallel together stay within the rate. The rate is kept
+ * between updates, so each update starts at the rate the previous one ended with.
+ */
+public class ScanThrottle {
+
+    private static final Logger LOG = LogManager.getLogger(ScanThrottle.class);
+
+    /** After a decrease we wait this long before decreasing again, so one slow period only counts once **/
+    private static final long DECREASE_COOLDOWN_MS = 1000;
+
+    private final boolean enabled;
+    private final MongoProvider mongoProvider;
+    private final double minRate;
+    private final double maxRate;
+    private final double increaseStep;
+    private final double decreaseFactor;
+    private final long latencyTargetNanos;
+    private final long maxReplicationLagSeconds;
+    private final long lagCheckIntervalMs;
+
+    private double rate;
+    private long nextFreeNanos;
+    private long lastDecreaseMs;
+    private long lastLagCheckMs;
+    /** Written by the thread doing the lag check, read by all scans without locking **/
+    private volatile boolean lagExceeded;
+    private volatile boolean lagCheckFailed;
+
+    private final AtomicLong nrDecreases = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Create a new throttle
+     * @param enabled if false scans are never throttled
+     * @param mongoProvider used to check the replication lag
+     * @param minRate minimum rate in documents per second
+     * @param maxRate maximum (and initial) rate in documents per second
+     * @param increaseStep rate increase in documents per second after a batch within the latency target
+     * @param decreaseFactor factor (between 0 and 1) by which the rate is multiplied when a batch is too slow
+     * @param latencyTargetMs maximum latency of a batch retrieval before the rate is decreased
+     * @param maxReplicationLagSeconds maximum replication lag before the rate is decreased, 0 to not check the lag
+     * @param lagCheckIntervalMs minimum time between replication lag checks
+     */
+    @SuppressWarnings("squid:S00107") // all parameters are needed to tune the throttle
+    public ScanThrottle(boolean enabled, MongoProvider mongoProvider, double minRate, double maxRate,
+                        double increaseStep, double decreaseFactor, long latencyTargetMs, long maxReplicationLagSeconds,
+                        long lagCheckIntervalMs) {
+        this.enabled = enabled;
+        this.mongoProvider = mongoProvider;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increaseStep = increaseStep;
+        this.decreaseFactor = decreaseFactor;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+        this.maxReplicationLagSeconds = maxReplicationLagSeconds;
+        this.lagCheckIntervalMs = lagCheckIntervalMs;
+        this.rate = maxRate;
+        if (enabled) {
+            LOG.info("Mongo scans throttled between {} and {} documents/s, latency target {} ms, "
+                    + "max replication lag {} s", minRate, maxRate, latencyTargetMs, maxReplicationLagSeconds);
+        }
+    }
+
+    /**
+     * Start a new scan
+     * @param batchSize number of documents per batch
+     * @return object that keeps track of the batches of one scan
+     */
+    public Scan startScan(int batchSize) {
+        return new Scan(batchSize);
+    }
+
+    /**
+     * Wait until the current rate allows retrieving a batch
+     * @return time waited in nanoseconds
+     */
+    private long acquire(int documents) throws InterruptedException {
+        long waitUntil;
+        long now = System.nanoTime();
+        synchronized (this) {
+            waitUntil = Math.max(now, nextFreeNanos);
+            nextFreeNanos = waitUntil + (long) (documents * 1_000_000_000.0 / rate);
+        }
+        long wait = waitUntil - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+            waitNanos.addAndGet(wait);
+        }
+        return Math.max(0, wait);
+    }
+
+    /**
+     * Adapt the rate to the latency of a retrieved batch
+     */
+    private void onBatch(long latencyNanos) {
+        boolean lag = isReplicationLagExceeded();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (latencyNanos > latencyTargetNanos || lag) {
+                if (now - lastDecreaseMs >= DECREASE_COOLDOWN_MS) {
+                    double previous = rate;
+                    rate = Math.max(minRate, rate * decreaseFactor);
+                    lastDecreaseMs = now;
+                    nrDecreases.incrementAndGet();
+                    LOG.debug("Batch took {} ms (replication lag exceeded: {}), rate decreased from {} to {} "
+                            + "documents/s", TimeUnit.NANOSECONDS.toMillis(latencyNanos), lag, (long) previous,
+                            (long) rate);
+                }
+            } else {
+                rate = Math.min(maxRate, rate + increaseStep);
+            }
+        }
+    }
+
+    /**
+     * Check the replication lag, at most once per check interval. If the check fails (e.g. because we don't have
+     * permission to run replSetGetStatus) we log this once and don't check again.
+     */
+    private boolean isReplicationLagExceeded() {
+        if (maxReplicationLagSeconds <= 0 || lagCheckFailed) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastLagCheckMs < lagCheckIntervalMs) {
+                return lagExceeded;
+            }
+            lastLagCheckMs = now;
+        }
+        try {
+            long lag = mongoProvider.getReplicationLagSeconds();
+            lagExceeded = lag > maxReplicationLagSeconds;
+            if (lagExceeded) {
+                LOG.info("Replication lag is {} seconds, throttling Mongo scan", lag);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to check replication lag, throttling only on batch latency", e);
+            lagCheckFailed = true;
+            lagExceeded = false;
+        }
+        return lagExceeded;
+    }
+
+    /**
+     * @return the current rate in documents per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return total time scans waited because of the throttle, in milliseconds
+     */
+    public long getWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * @return number of times the rate was decreased
+     */
+    public long getNrDecreases() {
+        return nrDecreases.get();
+    }
+
+    /**
+     * Keeps track of the batches of one scan. Call {@link #beforeFetch()} and {@link #afterFetch(long)} around each
+     * document retrieval. The latency of a batch is the latency of the slowest retrieval in it, which is the call that
+     * fetched the next batch from the server.
+     */
+    public final class Scan {
+
+        private final int batchSize;
+        private int nrInBatch;
+        private long maxFetchNanos;
+
+        private Scan(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Call before retrieving a document, this waits at the start of each batch if the rate requires this
+         * @return time waited in nanoseconds
+         * @throws InterruptedException when interrupted while waiting
+         */
+        public long beforeFetch() throws InterruptedException {
+            if (!enabled || nrInBatch > 0) {
+                return 0;
+            }
+            return acquire(batchSize);
+        }
+
+        /**
+         * Call after retrieving a document
+         * @param fetchNanos time it took to retrieve the document
+         */
+        public void afterFetch(long fetchNanos) {
+            if (!enabled) {
+                return;
+            }
+            maxFetchNanos = Math.max(maxFetchNanos, fetchNanos);
+            nrInBatch++;
+            if (nrInBatch == batchSize) {
+                afterBatch(0);
+            }
+        }
+
+        /**
+         * Call after retrieving a whole batch of documents at once (e.g. with an $in query) instead of calling
+         * {@link #afterFetch(long)} for each document
+         * @param fetchNanos time it took to retrieve the batch
+         */
+        public void afterBatch(long fetchNanos) {
+            if (!enabled) {
+                return;
+            }
+            onBatch(Math.max(maxFetchNanos, fetchNanos));
+            nrInBatch = 0;
+            maxFetchNanos = 0;
+        }
+    }
+}
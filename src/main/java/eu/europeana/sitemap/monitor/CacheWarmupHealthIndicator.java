@@ -0,0 +1,30 @@
+package eu.europeana.sitemap.monitor;
+
+import eu.europeana.sitemap.service.SitemapCacheWarmer;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Reports the progress of cache warm-ups in the actuator health endpoint. Until the first warm-up after startup is
+ * finished we report out of service, so no traffic is sent to this instance before its cache is warm.
+ */
+public class CacheWarmupHealthIndicator implements HealthIndicator {
+
+    private final SitemapCacheWarmer warmer;
+
+    public CacheWarmupHealthIndicator(SitemapCacheWarmer warmer) {
+        this.warmer = warmer;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder result = (warmer.isStartupFinished() ? Health.up() : Health.outOfService());
+        return result.withDetail("state", warmer.getState())
+                .withDetail("deployment", String.valueOf(warmer.getDeployment()))
+                .withDetail("files", warmer.getNrFiles())
+                .withDetail("loaded", warmer.getNrLoaded())
+                .withDetail("failed", warmer.getNrFailed())
+                .withDetail("durationMs", warmer.getDurationMs())
+                .build();
+    }
+}
@@ -0,0 +1,409 @@
+package eu.europeana.sitemap.monitor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.europeana.domain.StorageObject;
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapBadRequestException;
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.generate.SitemapManifest;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jclouds.io.payloads.ByteArrayPayload;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often (and how many bytes of) each sitemap file is fetched, per crawler family, so we know which files
+ * are worth caching, pre-warming or regenerating first. Counts are kept per generation: when the active deployment
+ * changes we start counting from zero. A generation is identified by its deployment and the date of its manifest.
+ *
+ * Counting is done with LongAdders (which are striped internally), so requests never wait for each other. Counts are
+ * saved periodically as a small json snapshot in storage, one per deployment and application instance, so they survive
+ * restarts. Switching to a new generation doesn't wait for storage either: saving the counts of the previous generation
+ * and loading a snapshot of the new one are done in the background, in that order.
+ */
+public class CrawlerHeatmap {
+
+    private static final Logger LOG = LogManager.getLogger(CrawlerHeatmap.class);
+
+    /** Family used for requests without a user agent **/
+    public static final String UNKNOWN_FAMILY = "unknown";
+    /** Family used for all requests when the maximum number of families is reached **/
+    public static final String OTHER_FAMILY = "other";
+
+    private final boolean enabled;
+    private final ObjectStorageClient objectStorageProvider;
+    private final StorageBulkhead readBulkhead;
+    private final StorageBulkhead writeBulkhead;
+    private final String instance;
+    private final int maxFamilies;
+    private final ScheduledExecutorService scheduler;
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private volatile Generation current;
+
+    /**
+     * Create a new heatmap
+     * @param enabled if false nothing is counted
+     * @param objectStorageProvider storage where snapshots are saved
+     * @param readBulkhead limits concurrent storage reads
+     * @param writeBulkhead limits concurrent storage writes
+     * @param instance name of this application instance, if empty the host name is used
+     * @param maxFamilies maximum number of crawler families counted separately per generation
+     * @param flushIntervalMs time between saving snapshots
+     */
+    public CrawlerHeatmap(boolean enabled, ObjectStorageClient objectStorageProvider, StorageBulkhead readBulkhead,
+                          StorageBulkhead writeBulkhead, String instance, int maxFamilies, long flushIntervalMs) {
+        this.enabled = enabled;
+        this.objectStorageProvider = objectStorageProvider;
+        this.readBulkhead = readBulkhead;
+        this.writeBulkhead = writeBulkhead;
+        this.instance = (StringUtils.isEmpty(instance) ? getHostName() : instance);
+        this.maxFamilies = maxFamilies;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("sitemap-heatmap-"));
+        if (enabled) {
+            scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+            LOG.info("Counting sitemap file requests, saving snapshots of instance {} every {} ms", this.instance,
+                    flushIntervalMs);
+        }
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            LOG.warn("Unable to determine host name", e);
+            return "local";
+        }
+    }
+
+    /**
+     * @return true if requests are counted
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Count a request for a sitemap file
+     * @param deployment active deployment (blue/green) from which the file was served
+     * @param requestStart time at which the request started, before the active deployment was determined
+     * @param fileName public name of the file, see {@link Naming#getPublicSitemapFileName(String, long, long)}
+     * @param family crawler family (lower case user agent name), empty if unknown
+     * @param bytes number of bytes sent
+     */
+    public void record(String deployment, long requestStart, String fileName, String family, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        Generation generation = current;
+        if (generation == null || !generation.deployment.equals(deployment)) {
+            generation = switchTo(deployment, requestStart);
+            if (generation == null) {
+                return;
+            }
+        }
+        generation.getCounter(fileName, getFamily(generation, family)).add(bytes);
+    }
+
+    private String getFamily(Generation generation, String family) {
+        String result = (StringUtils.isEmpty(family) ? UNKNOWN_FAMILY : family);
+        // the limit may be exceeded slightly when new families arrive at the same time, that's fine
+        if (!generation.families.contains(result)) {
+            if (generation.families.size() >= maxFamilies) {
+                return OTHER_FAMILY;
+            }
+            generation.families.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Start counting for a new generation. The counts of the previous generation are saved, and if there is a snapshot
+     * of the new generation (e.g. after a restart) we continue with its counts. Both are done in the background on our
+     * single scheduler thread, so a snapshot is never read before the save of the previous generation is done.
+     * @return the new generation, or null if the request was served from a deployment we already switched away from
+     */
+    private synchronized Generation switchTo(String deployment, long requestStart) {
+        Generation previous = current;
+        if (previous != null && previous.deployment.equals(deployment)) {
+            return previous;
+        }
+        if (previous != null && requestStart < previous.since) {
+            // the request started before the switch to the current generation, so it was served by an older one
+            return null;
+        }
+        Generation result = new Generation(deployment);
+        current = result;
+        if (previous != null) {
+            scheduler.execute(() -> save(previous));
+        }
+        scheduler.execute(() -> initialize(result));
+        return result;
+    }
+
+    /**
+     * Determine when a generation was generated and add the counts of its snapshot (if any)
+     */
+    private void initialize(Generation generation) {
+        generation.generated = getManifestDate(generation.deployment);
+        resume(generation);
+        generation.initialized = true;
+        LOG.info("Counting requests for generation {} of {}", new Date(generation.generated), generation.deployment);
+    }
+
+    private long getManifestDate(String deployment) {
+        try {
+            Optional<StorageObject> manifest = readBulkhead.executeUnchecked(() ->
+                    objectStorageProvider.getWithoutBody(deployment + Naming.MANIFEST_SUFFIX));
+            if (manifest.isPresent() && manifest.get().getLastModified() != null) {
+                return manifest.get().getLastModified().getTime();
+            }
+        } catch (SiteMapException | RuntimeException e) {
+            LOG.warn("Unable to check manifest of {}", deployment, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    private void resume(Generation generation) {
+        String fileName = Naming.getHeatmapFileName(generation.deployment, instance);
+        try {
+            Optional<StorageObject> file = readBulkhead.executeUnchecked(() -> objectStorageProvider.get(fileName));
+            if (!file.isPresent()) {
+                return;
+            }
+            JsonNode snapshot;
+            try (InputStream in = file.get().getPayload().openStream()) {
+                snapshot = jsonMapper.readTree(in);
+            }
+            if (generation.generated == 0 || snapshot.path("generated").asLong() != generation.generated) {
+                return;
+            }
+            Iterator<Map.Entry<String, JsonNode>> files = snapshot.path("files").fields();
+            while (files.hasNext()) {
+                Map.Entry<String, JsonNode> perFile = files.next();
+                Iterator<Map.Entry<String, JsonNode>> families = perFile.getValue().fields();
+                while (families.hasNext()) {
+                    Map.Entry<String, JsonNode> perFamily = families.next();
+                    generation.families.add(perFamily.getKey());
+                    Counter counter = generation.getCounter(perFile.getKey(), perFamily.getKey());
+                    counter.requests.add(perFamily.getValue().path(0).asLong());
+                    counter.bytes.add(perFamily.getValue().path(1).asLong());
+                }
+            }
+            LOG.info("Continuing with request counts of {}", fileName);
+        } catch (IOException | SiteMapException | RuntimeException e) {
+            LOG.warn("Unable to read {}, counting from zero", fileName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Save a snapshot of the current generation
+     */
+    public void flush() {
+        Generation generation = current;
+        if (generation != null) {
+            save(generation);
+        }
+    }
+
+    /**
+     * Snapshots list per file and per family the number of requests and bytes, e.g.
+     * {"europeana-sitemap-hashed.xml?from=0&amp;to=45000":{"googlebot":[12,540000]}}
+     */
+    private void save(Generation generation) {
+        if (!generation.initialized) {
+            // we don't know its generation date yet, and we shouldn't overwrite the snapshot we still have to read
+            return;
+        }
+        String fileName = Naming.getHeatmapFileName(generation.deployment, instance);
+        try {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("deployment", generation.deployment);
+            snapshot.put("generated", generation.generated);
+            snapshot.put("instance", instance);
+            snapshot.put("since", generation.since);
+            snapshot.put("saved", System.currentTimeMillis());
+            Map<String, Map<String, long[]>> files = new TreeMap<>();
+            generation.files.forEach((file, perFamily) -> {
+                Map<String, long[]> counts = new TreeMap<>();
+                perFamily.forEach((family, counter) ->
+                        counts.put(family, new long[]{counter.requests.sum(), counter.bytes.sum()}));
+                files.put(file, counts);
+            });
+            snapshot.put("files", files);
+            byte[] json = jsonMapper.writeValueAsBytes(snapshot);
+            writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(fileName, new ByteArrayPayload(json)));
+            LOG.debug("Saved {} ({} files, {} bytes)", fileName, files.size(), json.length);
+        } catch (IOException | SiteMapException | RuntimeException e) {
+            LOG.warn("Unable to save {}", fileName, e);
+        } catch (InterruptedException e) {
+            LOG.warn("Saving {} was interrupted", fileName);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Report which files of a generation are fetched most and which files are never fetched
+     * @param deployment the active deployment
+     * @param manifest manifest of the active deployment, if null never-fetched files can't be determined
+     * @param limit maximum number of hot and never-fetched files listed
+     * @return report in a format suitable for json serialization
+     * @throws SiteMapBadRequestException when the limit is negative
+     */
+    public Map<String, Object> getReport(String deployment, SitemapManifest manifest, int limit)
+            throws SiteMapBadRequestException {
+        if (limit < 0) {
+            throw new SiteMapBadRequestException("Limit should not be negative");
+        }
+        Generation generation = current;
+        if (generation != null && !generation.deployment.equals(deployment)) {
+            // nothing was requested yet since the switch
+            generation = null;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("instance", instance);
+        result.put("deployment", deployment);
+        result.put("generated", (generation == null || generation.generated == 0 ? null : new Date(generation.generated)));
+        result.put("since", (generation == null ? null : new Date(generation.since)));
+
+        Map<String, long[]> perFile = new LinkedHashMap<>();
+        Map<String, Map<String, Long>> perFamily = new TreeMap<>();
+        if (generation != null) {
+            generation.files.forEach((file, families) -> {
+                long[] total = new long[2];
+                families.forEach((family, counter) -> {
+                    long requests = counter.requests.sum();
+                    long bytes = counter.bytes.sum();
+                    total[0] += requests;
+                    total[1] += bytes;
+                    Map<String, Long> familyTotal = perFamily.computeIfAbsent(family, f -> new LinkedHashMap<>());
+                    familyTotal.merge("requests", requests, Long::sum);
+                    familyTotal.merge("bytes", bytes, Long::sum);
+                });
+                perFile.put(file, total);
+            });
+        }
+        result.put("requests", perFile.values().stream().mapToLong(total -> total[0]).sum());
+        result.put("bytes", perFile.values().stream().mapToLong(total -> total[1]).sum());
+        result.put("fetchedFiles", perFile.size());
+        result.put("families", perFamily);
+
+        List<Map.Entry<String, long[]>> hot = new ArrayList<>(perFile.entrySet());
+        hot.sort(Comparator.comparingLong((Map.Entry<String, long[]> entry) -> entry.getValue()[0]).reversed());
+        List<Map<String, Object>> hotFiles = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : hot.subList(0, Math.min(limit, hot.size()))) {
+            Map<String, Object> file = new LinkedHashMap<>();
+            file.put("file", entry.getKey());
+            file.put("requests", entry.getValue()[0]);
+            file.put("bytes", entry.getValue()[1]);
+            Map<String, Long> families = new TreeMap<>();
+            generation.files.get(entry.getKey()).forEach((family, counter) ->
+                    families.put(family, counter.requests.sum()));
+            file.put("families", families);
+            hotFiles.add(file);
+        }
+        result.put("hot", hotFiles);
+
+        if (manifest != null) {
+            List<String> neverFetched = new ArrayList<>();
+            long nrFiles = 0;
+            for (String fileSet : manifest.getFileSets()) {
+                for (long[] range : manifest.getRanges(fileSet)) {
+                    nrFiles++;
+                    String file = Naming.getPublicSitemapFileName(fileSet, range[0], range[1]);
+                    if (!perFile.containsKey(file)) {
+                        neverFetched.add(file);
+                    }
+                }
+            }
+            result.put("files", nrFiles);
+            result.put("neverFetchedFiles", neverFetched.size());
+            result.put("neverFetched", neverFetched.subList(0, Math.min(limit, neverFetched.size())));
+        }
+        return result;
+    }
+
+    /**
+     * Save the counts one last time and stop
+     */
+    @PreDestroy
+    public void shutdown() {
+        LOG.info("Shutting down crawler heatmap...");
+        scheduler.shutdownNow();
+        if (enabled) {
+            flush();
+        }
+    }
+
+    /**
+     * Request counts of one generation
+     */
+    private static final class Generation {
+
+        private final String deployment;
+        private final long since = System.currentTimeMillis();
+        private volatile long generated;
+        private volatile boolean initialized;
+        private final ConcurrentMap<String, ConcurrentMap<String, Counter>> files = new ConcurrentHashMap<>();
+        private final Set<String> families = ConcurrentHashMap.newKeySet();
+
+        private Generation(String deployment) {
+            this.deployment = deployment;
+        }
+
+        private Counter getCounter(String fileName, String family) {
+            // computeIfAbsent locks even if the key is present (on Java 8), so we try a plain get first
+            ConcurrentMap<String, Counter> perFamily = files.get(fileName);
+            if (perFamily == null) {
+                perFamily = files.computeIfAbsent(fileName, f -> new ConcurrentHashMap<>(4));
+            }
+            Counter counter = perFamily.get(family);
+            if (counter == null) {
+                counter = perFamily.computeIfAbsent(family, f -> new Counter());
+            }
+            return counter;
+        }
+    }
+
+    private static final class Counter {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        private void add(long nrBytes) {
+            requests.increment();
+            bytes.add(nrBytes);
+        }
+    }
+}
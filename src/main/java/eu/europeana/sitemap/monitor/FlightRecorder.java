@@ -0,0 +1,174 @@
+package eu.europeana.sitemap.monitor;
+
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jclouds.io.payloads.FilePayload;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts and stops Java Flight Recorder recordings via the DiagnosticCommand MBean (the same commands as
+ * 'jcmd JFR.start/JFR.stop'), and saves finished recordings in storage so they can be analysed afterwards. Recordings
+ * can be made automatically for the duration of each sitemap update, or on demand for a number of minutes.
+ *
+ * This requires a JVM with JFR support (OpenJDK 8u262 or newer, or Oracle JDK with -XX:+UnlockCommercialFeatures).
+ * If JFR is not available a warning is logged and no recording is made; this never affects the update itself.
+ */
+public class FlightRecorder {
+
+    private static final Logger LOG = LogManager.getLogger(FlightRecorder.class);
+
+    private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+    private static final String[] SIGNATURE = {String[].class.getName()};
+    private static final String NAME_PREFIX = "sitemap-";
+
+    private final boolean updateRecordingEnabled;
+    private final String settings;
+    private final File dir;
+    private final long maxDurationMinutes;
+    private final ObjectStorageClient objectStorageProvider;
+    private final StorageBulkhead writeBulkhead;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new flight recorder
+     * @param updateRecordingEnabled if true every sitemap update is recorded
+     * @param settings JFR settings used for all recordings, e.g. 'default', 'profile' or the path to a .jfc file
+     * @param dir local directory where recordings are written before they are saved in storage
+     * @param maxDurationMinutes maximum duration of on-demand recordings
+     * @param objectStorageProvider storage where recordings are saved
+     * @param writeBulkhead limits concurrent storage requests
+     */
+    public FlightRecorder(boolean updateRecordingEnabled, String settings, File dir, long maxDurationMinutes,
+                          ObjectStorageClient objectStorageProvider, StorageBulkhead writeBulkhead) {
+        this.updateRecordingEnabled = updateRecordingEnabled;
+        this.settings = settings;
+        this.dir = dir;
+        this.maxDurationMinutes = maxDurationMinutes;
+        this.objectStorageProvider = objectStorageProvider;
+        this.writeBulkhead = writeBulkhead;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("sitemap-jfr-"));
+    }
+
+    /**
+     * @param label describes what is recorded, e.g. 'update'
+     * @param time start time of the recording
+     * @return name of a recording, which is also part of the name under which it's saved in storage
+     */
+    public static String getRecordingName(String label, Date time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return label + '-' + format.format(time);
+    }
+
+    /**
+     * Start recording a sitemap update, if this is enabled
+     * @param runId identifies the update run, this is used as the recording name
+     * @return name of the started recording, or null if nothing is recorded
+     */
+    public String startUpdateRecording(String runId) {
+        if (!updateRecordingEnabled) {
+            return null;
+        }
+        try {
+            start(runId, 0);
+            return runId;
+        } catch (JMException | RuntimeException e) {
+            LOG.warn("Unable to start flight recording of update {}", runId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stop a recording and save it in storage. Errors are logged, but not thrown
+     * @param name name of the recording, if null nothing is done
+     * @return the name under which the recording is saved in storage, or null if it wasn't saved
+     */
+    public String stopRecording(String name) {
+        if (name == null) {
+            return null;
+        }
+        File file = new File(dir, NAME_PREFIX + name + ".jfr");
+        try {
+            execute("jfrStop", "name=" + NAME_PREFIX + name, "filename=" + file.getAbsolutePath());
+            String storageName = Naming.getRecordingFileName(name);
+            writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(storageName, new FilePayload(file)));
+            LOG.info("Saved flight recording {} ({} bytes)", storageName, file.length());
+            return storageName;
+        } catch (JMException | SiteMapException | RuntimeException e) {
+            LOG.error("Unable to save flight recording {}", name, e);
+        } catch (InterruptedException e) {
+            LOG.warn("Saving flight recording {} was interrupted", name);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (file.exists() && !file.delete()) {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the application for a number of minutes, e.g. to analyse the read path. The recording is saved in storage
+     * when it's finished
+     * @param minutes duration of the recording, at most the configured maximum
+     * @return the name under which the recording will be saved in storage
+     * @throws SiteMapException when the recording can't be started
+     */
+    public String record(long minutes) throws SiteMapException {
+        if (minutes <= 0 || minutes > maxDurationMinutes) {
+            throw new SiteMapException("Recording duration should be between 1 and " + maxDurationMinutes + " minutes");
+        }
+        String name = getRecordingName("ondemand", new Date());
+        try {
+            start(name, minutes);
+        } catch (JMException | RuntimeException e) {
+            throw new SiteMapException("Unable to start flight recording, is JFR supported by this JVM?", e);
+        }
+        scheduler.schedule(() -> stopRecording(name), minutes, TimeUnit.MINUTES);
+        return Naming.getRecordingFileName(name);
+    }
+
+    private void start(String name, long minutes) throws JMException {
+        List<String> args = new ArrayList<>();
+        args.add("name=" + NAME_PREFIX + name);
+        args.add("settings=" + settings);
+        if (minutes > 0) {
+            // stopped by us, the duration only makes sure the recording ends if that fails
+            args.add("duration=" + (minutes + 1) + "m");
+        }
+        LOG.info("Starting flight recording {}: {}", name, execute("jfrStart", args.toArray(new String[0])));
+    }
+
+    private static String execute(String command, String... args) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object result = server.invoke(new ObjectName(DIAGNOSTIC_COMMAND), command, new Object[]{args}, SIGNATURE);
+        return (result == null ? "" : result.toString().trim());
+    }
+
+    /**
+     * Stop the scheduler when the application is shutting down. Recordings in progress are not saved
+     */
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
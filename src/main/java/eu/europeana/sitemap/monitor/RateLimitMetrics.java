@@ -0,0 +1,37 @@
+package eu.europeana.sitemap.monitor;
+
+import eu.europeana.sitemap.web.SitemapRateLimitFilter;
+import eu.europeana.sitemap.web.TokenBucketLimiter;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the rate limiting and load shedding counters in the actuator metrics endpoint, so limits can be tuned
+ */
+public class RateLimitMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "sitemap.ratelimit.";
+
+    private final SitemapRateLimitFilter filter;
+
+    public RateLimitMetrics(SitemapRateLimitFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> result = new ArrayList<>();
+        for (TokenBucketLimiter limiter : filter.getLimiters()) {
+            result.add(new Metric<>(PREFIX + limiter.getName() + ".allowed", limiter.getNrAllowed()));
+            result.add(new Metric<>(PREFIX + limiter.getName() + ".limited", limiter.getNrLimited()));
+        }
+        result.add(new Metric<>(PREFIX + "inflight", filter.getInFlight()));
+        result.add(new Metric<>(PREFIX + "inflight.peak", filter.getPeakInFlight()));
+        result.add(new Metric<>(PREFIX + "shed", filter.getNrShed()));
+        return result;
+    }
+}
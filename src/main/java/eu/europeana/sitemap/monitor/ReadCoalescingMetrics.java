@@ -0,0 +1,31 @@
+package eu.europeana.sitemap.monitor;
+
+import eu.europeana.sitemap.storage.SingleFlight;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the read coalescing counters in the actuator metrics endpoint, so we can see how many storage reads are saved
+ */
+public class ReadCoalescingMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "sitemap.read.coalesce.";
+
+    private final SingleFlight<?> fileReads;
+
+    public ReadCoalescingMetrics(SingleFlight<?> fileReads) {
+        this.fileReads = fileReads;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> result = new ArrayList<>();
+        result.add(new Metric<>(PREFIX + "calls", fileReads.getNrCalls()));
+        result.add(new Metric<>(PREFIX + "coalesced", fileReads.getNrCoalesced()));
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+package eu.europeana.sitemap.monitor;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.europeana.domain.StorageObject;
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapBadRequestException;
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jclouds.io.payloads.ByteArrayPayload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Saves the report of every sitemap update run in storage, so we can follow how the duration and throughput of updates
+ * evolve over time. Each report is saved in its own file and the last runs are also kept together in a history file,
+ * which is used to calculate the trend, see {@link RunTrend}.
+ */
+public class RunHistory {
+
+    private static final Logger LOG = LogManager.getLogger(RunHistory.class);
+
+    private final ObjectStorageClient objectStorageProvider;
+    private final StorageBulkhead writeBulkhead;
+    private final int maxRuns;
+    private final int trendWindow;
+    private final double regressionThreshold;
+    private final ObjectMapper jsonMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Create a new run history
+     * @param objectStorageProvider storage where the reports are saved
+     * @param writeBulkhead limits concurrent storage requests
+     * @param maxRuns maximum number of runs kept in the history file
+     * @param trendWindow number of previous runs over which averages are calculated
+     * @param regressionThreshold fraction by which a run may be slower than the average before it's flagged
+     */
+    public RunHistory(ObjectStorageClient objectStorageProvider, StorageBulkhead writeBulkhead, int maxRuns,
+                      int trendWindow, double regressionThreshold) {
+        this.objectStorageProvider = objectStorageProvider;
+        this.writeBulkhead = writeBulkhead;
+        this.maxRuns = maxRuns;
+        this.trendWindow = trendWindow;
+        this.regressionThreshold = regressionThreshold;
+    }
+
+    /**
+     * Save the report of a finished run and add it to the history. Errors are logged, but not thrown so they don't
+     * affect the update itself
+     * @param report report of the run
+     */
+    public synchronized void save(RunReport report) {
+        LOG.info("Run {} finished in {} ms, phases: {}", report.getRunId(), report.getDurationMs(),
+                report.getPhaseMs());
+        try {
+            put(Naming.getRunReportFileName(report.getRunId()), jsonMapper.writeValueAsBytes(report));
+            List<RunReport> runs = new ArrayList<>(load());
+            runs.add(report);
+            if (runs.size() > maxRuns) {
+                runs = runs.subList(runs.size() - maxRuns, runs.size());
+            }
+            put(Naming.RUN_HISTORY_FILE, jsonMapper.writeValueAsBytes(runs));
+        } catch (IOException | SiteMapException e) {
+            LOG.error("Unable to save report of run {}", report.getRunId(), e);
+        } catch (InterruptedException e) {
+            LOG.warn("Saving report of run {} was interrupted", report.getRunId());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param limit maximum number of runs, the trend is always calculated over the full history
+     * @return the last runs and their trend
+     * @throws SiteMapException when the history can't be read or the limit is negative
+     */
+    public RunTrend getTrend(int limit) throws SiteMapException {
+        if (limit < 0) {
+            throw new SiteMapBadRequestException("Limit should not be negative");
+        }
+        try {
+            return new RunTrend(load(), limit, trendWindow, regressionThreshold);
+        } catch (IOException e) {
+            throw new SiteMapException("Error reading run history", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SiteMapException("Reading run history was interrupted", e);
+        }
+    }
+
+    private List<RunReport> load() throws IOException, SiteMapException, InterruptedException {
+        Optional<StorageObject> file = writeBulkhead.executeUnchecked(() ->
+                objectStorageProvider.get(Naming.RUN_HISTORY_FILE));
+        if (!file.isPresent()) {
+            return Collections.emptyList();
+        }
+        try (InputStream in = file.get().getPayload().openStream()) {
+            return jsonMapper.readValue(in, new TypeReference<List<RunReport>>() {});
+        }
+    }
+
+    private void put(String fileName, byte[] json) throws SiteMapException, InterruptedException {
+        writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(fileName, new ByteArrayPayload(json)));
+    }
+}
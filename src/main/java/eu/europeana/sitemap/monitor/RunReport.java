@@ -0,0 +1,221 @@
+package eu.europeana.sitemap.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performance report of one sitemap update run: when it ran, how long each phase took and how much was generated.
+ * Reports are saved in storage as json, see {@link RunHistory}.
+ */
+public class RunReport {
+
+    private String runId;
+    private List<String> sources;
+    private long start;
+    private long end;
+    private boolean success;
+    private String error;
+    private Map<String, Long> phaseMs = new LinkedHashMap<>();
+    private long nrRecords;
+    private long nrFiles;
+    private long totalBytes;
+    private long uploadRetries;
+    private long throttleMs;
+    private List<String> keptSources;
+    private long peakHeapBytes;
+    private String recording;
+
+    /**
+     * Constructor for deserialization
+     */
+    public RunReport() {
+        // empty
+    }
+
+    /**
+     * Start a new report. This also resets the peak memory usage, so we can report the peak of this run
+     * @param runId identifies the run
+     * @param sources names of the regenerated sources
+     */
+    public RunReport(String runId, List<String> sources) {
+        this.runId = runId;
+        this.sources = sources;
+        this.start = System.currentTimeMillis();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Record the duration of a phase of the run
+     * @param phase name of the phase
+     * @param phaseStart start time (epoch ms) of the phase
+     * @return the current time, which is the start of the next phase
+     */
+    public long endPhase(String phase, long phaseStart) {
+        long now = System.currentTimeMillis();
+        phaseMs.put(phase, now - phaseStart);
+        return now;
+    }
+
+    /**
+     * Mark the run as finished and record the peak memory usage
+     * @param error error message if the run failed, null if it succeeded
+     */
+    public void finish(String error) {
+        this.end = System.currentTimeMillis();
+        this.success = (error == null);
+        this.error = error;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        this.peakHeapBytes = peak;
+    }
+
+    /**
+     * @return the duration of the run in milliseconds
+     */
+    public long getDurationMs() {
+        return end - start;
+    }
+
+    /**
+     * @return number of records processed per second during the run
+     */
+    public double getRecordsPerSecond() {
+        long durationMs = getDurationMs();
+        return (durationMs <= 0 ? 0 : nrRecords * 1000.0 / durationMs);
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public List<String> getSources() {
+        return sources;
+    }
+
+    public void setSources(List<String> sources) {
+        this.sources = sources;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public Map<String, Long> getPhaseMs() {
+        return phaseMs;
+    }
+
+    public void setPhaseMs(Map<String, Long> phaseMs) {
+        this.phaseMs = phaseMs;
+    }
+
+    public long getNrRecords() {
+        return nrRecords;
+    }
+
+    public void setNrRecords(long nrRecords) {
+        this.nrRecords = nrRecords;
+    }
+
+    public long getNrFiles() {
+        return nrFiles;
+    }
+
+    public void setNrFiles(long nrFiles) {
+        this.nrFiles = nrFiles;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public long getUploadRetries() {
+        return uploadRetries;
+    }
+
+    public void setUploadRetries(long uploadRetries) {
+        this.uploadRetries = uploadRetries;
+    }
+
+    /**
+     * @return time Mongo scans waited for the scan throttle during this run
+     */
+    public long getThrottleMs() {
+        return throttleMs;
+    }
+
+    public void setThrottleMs(long throttleMs) {
+        this.throttleMs = throttleMs;
+    }
+
+    public List<String> getKeptSources() {
+        return keptSources;
+    }
+
+    public void setKeptSources(List<String> keptSources) {
+        this.keptSources = keptSources;
+    }
+
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    public void setPeakHeapBytes(long peakHeapBytes) {
+        this.peakHeapBytes = peakHeapBytes;
+    }
+
+    public String getRecording() {
+        return recording;
+    }
+
+    public void setRecording(String recording) {
+        this.recording = recording;
+    }
+}
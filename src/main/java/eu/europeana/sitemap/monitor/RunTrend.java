@@ -0,0 +1,104 @@
+package eu.europeana.sitemap.monitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last sitemap update runs and their trend. Runs are only compared with runs that regenerated the same sources,
+ * so updates of a single record tier are not compared with full updates.
+ */
+public class RunTrend {
+
+    private final List<RunReport> runs;
+    private final int window;
+    private final double threshold;
+    private final Map<String, Long> movingAvgDurationMs = new LinkedHashMap<>();
+    private final Map<String, Double> movingAvgRecordsPerSecond = new LinkedHashMap<>();
+    private final List<String> regressions = new ArrayList<>();
+
+    /**
+     * Calculate the trend of runs. Averages are calculated over all runs, but only the last runs (and their
+     * regressions) are listed
+     * @param runs reports of runs, in chronological order
+     * @param limit maximum number of (most recent) runs that are listed
+     * @param window number of previous successful runs over which averages are calculated
+     * @param threshold runs that are this fraction slower than the average of the previous runs are flagged as
+     *                  regression, e.g. 0.25 for 25%
+     */
+    public RunTrend(List<RunReport> runs, int limit, int window, double threshold) {
+        int firstListed = Math.max(0, runs.size() - limit);
+        this.runs = runs.subList(firstListed, runs.size());
+        this.window = window;
+        this.threshold = threshold;
+        Map<String, List<RunReport>> previousRuns = new LinkedHashMap<>();
+        for (int i = 0; i < runs.size(); i++) {
+            RunReport run = runs.get(i);
+            if (!run.isSuccess()) {
+                continue;
+            }
+            String key = (run.getSources() == null ? "" : String.join(",", run.getSources()));
+            List<RunReport> previous = previousRuns.computeIfAbsent(key, k -> new ArrayList<>());
+            if (previous.size() >= window && i >= firstListed) {
+                checkRegression(run, previous);
+            }
+            previous.add(run);
+            if (previous.size() > window) {
+                previous.remove(0);
+            }
+            movingAvgDurationMs.put(key, (long) previous.stream().mapToLong(RunReport::getDurationMs).average().orElse(0));
+            movingAvgRecordsPerSecond.put(key, previous.stream().mapToDouble(RunReport::getRecordsPerSecond)
+                    .average().orElse(0));
+        }
+    }
+
+    private void checkRegression(RunReport run, List<RunReport> previous) {
+        double avgDuration = previous.stream().mapToLong(RunReport::getDurationMs).average().orElse(0);
+        double avgThroughput = previous.stream().mapToDouble(RunReport::getRecordsPerSecond).average().orElse(0);
+        if (avgDuration > 0 && run.getDurationMs() > avgDuration * (1 + threshold)) {
+            regressions.add(String.format("Run %s took %d ms, %.0f%% more than the average of the previous %d runs",
+                    run.getRunId(), run.getDurationMs(), (run.getDurationMs() / avgDuration - 1) * 100, window));
+        }
+        if (avgThroughput > 0 && run.getRecordsPerSecond() < avgThroughput * (1 - threshold)) {
+            regressions.add(String.format("Run %s processed %.0f records/s, %.0f%% less than the average of the "
+                    + "previous %d runs", run.getRunId(), run.getRecordsPerSecond(),
+                    (1 - run.getRecordsPerSecond() / avgThroughput) * 100, window));
+        }
+    }
+
+    /**
+     * @return reports of the runs, in chronological order
+     */
+    public List<RunReport> getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return number of runs over which averages are calculated
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return average duration of the last successful runs, per combination of regenerated sources
+     */
+    public Map<String, Long> getMovingAvgDurationMs() {
+        return movingAvgDurationMs;
+    }
+
+    /**
+     * @return average throughput of the last successful runs, per combination of regenerated sources
+     */
+    public Map<String, Double> getMovingAvgRecordsPerSecond() {
+        return movingAvgRecordsPerSecond;
+    }
+
+    /**
+     * @return descriptions of runs that were much slower than the runs before them
+     */
+    public List<String> getRegressions() {
+        return regressions;
+    }
+}
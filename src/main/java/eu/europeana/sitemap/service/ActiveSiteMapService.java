@@ -2,12 +2,14 @@ package eu.europeana.sitemap.service;
 
 import eu.europeana.domain.StorageObject;
 import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.SitemapApplication;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jclouds.io.Payload;
 import org.jclouds.io.payloads.StringPayload;
 import org.jclouds.openstack.swift.v1.domain.SwiftObject;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
@@ -21,6 +23,7 @@ import java.util.Optional;
  * Created by jeroen on 21-9-16.
  */
 @Service
+@Profile("!" + SitemapApplication.READ_ONLY_PROFILE)
 public class ActiveSiteMapService {
 
     private static final Logger LOG = LogManager.getLogger(ActiveSiteMapService.class);
@@ -74,14 +77,21 @@ public class ActiveSiteMapService {
      * @return the inactive sitemap file name (blue/green)
      */
     public String getInactiveFile() {
+        return getOtherFile(getActiveFile());
+    }
+
+    /**
+     * @param file either the green or blue sitemap file name
+     * @return the other sitemap file name (blue/green)
+     */
+    public static String getOtherFile(String file) {
         String result;
-        if (EUROPEANA_SITEMAP_HASHED_GREEN.equals(getActiveFile())) {
+        if (EUROPEANA_SITEMAP_HASHED_GREEN.equals(file)) {
             result = EUROPEANA_SITEMAP_HASHED_BLUE;
         } else {
             result = EUROPEANA_SITEMAP_HASHED_GREEN;
         }
         return result;
-
     }
 
     /**
@@ -0,0 +1,257 @@
+package eu.europeana.sitemap.service;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import eu.europeana.domain.StorageObject;
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapConfigException;
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.exceptions.UpdateAlreadyInProgressException;
+import eu.europeana.sitemap.index.RecordChange;
+import eu.europeana.sitemap.index.RecordIndexStore;
+import eu.europeana.sitemap.mongo.MongoProvider;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.jclouds.io.payloads.ByteArrayPayload;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the active sitemap up-to-date between full updates by following the change stream of the record collection.
+ * Changed records are collected during a time window (or until a maximum number of records is reached), after which
+ * they are added to the local record index and only the sitemap files containing these records are rendered again,
+ * see {@link GenerateSitemapService#applyRecordChanges(java.util.Collection)}.
+ *
+ * The resume token of the last processed change is saved in storage, so after a restart we continue where we left off.
+ * Deleted records are not processed; they are removed when the record index is rebuilt. Change streams require Mongo
+ * to run as a replica set.
+ */
+public class ChangeStreamUpdater {
+
+    private static final Logger LOG = LogManager.getLogger(ChangeStreamUpdater.class);
+
+    /** Used mongo fields **/
+    private static final String ABOUT = "about";
+    private static final String LASTUPDATED = "timestampUpdated";
+    private static final String COMPLETENESS = "europeanaCompleteness";
+
+    private static final long MAX_AWAIT_MS = 1000;
+    private static final long RETRY_DELAY_MS = 30_000;
+
+    private final boolean enabled;
+    private final MongoProvider mongoProvider;
+    private final ObjectStorageClient objectStorageProvider;
+    private final StorageBulkhead writeBulkhead;
+    private final GenerateSitemapService generateSitemapService;
+    private final RecordIndexStore recordIndexStore;
+    private final long windowMs;
+    private final int maxBatchSize;
+
+    private final Map<String, RecordChange> pending = new LinkedHashMap<>();
+    private BsonDocument pendingToken;
+    private long windowStart;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Create a new change stream updater
+     * @param enabled if false the change stream is not followed
+     * @param mongoProvider provides the record collection
+     * @param objectStorageProvider storage where the resume token is saved
+     * @param writeBulkhead limits concurrent storage requests
+     * @param generateSitemapService service that applies the changes to the sitemap
+     * @param recordIndexStore local record index, must be enabled
+     * @param windowMs time during which changes are collected before they are applied
+     * @param maxBatchSize maximum number of changed records that are collected before they are applied
+     */
+    public ChangeStreamUpdater(boolean enabled, MongoProvider mongoProvider, ObjectStorageClient objectStorageProvider,
+                               StorageBulkhead writeBulkhead, GenerateSitemapService generateSitemapService,
+                               RecordIndexStore recordIndexStore, long windowMs, int maxBatchSize) {
+        this.enabled = enabled;
+        this.mongoProvider = mongoProvider;
+        this.objectStorageProvider = objectStorageProvider;
+        this.writeBulkhead = writeBulkhead;
+        this.generateSitemapService = generateSitemapService;
+        this.recordIndexStore = recordIndexStore;
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Start following the change stream (if enabled)
+     * @throws SiteMapConfigException if enabled without the record index
+     */
+    @PostConstruct
+    public void start() throws SiteMapConfigException {
+        if (!enabled) {
+            return;
+        }
+        if (!recordIndexStore.isEnabled()) {
+            throw new SiteMapConfigException("Following the change stream requires record.index.enabled=true");
+        }
+        running = true;
+        thread = new Thread(this::run, "sitemap-changestream");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("Following record change stream, applying changes every {} ms or {} records", windowMs, maxBatchSize);
+    }
+
+    /**
+     * Stop following the change stream. Changes that are not applied yet are processed again after a restart
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException | SiteMapException e) {
+                LOG.error("Error following record change stream, retrying in {} ms", RETRY_DELAY_MS, e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void follow() throws SiteMapException, InterruptedException {
+        BsonDocument resumeToken = (pendingToken == null ? loadToken() : pendingToken);
+        try (MongoCursor<ChangeStreamDocument<Document>> cursor = openStream(resumeToken)) {
+            windowStart = System.currentTimeMillis();
+            while (running) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change != null) {
+                    add(change);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (pending.size() >= maxBatchSize
+                        || (pendingToken != null && System.currentTimeMillis() - windowStart >= windowMs)) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    private MongoCursor<ChangeStreamDocument<Document>> openStream(BsonDocument resumeToken) {
+        List<Bson> pipeline = Arrays.asList(
+                Aggregates.match(Filters.in("operationType", "insert", "update", "replace")),
+                Aggregates.project(Projections.include("operationType", "ns", "documentKey",
+                        "fullDocument." + ABOUT, "fullDocument." + COMPLETENESS, "fullDocument." + LASTUPDATED)));
+        if (resumeToken != null) {
+            try {
+                return watch(pipeline).resumeAfter(resumeToken).iterator();
+            } catch (MongoException e) {
+                // the token may have dropped out of the oplog, changes made in the meantime are included in the next update
+                LOG.warn("Unable to resume record change stream, starting from now", e);
+                pending.clear();
+                pendingToken = null;
+            }
+        }
+        return watch(pipeline).iterator();
+    }
+
+    private ChangeStreamIterable<Document> watch(List<Bson> pipeline) {
+        return mongoProvider.getRecordCollection().watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(MAX_AWAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void add(ChangeStreamDocument<Document> change) {
+        Document record = change.getFullDocument();
+        // with update lookup the record may have been deleted in the meantime
+        if (record != null && record.get(ABOUT) != null) {
+            String about = record.get(ABOUT).toString();
+            Object completeness = record.get(COMPLETENESS);
+            Object timestampUpdated = record.get(LASTUPDATED);
+            long lastModifiedDay = (timestampUpdated instanceof Date
+                    ? TimeUnit.MILLISECONDS.toDays(((Date) timestampUpdated).getTime()) : -1);
+            try {
+                pending.put(about, new RecordChange(about,
+                        completeness == null ? 0 : Integer.parseInt(completeness.toString()), lastModifiedDay));
+            } catch (NumberFormatException e) {
+                // skip the record, otherwise we would process the same change over and over again
+                LOG.warn("Skipping change of record {} with invalid completeness {}", about, completeness, e);
+            }
+        }
+        pendingToken = change.getResumeToken();
+    }
+
+    /**
+     * Apply all collected changes and save the resume token
+     * @throws SiteMapException if the changes can't be applied, in that case they are kept (and the resume token is
+     * not saved) so we can try again
+     */
+    private void flush() throws SiteMapException, InterruptedException {
+        windowStart = System.currentTimeMillis();
+        if (!pending.isEmpty()) {
+            try {
+                generateSitemapService.applyRecordChanges(pending.values());
+            } catch (UpdateAlreadyInProgressException e) {
+                // keep the changes for the next window
+                LOG.info("Sitemap update in progress, postponing {} record changes", pending.size());
+                return;
+            }
+            pending.clear();
+        }
+        saveToken(pendingToken);
+    }
+
+    private BsonDocument loadToken() throws SiteMapException, InterruptedException {
+        Optional<StorageObject> file = writeBulkhead.executeUnchecked(() ->
+                objectStorageProvider.get(Naming.CHANGE_STREAM_TOKEN_FILE));
+        if (!file.isPresent()) {
+            LOG.info("No change stream resume token found, starting from now");
+            return null;
+        }
+        try (InputStream in = file.get().getPayload().openStream()) {
+            return BsonDocument.parse(IOUtils.toString(in, StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Invalid change stream resume token, starting from now", e);
+            return null;
+        }
+    }
+
+    private void saveToken(BsonDocument token) throws SiteMapException, InterruptedException {
+        byte[] json = token.toJson().getBytes(StandardCharsets.UTF_8);
+        writeBulkhead.executeUnchecked(() ->
+                objectStorageProvider.put(Naming.CHANGE_STREAM_TOKEN_FILE, new ByteArrayPayload(json)));
+    }
+}
@@ -0,0 +1,305 @@
+package eu.europeana.sitemap.service;
+
+import eu.europeana.domain.StorageObject;
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.delta.SnapshotDiff;
+import eu.europeana.sitemap.delta.SnapshotReader;
+import eu.europeana.sitemap.delta.SnapshotWriter;
+import eu.europeana.sitemap.delta.UrlNotifier;
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import eu.europeana.sitemap.generate.SitemapSource;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jclouds.io.payloads.ByteArrayPayload;
+import org.jclouds.io.payloads.FilePayload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Publishes the differences between two sitemap generations. During generation a sorted snapshot of all item keys
+ * and their last modified date is saved next to the sitemap files of each source. After a switch the new snapshot is compared with the
+ * previous one and all added, modified and removed urls are
+ * <ul>
+ *     <li>written to a small delta sitemap file, so search engines can find changes without crawling all files</li>
+ *     <li>pushed in batches to search engines via the configured {@link UrlNotifier}</li>
+ * </ul>
+ * The delta sitemap entries of each source are also saved separately. When only some sources are regenerated (e.g.
+ * one record tier), the delta sitemap is made of their new entries and the saved entries of the other sources.
+ */
+public class DeltaFeedService {
+
+    private static final Logger LOG = LogManager.getLogger(DeltaFeedService.class);
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    private static final String URLSET_HEADER = "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">";
+    private static final String URLSET_HEADER_CLOSING = "</urlset>";
+    private static final char LN = '\n';
+
+    private final boolean enabled;
+    private final ObjectStorageClient objectStorageProvider;
+    private final StorageBulkhead writeBulkhead;
+    private final UrlNotifier notifier;
+    private final File workDir;
+    private final int sortChunkSize;
+    private final int maxDeltaSitemapUrls;
+
+    /**
+     * Create a new delta feed service
+     * @param enabled if false no snapshots are made and no deltas are published
+     * @param objectStorageProvider storage where snapshots and the delta sitemap are saved
+     * @param writeBulkhead limits concurrent storage requests (reads and writes)
+     * @param notifier used to push changed urls
+     * @param workDir directory for temporary files
+     * @param sortChunkSize maximum number of records sorted in memory when creating a snapshot
+     * @param maxDeltaSitemapUrls maximum number of urls in the delta sitemap
+     */
+    public DeltaFeedService(boolean enabled, ObjectStorageClient objectStorageProvider, StorageBulkhead writeBulkhead,
+                            UrlNotifier notifier, File workDir, int sortChunkSize, int maxDeltaSitemapUrls) {
+        this.enabled = enabled;
+        this.objectStorageProvider = objectStorageProvider;
+        this.writeBulkhead = writeBulkhead;
+        this.notifier = notifier;
+        this.workDir = workDir;
+        this.sortChunkSize = sortChunkSize;
+        this.maxDeltaSitemapUrls = maxDeltaSitemapUrls;
+    }
+
+    /**
+     * @return true if snapshots should be made and deltas published
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return new writer for creating a snapshot during generation, or null if this service is disabled
+     */
+    public SnapshotWriter createSnapshotWriter() {
+        if (!enabled) {
+            return null;
+        }
+        return new SnapshotWriter(workDir, sortChunkSize);
+    }
+
+    /**
+     * Finish a snapshot and save it to storage
+     * @param snapshot the snapshot to save (it is closed afterwards)
+     * @param name the name under which the snapshot is stored
+     */
+    public void saveSnapshot(SnapshotWriter snapshot, String name) throws IOException, InterruptedException,
+            SiteMapUnavailableException {
+        try {
+            File file = snapshot.finish();
+            writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(name, new FilePayload(file)));
+            LOG.info("Saved snapshot {} with {} records ({} bytes)", name, snapshot.getNrRecords(), file.length());
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Compare the previous and new snapshot of each regenerated source and publish all differences
+     * @param sources all sources included in the sitemap
+     * @param previousLocations for each source, the deployment (blue/green) where its previous files are stored
+     * @param newLocations for each regenerated source, the deployment (blue/green) where its new files are stored
+     * @param portalBaseUrl base url of all urls
+     */
+    public void publish(List<SitemapSource> sources, Map<String, String> previousLocations,
+                        Map<String, String> newLocations, String portalBaseUrl) {
+        if (!enabled) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        DeltaPublisher publisher = new DeltaPublisher();
+        try {
+            Map<String, String> parts = new LinkedHashMap<>();
+            for (SitemapSource source : sources) {
+                String name = source.getName();
+                String newLocation = newLocations.get(name);
+                if (newLocation == null) {
+                    parts.put(name, loadPart(name));
+                    continue;
+                }
+                publisher.startSource(key -> portalBaseUrl + source.getUrlPath(key));
+                diffSource(Naming.getSnapshotFileName(previousLocations.get(name), name),
+                        Naming.getSnapshotFileName(newLocation, name), publisher);
+                String part = publisher.part.toString();
+                savePart(name, part);
+                parts.put(name, part);
+            }
+            publisher.flush();
+            saveDeltaSitemap(parts);
+            LOG.info("Delta: {} added, {} modified, {} removed items. Pushed {} urls via {} in {} ms",
+                    publisher.nrAdded, publisher.nrModified, publisher.nrRemoved, publisher.nrPushed,
+                    notifier.getName(), System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            LOG.error("Error publishing sitemap delta", e);
+        } catch (InterruptedException e) {
+            LOG.warn("Publishing sitemap delta was interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (SiteMapUnavailableException e) {
+            LOG.error("Unable to save delta sitemap", e);
+        }
+    }
+
+    private void diffSource(String oldSnapshotName, String newSnapshotName, DeltaPublisher publisher)
+            throws IOException, InterruptedException, SiteMapUnavailableException {
+        Optional<StorageObject> oldSnapshot = writeBulkhead.executeUnchecked(() ->
+                objectStorageProvider.get(oldSnapshotName));
+        Optional<StorageObject> newSnapshot = writeBulkhead.executeUnchecked(() ->
+                objectStorageProvider.get(newSnapshotName));
+        if (!oldSnapshot.isPresent() || !newSnapshot.isPresent()) {
+            LOG.info("No snapshots {} and {} available, skipping delta", oldSnapshotName, newSnapshotName);
+            return;
+        }
+        try (InputStream oldIn = oldSnapshot.get().getPayload().openStream();
+             InputStream newIn = newSnapshot.get().getPayload().openStream();
+             SnapshotReader oldReader = new SnapshotReader(new GZIPInputStream(oldIn));
+             SnapshotReader newReader = new SnapshotReader(new GZIPInputStream(newIn))) {
+            SnapshotDiff.diff(oldReader, newReader, publisher);
+        }
+    }
+
+    /**
+     * @return the saved delta sitemap entries of the last generation of a source, empty if there are none
+     */
+    private String loadPart(String source) throws IOException, InterruptedException, SiteMapUnavailableException {
+        String fileName = Naming.getDeltaPartFileName(source);
+        Optional<StorageObject> part = writeBulkhead.executeUnchecked(() -> objectStorageProvider.get(fileName));
+        if (!part.isPresent()) {
+            return "";
+        }
+        try (InputStream in = part.get().getPayload().openStream()) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void savePart(String source, String part) throws InterruptedException, SiteMapUnavailableException {
+        ByteArrayPayload payload = new ByteArrayPayload(part.getBytes(StandardCharsets.UTF_8));
+        writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(Naming.getDeltaPartFileName(source), payload));
+    }
+
+    /**
+     * Combine the entries of all sources into the delta sitemap. Parts contain one url entry per line, we stop when
+     * the maximum number of urls is reached.
+     */
+    private void saveDeltaSitemap(Map<String, String> parts) throws InterruptedException, SiteMapUnavailableException {
+        StringBuilder sitemap = new StringBuilder().append(XML_HEADER).append(LN).append(URLSET_HEADER).append(LN);
+        int nrUrls = 0;
+        for (Map.Entry<String, String> part : parts.entrySet()) {
+            for (String line : part.getValue().split(String.valueOf(LN))) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (nrUrls == maxDeltaSitemapUrls) {
+                    LOG.warn("Maximum number of urls in delta sitemap reached, skipping remaining entries of {}",
+                            part.getKey());
+                    break;
+                }
+                sitemap.append(line).append(LN);
+                nrUrls++;
+            }
+        }
+        sitemap.append(URLSET_HEADER_CLOSING);
+        ByteArrayPayload payload = new ByteArrayPayload(sitemap.toString().getBytes(StandardCharsets.UTF_8));
+        writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(Naming.SITEMAP_DELTA_FILE, payload));
+    }
+
+    /**
+     * Writes added and modified urls to the delta sitemap entries of a source and pushes all changed urls in batches
+     */
+    private final class DeltaPublisher implements SnapshotDiff.Listener {
+
+        private Function<String, String> urlForKey;
+        private StringBuilder part;
+        private final List<String> batch = new ArrayList<>(notifier.getMaxBatchSize());
+        private long nrAdded;
+        private long nrModified;
+        private long nrRemoved;
+        private long nrPushed;
+        private int nrSitemapUrls;
+        private boolean pushFailed;
+
+        private void startSource(Function<String, String> urlForKey) {
+            this.urlForKey = urlForKey;
+            this.part = new StringBuilder();
+            this.nrSitemapUrls = 0;
+        }
+
+        @Override
+        public void added(String key, long lastModifiedDay) {
+            nrAdded++;
+            changed(key, lastModifiedDay);
+        }
+
+        @Override
+        public void modified(String key, long lastModifiedDay) {
+            nrModified++;
+            changed(key, lastModifiedDay);
+        }
+
+        @Override
+        public void removed(String key) {
+            nrRemoved++;
+            // search engines will find out the url is gone when they recrawl it
+            push(urlForKey.apply(key));
+        }
+
+        private void changed(String key, long lastModifiedDay) {
+            String url = urlForKey.apply(key);
+            if (nrSitemapUrls < maxDeltaSitemapUrls) {
+                // one entry per line, so parts can be combined without parsing
+                part.append("<url><loc>").append(StringEscapeUtils.escapeXml(url)).append("</loc>");
+                if (lastModifiedDay != SnapshotWriter.UNKNOWN_DAY) {
+                    part.append("<lastmod>").append(LocalDate.ofEpochDay(lastModifiedDay)).append("</lastmod>");
+                }
+                part.append("</url>").append(LN);
+                nrSitemapUrls++;
+                if (nrSitemapUrls == maxDeltaSitemapUrls) {
+                    LOG.warn("Maximum number of urls in delta sitemap reached, remaining changes are only pushed");
+                }
+            }
+            push(url);
+        }
+
+        private void push(String url) {
+            if (pushFailed) {
+                return;
+            }
+            batch.add(url);
+            if (batch.size() >= notifier.getMaxBatchSize()) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty() || pushFailed) {
+                return;
+            }
+            try {
+                notifier.notify(batch);
+                nrPushed += batch.size();
+            } catch (IOException e) {
+                // most likely we're rate limited, so no point in sending more
+                LOG.error("Error pushing changed urls via {}, skipping remaining urls", notifier.getName(), e);
+                pushFailed = true;
+            }
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package eu.europeana.sitemap.service;
+
+import eu.europeana.domain.StorageObject;
+
+import java.util.List;
+
+/**
+ * One page of a listing of stored files
+ */
+public final class FileListing {
+
+    private final List<StorageObject> files;
+    private final String nextMarker;
+
+    /**
+     * Create a new page of files
+     * @param files the files on this page
+     * @param nextMarker marker to retrieve the next page, null if this is the last page
+     */
+    public FileListing(List<StorageObject> files, String nextMarker) {
+        this.files = files;
+        this.nextMarker = nextMarker;
+    }
+
+    /**
+     * @return the files on this page
+     */
+    public List<StorageObject> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return name of the last file on this page, which is used as marker to retrieve the next page. Null if there are
+     * no more files
+     */
+    public String getNextMarker() {
+        return nextMarker;
+    }
+}
@@ -1,6 +1,11 @@
 package eu.europeana.sitemap.service;
 
 import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.generate.GenerationStats;
+import eu.europeana.sitemap.index.RecordChange;
+import eu.europeana.sitemap.index.RecordIndex;
+
+import java.util.Collection;
 
 /**
  * All supported methods for generating a new sitemap
@@ -15,4 +20,38 @@ public interface GenerateSitemapService {
      */
     void update() throws SiteMapException;
 
+    /**
+     * Regenerate only the sitemap files of one record tier. The files of all other sources and tiers are kept, and
+     * the new sitemap index and manifest list both the new and the kept files.
+     * @param tier name of the record tier (as configured in record.tiers)
+     */
+    void updateTier(String tier) throws SiteMapException;
+
+    /**
+     * @param tier name of a record tier
+     * @return true if the record tier is configured (in record.tiers), otherwise false
+     */
+    boolean isTierConfigured(String tier);
+
+    /**
+     * Do a full scan of the database and render all sitemap files, but discard the result instead of saving it. The
+     * live sitemap is not affected. This is meant for profiling generation against the real database.
+     * @param tier optional, if provided only this record tier is scanned
+     * @return timings and sizes of all generation stages
+     */
+    GenerationStats dryRun(String tier) throws SiteMapException;
+
+    /**
+     * Rebuild the local record index with a full scan of the record collection (only if the record index is enabled)
+     * @return the new record index, including its size and build time
+     */
+    RecordIndex rebuildRecordIndex() throws SiteMapException;
+
+    /**
+     * Add changed records to the local record index and render only the sitemap files that contain these records
+     * again. The files are replaced in the active deployment (only if the record index is enabled)
+     * @param changes new or changed records
+     */
+    void applyRecordChanges(Collection<RecordChange> changes) throws SiteMapException;
+
 }
@@ -1,82 +1,106 @@
 package eu.europeana.sitemap.service;
 
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
 import eu.europeana.domain.StorageObject;
 import eu.europeana.features.ObjectStorageClient;
 import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.SitemapApplication;
 import eu.europeana.sitemap.exceptions.SiteMapConfigException;
 import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
 import eu.europeana.sitemap.exceptions.UpdateAlreadyInProgressException;
+import eu.europeana.sitemap.generate.EntitySitemapSource;
+import eu.europeana.sitemap.generate.GenerationStats;
+import eu.europeana.sitemap.generate.ImageSitemapSource;
+import eu.europeana.sitemap.generate.IndexedRecordSitemapSource;
+import eu.europeana.sitemap.generate.RecordSitemapSource;
+import eu.europeana.sitemap.generate.SitemapFileBounds;
+import eu.europeana.sitemap.generate.SitemapGenerator;
+import eu.europeana.sitemap.generate.SitemapManifest;
+import eu.europeana.sitemap.generate.SitemapRenderer;
+import eu.europeana.sitemap.generate.SitemapRevision;
+import eu.europeana.sitemap.generate.SitemapSource;
+import eu.europeana.sitemap.generate.SitemapVariant;
+import eu.europeana.sitemap.index.RecordChange;
+import eu.europeana.sitemap.index.RecordIndex;
+import eu.europeana.sitemap.index.RecordIndexStore;
 import eu.europeana.sitemap.mongo.MongoProvider;
-import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.commons.lang.time.DateFormatUtils;
+import eu.europeana.sitemap.mongo.ScanThrottle;
+import eu.europeana.sitemap.monitor.FlightRecorder;
+import eu.europeana.sitemap.monitor.RunHistory;
+import eu.europeana.sitemap.monitor.RunReport;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jclouds.io.payloads.ByteArrayPayload;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
+ * Generates a new sitemap for all configured sources (records and optionally entities) at the inactive blue/green
+ * deployment and switches to it when done.
  * Created by ymamakis on 11/16/15.
  */
 @Service
 @Primary
+@Profile("!" + SitemapApplication.READ_ONLY_PROFILE)
 public class GenerateSitemapServiceImpl implements GenerateSitemapService {
 
 
     private static final Logger LOG = LogManager.getLogger(GenerateSitemapServiceImpl.class);
 
-    /** XML definitions **/
-    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
-    private static final String SITEMAP_HEADER =
-            "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">";
-    private static final String URLSET_HEADER =
-            "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\""+
-                    " xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\""+
-                    " xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\">";
-    private static final String URL_OPENING = "<url>";
-    private static final String URL_CLOSING = "</url>";
-    private static final String LOC_OPENING = "<loc>";
-    private static final String LOC_CLOSING = "</loc>";
-    private static final char LN = '\n';
-    private static final String HTML = ".html";
-    private static final String FROM = "?from=";
-    private static final String TO = "&to=";
-    private static final String SITEMAP_OPENING = "<sitemap>";
-    private static final String SITEMAP_CLOSING = "</sitemap>";
-    private static final String SITEMAP_HEADER_CLOSING = "</sitemapindex>";
-    private static final String URLSET_HEADER_CLOSING = "</urlset>";
-    private static final String PRIORITY_OPENING = "<priority>";
-    private static final String PRIORITY_CLOSING = "</priority>";
-    private static final String LASTMOD_OPENING = "<lastmod>";
-    private static final String LASTMOD_CLOSING = "</lastmod>";
-
-    /** Used mongo fields **/
-    private static final String ABOUT = "about";
-    private static final String LASTUPDATED = "timestampUpdated";
-    private static final String COMPLETENESS = "europeanaCompleteness";
-
     private static final String UPDATE_IN_PROGRESS = "In progress";
     private static final String UPDATE_FINISHED = "Finished";
 
+    /** Mongo batch size (number of documents retrieved per round trip). How many urls go in a sitemap file is
+     * determined by maxUrlsPerFile and maxBytesPerFile **/
     public static final int NUMBER_OF_ELEMENTS = 45_000;
 
+    private static final String VARIANT_MODE_FILESETS = "filesets";
+    private static final String VARIANT_MODE_HREFLANG = "hreflang";
+    private static final Pattern VARIANT_NAME_PATTERN = Pattern.compile("[a-z0-9-]+");
+    private static final String DRY_RUN_DEPLOYMENT = "dryrun";
+
     private final MongoProvider mongoProvider;
     private final ObjectStorageClient objectStorageProvider;
     private final ActiveSiteMapService activeSiteMapService;
     private final ReadSitemapService readSitemapService;
     private final ResubmitService resubmitService;
+    private final StorageBulkhead writeBulkhead;
+    private final DeltaFeedService deltaFeedService;
+    private final SitemapVerifier verifier;
+    private final RecordIndexStore recordIndexStore;
+    private final FlightRecorder flightRecorder;
+    private final RunHistory runHistory;
+    private final ScanThrottle scanThrottle;
+    private final AtomicLong nrUploadRetries = new AtomicLong();
 
     @Value("${portal.base.url}")
     private String portalBaseUrl;
@@ -84,18 +108,60 @@ public class GenerateSitemapServiceImpl implements GenerateSitemapService {
     private String portalRecordUrlPath;
     @Value("${min.record.completeness}")
     private int minRecordCompleteness;
+    @Value("${sitemap.sources:record}")
+    private String[] sourceNames;
+    @Value("${generate.threads:2}")
+    private int generateThreads;
+    @Value("${entity.mongo.database:}")
+    private String entityDatabase;
+    @Value("${entity.mongo.collection:TermList}")
+    private String entityCollection;
+    @Value("${portal.entity.urlpath:/explore}")
+    private String portalEntityUrlPath;
+    @Value("${sitemap.variants:}")
+    private String[] variantDefinitions;
+    @Value("${sitemap.variants.mode:filesets}")
+    private String variantMode;
+    @Value("${record.tiers:}")
+    private String[] tierDefinitions;
+    @Value("${sitemap.file.max.urls:50000}")
+    private int maxUrlsPerFile;
+    @Value("${sitemap.file.max.bytes:52428800}")
+    private long maxBytesPerFile;
+    @Value("${sitemap.images.enabled:false}")
+    private boolean imagesEnabled;
+    @Value("${sitemap.images.batch.size:1000}")
+    private int imageBatchSize;
+    @Value("${update.dryrun:false}")
+    private boolean dryRunOnly;
+    @Value("${throttle.window.minutes:0}")
+    private long throttleWindowMinutes;
+
+    private List<SitemapSource> sources;
+    private SitemapGenerator generator;
 
     private String status = "initial";
     private Date updateStartTime;
 
     public GenerateSitemapServiceImpl(MongoProvider mongoProvider, ObjectStorageClient objectStorageProvider,
                                       ActiveSiteMapService activeSiteMapService, ReadSitemapService readSitemapService,
-                                      ResubmitService resubmitService) {
+                                      ResubmitService resubmitService,
+                                      @Qualifier("writeStorageBulkhead") StorageBulkhead writeBulkhead,
+                                      DeltaFeedService deltaFeedService, SitemapVerifier verifier,
+                                      RecordIndexStore recordIndexStore, FlightRecorder flightRecorder,
+                                      RunHistory runHistory, ScanThrottle scanThrottle) {
         this.mongoProvider = mongoProvider;
         this.objectStorageProvider = objectStorageProvider;
         this.activeSiteMapService = activeSiteMapService;
         this.readSitemapService = readSitemapService;
         this.resubmitService = resubmitService;
+        this.writeBulkhead = writeBulkhead;
+        this.deltaFeedService = deltaFeedService;
+        this.verifier = verifier;
+        this.recordIndexStore = recordIndexStore;
+        this.flightRecorder = flightRecorder;
+        this.runHistory = runHistory;
+        this.scanThrottle = scanThrottle;
     }
 
     @PostConstruct
@@ -111,136 +177,206 @@ public class GenerateSitemapServiceImpl implements GenerateSitemapService {
             throw new SiteMapConfigException("Portal.record.urlpath is not set");
         }
         portalRecordUrlPath = portalRecordUrlPath.trim();
+
+        // limits of the sitemap protocol
+        if (maxUrlsPerFile <= 0 || maxUrlsPerFile > 50_000) {
+            throw new SiteMapConfigException("Sitemap.file.max.urls should be between 1 and 50000");
+        }
+        if (maxBytesPerFile <= 0 || maxBytesPerFile > 52_428_800) {
+            throw new SiteMapConfigException("Sitemap.file.max.bytes should be between 1 and 52428800 (50 MB)");
+        }
+
+        sources = new ArrayList<>();
+        for (String sourceName : sourceNames) {
+            if (Naming.DEFAULT_FILE_SET.equals(sourceName.trim()) && tierDefinitions.length > 0) {
+                sources.addAll(createTierSources());
+            } else {
+                sources.add(createSource(sourceName.trim()));
+            }
+        }
+        generator = new SitemapGenerator(generateThreads, createVariants(), maxUrlsPerFile, maxBytesPerFile,
+                deltaFeedService);
+        LOG.info("Sitemap sources: {}, variants: {} ({})", Arrays.toString(sourceNames),
+                Arrays.toString(variantDefinitions), variantMode);
     }
 
     /**
-     * Generate a new sitemap
+     * Variants are defined as name|baseUrl. Depending on the mode each variant gets its own file sets and sitemap index
+     * (filesets) or is listed as alternate language version of each url in the default file sets (hreflang).
+     * @return list of all variants, starting with the default variant
      */
-    public void generate() {
-        DBCollection col = mongoProvider.getCollection();
-
-        DBObject query = new BasicDBObject();
-        // 2017-05-30 as part of ticket #624 we are filtering records based on completeness value.
-        // This is an experiment to see if high-quality records improve the number of indexed records
-        if (minRecordCompleteness >= 0) {
-            LOG.info("Filtering records based on Europeana Completeness score of at least {}", minRecordCompleteness);
-            query.put(COMPLETENESS, new BasicDBObject("$gte", minRecordCompleteness));
-        }
-
-        DBObject fields = new BasicDBObject();
-        fields.put(ABOUT, 1);
-        fields.put(COMPLETENESS, 1);
-        fields.put(LASTUPDATED, 1);
-
-        LOG.info("Starting record query...");
-        DBCursor cur = col.find(query, fields).batchSize(NUMBER_OF_ELEMENTS);
-        LOG.info("Query finished. Retrieving records...");
-
-        long from = 0;
-        long nrRecords = 0;
-        int nrSitemaps = 0;
-
-        // create sitemap index file header
-        StringBuilder master = new StringBuilder();
-        master.append(XML_HEADER).append(LN);
-        master.append(SITEMAP_HEADER).append(LN);
-
-        // create sitemap file header
-        long fileStartTime = System.currentTimeMillis();
-        StringBuilder slave = initializeSlaveGeneration();
-
-        while (cur.hasNext()) {
-
-            DBObject obj = cur.next();
-            String about = obj.get(ABOUT).toString();
-            int completeness = Integer.parseInt(obj.get(COMPLETENESS).toString());
-            Object timestampUpdated = obj.get(LASTUPDATED);
-            // very old records do not have a timestampUpdated or timestampCreated field
-            Date dateUpdated = (timestampUpdated == null ? null : (Date) timestampUpdated);
-
-            slave.append(URL_OPENING).append(LN)
-                    .append(LOC_OPENING).append(portalBaseUrl).append(portalRecordUrlPath).append(about).append(HTML).append(LOC_CLOSING).append(LN)
-                    .append(PRIORITY_OPENING).append(completeness > 9 ? "1.0" : ("0." + completeness)).append(PRIORITY_CLOSING).append(LN)
-                    .append(generateLastModified(dateUpdated).toString())
-                    .append(URL_CLOSING).append(LN);
-            nrRecords++;
-
-            if (nrRecords > 0 && (nrRecords % NUMBER_OF_ELEMENTS == 0 || !cur.hasNext())) {
-                String fromToText = FROM + from + TO + nrRecords;
-
-                // add fileName to index
-                String indexEntry = Naming.SITEMAP_FILE + fromToText;
-                master.append(SITEMAP_OPENING).append(LN)
-                        .append(LOC_OPENING).append(StringEscapeUtils.escapeXml(portalBaseUrl +"/" + indexEntry)).append(LOC_CLOSING).append(LN)
-                        // TODO if we can compare a sitemap file with the previous version, we can check if it has changed and include a lastmodified?
-                        //.append(generateLastModified(new Date()).toString())
-                        .append(SITEMAP_CLOSING).append(LN);
-
-                // write sitemap file
-                slave.append(URLSET_HEADER_CLOSING);
-                String fileName = activeSiteMapService.getInactiveFile() + fromToText;
-                saveToStorage(fileName, slave.toString());
-
-                long now = System.currentTimeMillis();
-                LOG.info("Created sitemap file {} in {} ms", fileName, (now-fileStartTime));
-                fileStartTime = now;
-
-                // prepare for next sitemap file
-                slave = initializeSlaveGeneration();
-                from = nrRecords;
-                nrSitemaps++;
+    private List<SitemapVariant> createVariants() throws SiteMapConfigException {
+        boolean hreflang = VARIANT_MODE_HREFLANG.equalsIgnoreCase(variantMode);
+        if (!hreflang && !VARIANT_MODE_FILESETS.equalsIgnoreCase(variantMode)) {
+            throw new SiteMapConfigException("Unknown sitemap.variants.mode " + variantMode);
+        }
+        List<SitemapVariant> variants = new ArrayList<>();
+        Map<String, String> alternates = new LinkedHashMap<>();
+        for (String definition : variantDefinitions) {
+            String[] parts = definition.trim().split("\\|");
+            if (parts.length != 2 || !VARIANT_NAME_PATTERN.matcher(parts[0].trim()).matches()
+                    || StringUtils.isEmpty(parts[1].trim())) {
+                throw new SiteMapConfigException("Invalid sitemap variant " + definition
+                        + ", expected name|baseUrl with a name consisting of a-z, 0-9 or -");
+            }
+            String name = parts[0].trim();
+            String baseUrl = parts[1].trim();
+            if (hreflang) {
+                alternates.put(name, baseUrl);
+            } else {
+                variants.add(new SitemapVariant(name, new SitemapRenderer(baseUrl)));
             }
         }
-        cur.close();
-        master.append(SITEMAP_HEADER_CLOSING);
-        saveToStorage(Naming.SITEMAP_INDEX_FILE, master.toString());
-        LOG.info("Records processed {}, written {} sitemap files and 1 sitemap index file", nrRecords, nrSitemaps);
+        if (!alternates.isEmpty()) {
+            alternates.put("x-default", portalBaseUrl);
+        }
+        variants.add(0, new SitemapVariant(null, new SitemapRenderer(portalBaseUrl, alternates)));
+        return variants;
     }
 
-    private StringBuilder initializeSlaveGeneration() {
-        return new StringBuilder().append(XML_HEADER).append(LN).append(URLSET_HEADER).append(LN);
+    private SitemapSource createSource(String sourceName) throws SiteMapConfigException {
+        if (Naming.DEFAULT_FILE_SET.equals(sourceName)) {
+            return createRecordSource(Naming.DEFAULT_FILE_SET, minRecordCompleteness, -1);
+        }
+        if (EntitySitemapSource.NAME.equals(sourceName)) {
+            if (StringUtils.isEmpty(entityDatabase)) {
+                throw new SiteMapConfigException("Entity.mongo.database is not set");
+            }
+            return new EntitySitemapSource(mongoProvider, entityDatabase, entityCollection, portalEntityUrlPath.trim(),
+                    scanThrottle, NUMBER_OF_ELEMENTS);
+        }
+        throw new SiteMapConfigException("Unknown sitemap source " + sourceName);
+    }
+
+    /**
+     * @return a record source that reads from the local record index if that is enabled, otherwise from Mongo. If
+     * image sitemaps are enabled the images of the records are added
+     */
+    private SitemapSource createRecordSource(String name, int minCompleteness, int maxCompleteness) {
+        SitemapSource result;
+        if (recordIndexStore.isEnabled()) {
+            result = new IndexedRecordSitemapSource(recordIndexStore, name, portalRecordUrlPath, minCompleteness,
+                    maxCompleteness);
+        } else {
+            result = new RecordSitemapSource(mongoProvider, name, portalRecordUrlPath, minCompleteness,
+                    maxCompleteness, scanThrottle, NUMBER_OF_ELEMENTS);
+        }
+        if (imagesEnabled) {
+            result = new ImageSitemapSource(result, mongoProvider, scanThrottle, imageBatchSize);
+        }
+        return result;
     }
 
-    private StringBuilder generateLastModified(Date lastModifiedDate) {
-        StringBuilder result = new StringBuilder();
-        if (lastModifiedDate != null) {
-            result.append(LASTMOD_OPENING);
-            result.append(DateFormatUtils.format(lastModifiedDate, DateFormatUtils.ISO_DATE_FORMAT.getPattern()));
-            result.append(LASTMOD_CLOSING);
-            result.append(LN);
+    /**
+     * Tiers are defined as name:minCompleteness, in descending order of completeness. Each tier contains all records
+     * with at least its minimum completeness that are not part of a higher tier.
+     * @return a record source for each tier
+     */
+    private List<SitemapSource> createTierSources() throws SiteMapConfigException {
+        List<SitemapSource> result = new ArrayList<>(tierDefinitions.length);
+        int maxCompleteness = -1;
+        for (String definition : tierDefinitions) {
+            String[] parts = definition.trim().split(":");
+            if (parts.length != 2 || !VARIANT_NAME_PATTERN.matcher(parts[0].trim()).matches()) {
+                throw new SiteMapConfigException("Invalid record tier " + definition
+                        + ", expected name:minCompleteness with a name consisting of a-z, 0-9 or -");
+            }
+            int minCompleteness;
+            try {
+                minCompleteness = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new SiteMapConfigException("Invalid minimum completeness in record tier " + definition, e);
+            }
+            if (maxCompleteness >= 0 && minCompleteness > maxCompleteness) {
+                throw new SiteMapConfigException("Record tiers should be listed in descending order of completeness");
+            }
+            String name = RecordSitemapSource.getTierSourceName(parts[0].trim());
+            result.add(createRecordSource(name, minCompleteness, maxCompleteness));
+            maxCompleteness = minCompleteness - 1;
         }
         return result;
     }
 
+    /**
+     * Stop the generation worker pool when the application is shutting down
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (generator != null) {
+            generator.shutdown();
+        }
+    }
 
-    private void saveToStorage(String key, String value) {
-        try {
-            ByteArrayPayload payload = new ByteArrayPayload(value.getBytes(StandardCharsets.UTF_8));
-            String eTag = objectStorageProvider.put(key, payload);
-            //Verify Data
-            int nSaveAttempts = 1;
-            boolean siteMapCacheFileExists = checkIfFileExists(key);
-            if (StringUtils.isEmpty(eTag) || !siteMapCacheFileExists) {
-                    int maxAttempts = 3;
-                    while (nSaveAttempts < maxAttempts && (StringUtils.isEmpty(eTag) || !siteMapCacheFileExists)) {
-                        LOG.info("Failed to save to storage provider (filename={}, siteMapCacheFileExists={})", key, siteMapCacheFileExists);
-                        long timeout = nSaveAttempts * 5000L;
-                        LOG.info("Waiting {} seconds to try again", (timeout / 1000) );
-                        Thread.sleep(timeout);
-                        LOG.info("Retrying to save the file");
-                        eTag = objectStorageProvider.put(key, payload);
-                        siteMapCacheFileExists = checkIfFileExists(key);
-                        nSaveAttempts++;
-                    }
+    /**
+     * Generate the files of the provided sources and a new manifest and sitemap index listing the files of all sources
+     * @param targets for each source that is regenerated, the deployment (blue/green) where its files are written
+     * @param previous manifest of the active deployment, used for sources that are not regenerated
+     * @throws SiteMapException when generation failed or the storage provider could not be reached
+     * @throws InterruptedException when generation was interrupted
+     */
+    private GenerationStats generate(Map<String, String> targets, SitemapManifest previous)
+            throws SiteMapException, InterruptedException {
+        String deployment = activeSiteMapService.getInactiveFile();
+        GenerationStats stats = new GenerationStats(false);
+        generator.generate(sources, targets, previous, deployment, this::saveToStorage, stats);
+        return stats;
+    }
+
+    /**
+     * Save a file to storage. The MD5 checksum is sent along (Content-MD5) so storage rejects corrupted uploads, and is
+     * compared with the returned ETag to check the upload succeeded. Failed uploads are retried a few times.
+     * @throws InterruptedException when interrupted, so generation is aborted instead of continuing with a missing file
+     */
+    private void saveToStorage(String key, String value) throws SiteMapUnavailableException, InterruptedException {
+        byte[] content = value.getBytes(StandardCharsets.UTF_8);
+        byte[] md5 = SitemapVerifier.md5(content);
+        ByteArrayPayload payload = new ByteArrayPayload(content, md5);
+        String eTag = writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(key, payload));
+        //Verify Data
+        int nSaveAttempts = 1;
+        int maxAttempts = 3;
+        while (!SitemapVerifier.isMatchingETag(eTag, md5)) {
+            if (nSaveAttempts >= maxAttempts) {
+                throw new SiteMapUnavailableException("Unable to save " + key + " to storage provider after "
+                        + nSaveAttempts + " attempts (eTag=" + eTag + ")");
             }
-        } catch (InterruptedException e) {
-            LOG.warn("Saving to storage was interrupted", e);
-            Thread.currentThread().interrupt();
+            LOG.info("Failed to save to storage provider (filename={}, eTag={})", key, eTag);
+            long timeout = nSaveAttempts * 5000L;
+            LOG.info("Waiting {} seconds to try again", (timeout / 1000) );
+            Thread.sleep(timeout);
+            LOG.info("Retrying to save the file");
+            nrUploadRetries.incrementAndGet();
+            eTag = writeBulkhead.executeUnchecked(() -> objectStorageProvider.put(key, payload));
+            nSaveAttempts++;
         }
     }
 
-    private boolean checkIfFileExists(String id) {
-        return objectStorageProvider.isAvailable(id);
+    /**
+     * Warn if generation didn't fit in the configured window, so we know if the throttle (or Mongo) is the cause
+     */
+    private void checkThrottleWindow(long generateMs, GenerationStats stats) {
+        if (throttleWindowMinutes > 0 && generateMs > TimeUnit.MINUTES.toMillis(throttleWindowMinutes)) {
+            LOG.warn("Sitemap generation took {} minutes, longer than the window of {} minutes. Mongo scans waited {} "
+                    + "seconds for the throttle (rate now {} documents/s, decreased {} times)",
+                    TimeUnit.MILLISECONDS.toMinutes(generateMs), throttleWindowMinutes,
+                    TimeUnit.MILLISECONDS.toSeconds(stats.getThrottleMs()), (long) scanThrottle.getRate(),
+                    scanThrottle.getNrDecreases());
+        }
+    }
+
+    /**
+     * Check all files of a newly generated deployment before we switch to it
+     */
+    private void verify(String deployment) throws SiteMapException, InterruptedException {
+        SitemapManifest manifest = loadManifest(deployment);
+        if (manifest == null) {
+            throw new SiteMapException("Manifest of " + deployment + " was not saved");
+        }
+        List<String> indexFileNames = new ArrayList<>();
+        for (SitemapVariant variant : generator.getVariants()) {
+            indexFileNames.add(variant.getIndexFileName());
+        }
+        verifier.verify(manifest, deployment, indexFileNames);
     }
 
     public MongoProvider getMongoProvider() {
@@ -252,20 +388,79 @@ public class GenerateSitemapServiceImpl implements GenerateSitemapService {
     }
 
     /**
-     * Delete the old sitemap at the currently inactive blue/green instance
+     * Load the manifest of a deployment directly from storage (so never from a cache)
+     * @return the manifest, or null if there is no (valid) manifest
+     */
+    private SitemapManifest loadManifest(String deployment) throws SiteMapException, InterruptedException {
+        String manifestFile = deployment + Naming.MANIFEST_SUFFIX;
+        Optional<StorageObject> file = writeBulkhead.executeUnchecked(() -> objectStorageProvider.get(manifestFile));
+        if (!file.isPresent()) {
+            LOG.warn("No manifest {} found, regenerating all sources", manifestFile);
+            return null;
+        }
+        try (InputStream in = file.get().getPayload().openStream()) {
+            return SitemapManifest.parse(IOUtils.toString(in, StandardCharsets.UTF_8), deployment);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            LOG.warn("Invalid manifest {}, regenerating all sources", manifestFile, e);
+            return null;
+        } catch (IOException e) {
+            throw new SiteMapException("Error reading manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * @return the deployment (blue/green) where the files of a source are stored, or null if one of its file sets
+     * isn't listed in the manifest
      */
-    private void delete() {
-        List<StorageObject> list = objectStorageProvider.list();
+    private String getLocation(SitemapManifest manifest, SitemapSource source) {
+        String result = null;
+        for (SitemapVariant variant : generator.getVariants()) {
+            String location = manifest.getLocation(variant.getFileSetName(source.getName()));
+            if (location == null) {
+                return null;
+            }
+            result = location;
+        }
+        return result;
+    }
+
+    /**
+     * Delete old files before generating. We delete all files at the currently inactive blue/green instance, except
+     * the files of sources that are still in use there. Sources that are regenerated at the active instance (because
+     * they are in use at the inactive instance) have their old files at the active instance deleted as well.
+     * @param currentLocations for each source, the deployment (blue/green) where its files currently are
+     * @param targets for each source that is regenerated, the deployment (blue/green) where its files are written
+     */
+    private void delete(Map<String, String> currentLocations, Map<String, String> targets)
+            throws SiteMapUnavailableException, InterruptedException {
+        String inactiveFilename = activeSiteMapService.getInactiveFile();
+        List<String> keep = new ArrayList<>();
+        List<String> remove = new ArrayList<>();
+        for (SitemapSource source : sources) {
+            if (inactiveFilename.equals(currentLocations.get(source.getName()))) {
+                keep.addAll(getFileNamePrefixes(inactiveFilename, source));
+            }
+            String target = targets.get(source.getName());
+            if (target != null && !inactiveFilename.equals(target)) {
+                remove.addAll(getFileNamePrefixes(target, source));
+            }
+        }
+
+        List<StorageObject> list = writeBulkhead.executeUnchecked(objectStorageProvider::list);
         if(list.isEmpty()){
             LOG.info("No files to remove.");
         }
 
         int i = 0;
-        String inactiveFilename = activeSiteMapService.getInactiveFile();
-        LOG.info("Deleting all old files with the name {}", inactiveFilename);
+        LOG.info("Deleting all old files with the name {} (keeping {} file sets) and {} old file sets", inactiveFilename,
+                keep.size(), remove.size());
         for (StorageObject obj : list) {
-            if (obj.getName().contains(inactiveFilename)) {
-                objectStorageProvider.delete(obj.getName());
+            String name = obj.getName();
+            if ((name.startsWith(inactiveFilename) && !startsWithAny(name, keep)) || startsWithAny(name, remove)) {
+                writeBulkhead.executeUnchecked(() -> {
+                    objectStorageProvider.delete(name);
+                    return null;
+                });
                 i++;
             }
             // report on progress
@@ -276,6 +471,30 @@ public class GenerateSitemapServiceImpl implements GenerateSitemapService {
         LOG.info("Removed all {} old files", i);
     }
 
+    /**
+     * @return the prefixes of all files and the exact names of the bounds and snapshot belonging to a source in a
+     * deployment
+     */
+    private List<String> getFileNamePrefixes(String deployment, SitemapSource source) {
+        List<String> result = new ArrayList<>();
+        for (SitemapVariant variant : generator.getVariants()) {
+            String fileSet = variant.getFileSetName(source.getName());
+            result.add(Naming.getSitemapFilePrefix(deployment, fileSet));
+            result.add(Naming.getBoundsFileName(deployment, fileSet));
+        }
+        result.add(Naming.getSnapshotFileName(deployment, source.getName()));
+        return result;
+    }
+
+    private static boolean startsWithAny(String name, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * checks if we can start the update, or if an update is already in progress
      * @throws UpdateAlreadyInProgressException
@@ -310,18 +529,285 @@ public class GenerateSitemapServiceImpl implements GenerateSitemapService {
      */
     @Override
     public void update() throws SiteMapException {
+        update(null);
+    }
+
+    /**
+     * @see GenerateSitemapService#updateTier(String)
+     */
+    @Override
+    public void updateTier(String tier) throws SiteMapException {
+        update(Collections.singleton(getTierSourceName(tier)));
+    }
+
+    /**
+     * @see GenerateSitemapService#dryRun(String)
+     */
+    @Override
+    public GenerationStats dryRun(String tier) throws SiteMapException {
+        return dryRun(tier == null ? null : Collections.singleton(getTierSourceName(tier)));
+    }
+
+    /**
+     * @see GenerateSitemapService#rebuildRecordIndex()
+     */
+    @Override
+    public RecordIndex rebuildRecordIndex() throws SiteMapException {
+        if (!recordIndexStore.isEnabled()) {
+            throw new SiteMapException("Record index is not enabled");
+        }
+        setUpdateInProgress();
+        try {
+            return recordIndexStore.rebuild();
+        } catch (IOException e) {
+            throw new SiteMapException("Error rebuilding record index", e);
+        } finally {
+            setUpdateDone();
+        }
+    }
+
+    /**
+     * @see GenerateSitemapService#applyRecordChanges(Collection)
+     */
+    @Override
+    public void applyRecordChanges(Collection<RecordChange> changes) throws SiteMapException {
+        if (!recordIndexStore.isEnabled()) {
+            throw new SiteMapException("Record index is not enabled");
+        }
+        setUpdateInProgress();
+        try {
+            recordIndexStore.apply(changes);
+            String deployment = activeSiteMapService.getActiveFile();
+            SitemapManifest manifest = loadManifest(deployment);
+            if (manifest == null) {
+                return;
+            }
+            List<String> changedFiles = new ArrayList<>();
+            for (SitemapSource source : sources) {
+                if (source.isSortedByKey()) {
+                    changedFiles.addAll(rerender(source, manifest, changes));
+                }
+            }
+            if (!changedFiles.isEmpty()) {
+                saveRevision(deployment, changedFiles);
+            }
+            readSitemapService.evict(changedFiles);
+            LOG.info("Applied {} record changes, {} sitemap files changed", changes.size(), changedFiles.size());
+        } catch (IOException e) {
+            throw new SiteMapException("Error updating record index", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SiteMapException("Applying record changes was interrupted", e);
+        } finally {
+            setUpdateDone();
+        }
+    }
+
+    /**
+     * Save a new revision of the active deployment, so other application instances remove the changed files from
+     * their cache
+     */
+    private void saveRevision(String deployment, List<String> changedFiles) throws SiteMapException,
+            InterruptedException {
+        String revisionFile = deployment + Naming.REVISION_SUFFIX;
+        Optional<StorageObject> file = writeBulkhead.executeUnchecked(() -> objectStorageProvider.get(revisionFile));
+        SitemapRevision revision = SitemapRevision.INITIAL;
+        if (file.isPresent()) {
+            try (InputStream in = file.get().getPayload().openStream()) {
+                revision = SitemapRevision.parse(IOUtils.toString(in, StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid revision {}, starting a new revision", revisionFile, e);
+            } catch (IOException e) {
+                throw new SiteMapException("Error reading revision " + revisionFile, e);
+            }
+        }
+        saveToStorage(revisionFile, revision.next(changedFiles));
+    }
+
+    /**
+     * Render the files of a source that contain one of the changed records again
+     * @return names of the changed files
+     */
+    private List<String> rerender(SitemapSource source, SitemapManifest manifest, Collection<RecordChange> changes)
+            throws SiteMapException, InterruptedException {
+        List<SitemapFileBounds> bounds = new ArrayList<>();
+        List<Set<Integer>> files = new ArrayList<>();
+        List<String> locations = new ArrayList<>();
+        boolean changed = false;
+        for (SitemapVariant variant : generator.getVariants()) {
+            String fileSet = variant.getFileSetName(source.getName());
+            String location = manifest.getLocation(fileSet);
+            SitemapFileBounds fileBounds = (location == null ? null : loadBounds(location, fileSet));
+            Set<Integer> fileNumbers = new TreeSet<>();
+            if (fileBounds != null) {
+                // we don't know the previous completeness, so a change may also affect a file of another tier
+                for (RecordChange change : changes) {
+                    int file = fileBounds.findFile(change.getKey());
+                    if (file >= 0) {
+                        fileNumbers.add(file);
+                    }
+                }
+            }
+            bounds.add(fileBounds);
+            files.add(fileNumbers);
+            locations.add(location);
+            changed = changed || !fileNumbers.isEmpty();
+        }
+        if (!changed) {
+            return Collections.emptyList();
+        }
+        return generator.rerender(source, bounds, files, locations, this::saveToStorage);
+    }
+
+    /**
+     * @return the first key of each sitemap file of a file set, or null if that is not available
+     */
+    private SitemapFileBounds loadBounds(String deployment, String fileSet) throws SiteMapException,
+            InterruptedException {
+        String boundsFile = Naming.getBoundsFileName(deployment, fileSet);
+        Optional<StorageObject> file = writeBulkhead.executeUnchecked(() -> objectStorageProvider.get(boundsFile));
+        if (!file.isPresent()) {
+            LOG.warn("No bounds {} found, changes to {} are only included after the next update", boundsFile, fileSet);
+            return null;
+        }
+        try (InputStream in = file.get().getPayload().openStream()) {
+            return SitemapFileBounds.parse(IOUtils.toString(in, StandardCharsets.UTF_8));
+        } catch (IOException | NumberFormatException e) {
+            LOG.error("Unable to read bounds {}", boundsFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Add all record changes since the last update to the local record index (if enabled)
+     */
+    private void updateRecordIndex() throws IOException {
+        if (recordIndexStore.isEnabled()) {
+            recordIndexStore.update();
+        }
+    }
+
+    /**
+     * @see GenerateSitemapService#isTierConfigured(String)
+     */
+    @Override
+    public boolean isTierConfigured(String tier) {
+        String sourceName = RecordSitemapSource.getTierSourceName(tier);
+        return sources.stream().anyMatch(source -> source.getName().equals(sourceName));
+    }
+
+    private String getTierSourceName(String tier) throws SiteMapException {
+        if (!isTierConfigured(tier)) {
+            throw new SiteMapException("Unknown record tier " + tier);
+        }
+        return RecordSitemapSource.getTierSourceName(tier);
+    }
+
+    /**
+     * Scan and render some or all sources without saving anything, so generation can be profiled against the real
+     * database without affecting the live sitemap. No snapshots are made and no deltas are published.
+     * @param sourceNames the names of the sources to scan, null to scan all sources
+     * @return timings and sizes of the dry run
+     */
+    private GenerationStats dryRun(Set<String> sourceNames) throws SiteMapException {
         setUpdateInProgress();
+        SitemapGenerator dryRunGenerator = new SitemapGenerator(generateThreads, generator.getVariants(),
+                maxUrlsPerFile, maxBytesPerFile, null);
         try {
+            List<SitemapSource> selected = new ArrayList<>();
+            Map<String, String> targets = new HashMap<>();
+            for (SitemapSource source : sources) {
+                if (sourceNames == null || sourceNames.contains(source.getName())) {
+                    selected.add(source);
+                    targets.put(source.getName(), DRY_RUN_DEPLOYMENT);
+                }
+            }
+            LOG.info("Starting dry run of sources {}", targets.keySet());
+            updateRecordIndex();
+            GenerationStats stats = new GenerationStats(true);
+            // generated files are only counted (by the generator), never saved
+            dryRunGenerator.generate(selected, targets, null, DRY_RUN_DEPLOYMENT, (fileName, content) -> { }, stats);
+            return stats;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SiteMapException("Dry run was interrupted", e);
+        } catch (IOException e) {
+            throw new SiteMapException("Error updating record index", e);
+        } finally {
+            dryRunGenerator.shutdown();
+            setUpdateDone();
+        }
+    }
+
+    /**
+     * Regenerate some or all sources. Sources are always written to the deployment (blue/green) where they are
+     * currently not stored, so the active sitemap is not affected until we switch.
+     * @param sourceNames the names of the sources to regenerate, null to regenerate all sources. Sources of which there
+     *                    are no existing files are always regenerated
+     */
+    private void update(Set<String> sourceNames) throws SiteMapException {
+        if (dryRunOnly) {
+            LOG.info("Update.dryrun is enabled, only doing a dry run");
+            dryRun(sourceNames);
+            return;
+        }
+        setUpdateInProgress();
+        String runId = FlightRecorder.getRecordingName("update", new Date());
+        String recording = flightRecorder.startUpdateRecording(runId);
+        // create the report right away, so runs that fail before sources are selected are reported as well
+        RunReport report = new RunReport(runId, sourceNames == null
+                ? sources.stream().map(SitemapSource::getName).collect(Collectors.toList())
+                : new ArrayList<>(sourceNames));
+        String error = null;
+        long retriesBefore = nrUploadRetries.get();
+        long throttleBefore = scanThrottle.getWaitMs();
+        try {
+            long phaseStart = System.currentTimeMillis();
+            String previousDeployment = activeSiteMapService.getActiveFile();
+            SitemapManifest previous = loadManifest(previousDeployment);
+            Map<String, String> currentLocations = new HashMap<>();
+            Map<String, String> targets = new HashMap<>();
+            for (SitemapSource source : sources) {
+                String location = (previous == null ? null : getLocation(previous, source));
+                if (location == null || sourceNames == null || sourceNames.contains(source.getName())) {
+                    location = (location == null ? previousDeployment : location);
+                    targets.put(source.getName(), ActiveSiteMapService.getOtherFile(location));
+                }
+                currentLocations.put(source.getName(), location);
+            }
+            LOG.info("Regenerating sources {}", targets.keySet());
+            report.setSources(new ArrayList<>(targets.keySet()));
+            List<String> keptSources = new ArrayList<>(currentLocations.keySet());
+            keptSources.removeAll(targets.keySet());
+            report.setKeptSources(keptSources);
+
             // First clear all old records from the inactive file
-            delete();
+            delete(currentLocations, targets);
 
             // Temporary save the contents of the index file
             String oldIndex = readSitemapService.getIndexFileContent();
+            phaseStart = report.endPhase("prepare", phaseStart);
 
             // Then write records to the inactive file
-            long startTime = System.currentTimeMillis();
-            generate();
-            LOG.info("Sitemap generation completed in {} seconds", (System.currentTimeMillis() - startTime) / 1000);
+            updateRecordIndex();
+            phaseStart = report.endPhase("recordIndex", phaseStart);
+            GenerationStats stats = generate(targets, previous);
+            report.setNrRecords(stats.getNrRecords());
+            report.setNrFiles(stats.getNrFiles());
+            report.setTotalBytes(stats.getTotalBytes());
+            phaseStart = report.endPhase("generate", phaseStart);
+            LOG.info("Sitemap generation completed in {} seconds", report.getPhaseMs().get("generate") / 1000);
+            checkThrottleWindow(report.getPhaseMs().get("generate"), stats);
+
+            // Make sure all files are really there before we switch
+            if (verifier.isEnabled()) {
+                verify(ActiveSiteMapService.getOtherFile(previousDeployment));
+                phaseStart = report.endPhase("verify", phaseStart);
+            }
+
+            // Preload the new files before anyone can request them
+            readSitemapService.warmUp(ActiveSiteMapService.getOtherFile(previousDeployment));
+            phaseStart = report.endPhase("warmUp", phaseStart);
 
             //Switch to updated cached file
             String activeFile = activeSiteMapService.switchFile();
@@ -335,11 +821,24 @@ public class GenerateSitemapServiceImpl implements GenerateSitemapService {
                 LOG.info("Index has changed");
                 resubmitService.notifySearchEngines();
             }
+
+            phaseStart = report.endPhase("switch", phaseStart);
+
+            // Publish and push all changed urls
+            deltaFeedService.publish(sources, currentLocations, targets, portalBaseUrl);
+            report.endPhase("delta", phaseStart);
         } catch (Exception e) {
             LOG.error("Error updating sitemap {}", e.getMessage(), e);
+            error = e.toString();
          //   sendUpdateFailedEmail(e);
             throw new SiteMapException("Error updating sitemap", e);
         } finally {
+            String savedRecording = flightRecorder.stopRecording(recording);
+            report.setUploadRetries(nrUploadRetries.get() - retriesBefore);
+            report.setThrottleMs(scanThrottle.getWaitMs() - throttleBefore);
+            report.setRecording(savedRecording);
+            report.finish(error);
+            runHistory.save(report);
             setUpdateDone();
         }
     }
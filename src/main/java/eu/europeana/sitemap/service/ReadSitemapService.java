@@ -1,6 +1,12 @@
 package eu.europeana.sitemap.service;
 
+import eu.europeana.sitemap.exceptions.SiteMapException;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import eu.europeana.sitemap.generate.SitemapManifest;
+import eu.europeana.sitemap.storage.CachedFile;
+
+import java.util.Collection;
 
 /**
  * All supported reading sitemap methods
@@ -10,23 +16,105 @@ import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
 public interface ReadSitemapService {
 
     /**
-     * Retrieve a list of all files that are stored at our object provider's bucket
-     * @return list of stored sitemap files
+     * Retrieve one page of the files that are stored at our object provider's bucket, in order of their name. The
+     * listing may be cached for a short time, so recently saved files may be missing
+     * @param prefix optional, only files whose name starts with this prefix are listed
+     * @param marker optional, only files whose name comes after the marker are listed
+     * @param limit maximum number of files on the page
+     * @param sortByDate if true the files on the page are sorted by last modified date instead of by name
+     * @return page of stored files
      */
-    String getFiles();
+    FileListing getFiles(String prefix, String marker, int limit, boolean sortByDate);
 
     /**
      * Retrieve the contents of a particular file stored at our object provider's bucket
      * @param fileName the name of the requested file
      * @return contents of stored sitemap file in xml
      * @throws SiteMapNotFoundException thrown when requested file is not available
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    String getFileContent(String fileName) throws SiteMapException;
+
+    /**
+     * @return the currently active deployment (blue or green)
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    String getActiveDeployment() throws SiteMapException;
+
+    /**
+     * @return the manifest of the currently active deployment, or null if there is no (valid) manifest
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    SitemapManifest getActiveManifest() throws SiteMapException;
+
+    /**
+     * Retrieve the contents of a sitemap file of the currently active deployment. If the manifest of the active
+     * deployment shows that the requested file doesn't exist we fail without contacting the storage provider.
+     * @param set name of the file set (e.g. record or entity), null for the default record set
+     * @param from start index of the sitemap file
+     * @param to end index of the sitemap file
+     * @return contents of the sitemap file in xml
+     * @throws SiteMapNotFoundException thrown when the requested file does not exist or the set/from/to values are invalid
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    String getSitemapFileContent(String set, String from, String to) throws SiteMapException;
+
+    /**
+     * Retrieve the raw contents of a sitemap file of the currently active deployment together with its ETag and last
+     * modified date, e.g. to serve a byte range of it. The file is read from the cache if possible, see
+     * {@link #getSitemapFileContent(String, String, String)}
+     * @param set name of the file set (e.g. record or entity), null for the default record set
+     * @param from start index of the sitemap file
+     * @param to end index of the sitemap file
+     * @return contents (UTF-8 encoded) and metadata of the sitemap file
+     * @throws SiteMapNotFoundException thrown when the requested file does not exist or the set/from/to values are invalid
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
      */
-    String getFileContent(String fileName) throws SiteMapNotFoundException;
+    CachedFile getSitemapFile(String set, String from, String to) throws SiteMapException;
+
+    /**
+     * Retrieve the size, ETag and last modified date of a sitemap file of the currently active deployment. These are
+     * the same as for {@link #getSitemapFile(String, String, String)}, so the file is read (and cached) if it's not
+     * cached yet
+     * @param set name of the file set (e.g. record or entity), null for the default record set
+     * @param from start index of the sitemap file
+     * @param to end index of the sitemap file
+     * @return metadata of the sitemap file
+     * @throws SiteMapNotFoundException thrown when the requested file does not exist or the set/from/to values are invalid
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    SitemapFileInfo getSitemapFileInfo(String set, String from, String to) throws SiteMapException;
 
     /**
      * Retrieve the (currently active instance of the) sitemap index file
      * @return active index file as a string
      * @throws SiteMapNotFoundException thrown when requested file is not available
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    String getIndexFileContent() throws SiteMapException;
+
+    /**
+     * Retrieve the sitemap index file of a portal variant
+     * @param variant name of the variant, null for the default sitemap index
+     * @return index file of the variant as a string
+     * @throws SiteMapNotFoundException thrown when the variant name is invalid or its index file is not available
+     * @throws SiteMapUnavailableException thrown when the storage provider cannot be reached at the moment
+     */
+    String getIndexFileContent(String variant) throws SiteMapException;
+
+    /**
+     * Preload the sitemap index and the most requested sitemap files of a deployment into the cache. This is done
+     * before switching to a new deployment, so the first requests after the switch don't all go to storage.
+     * Afterwards the active pointer is (re)read as well.
+     * @param deployment the deployment (blue/green) to warm up
+     * @throws InterruptedException when interrupted while waiting for the warm-up to finish
+     */
+    void warmUp(String deployment) throws InterruptedException;
+
+    /**
+     * Remove files from the cache of this instance after they were changed in storage. Other instances remove them
+     * when they read the new revision of the active deployment
+     * @param fileNames names of the changed files
      */
-    String getIndexFileContent() throws SiteMapNotFoundException;
+    void evict(Collection<String> fileNames);
 }
@@ -4,67 +4,649 @@ package eu.europeana.sitemap.service;
 import eu.europeana.domain.StorageObject;
 import eu.europeana.features.ObjectStorageClient;
 import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapException;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import eu.europeana.sitemap.generate.SitemapManifest;
+import eu.europeana.sitemap.generate.SitemapRevision;
+import eu.europeana.sitemap.storage.CachedFile;
+import eu.europeana.sitemap.storage.CircuitBreaker;
+import eu.europeana.sitemap.storage.ContentCache;
+import eu.europeana.sitemap.storage.HedgedReader;
+import eu.europeana.sitemap.storage.SingleFlight;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 
-import org.springframework.context.annotation.Primary;
-import org.springframework.stereotype.Service;
-
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
- * Read sitemap files directly from the object storage provider
+ * Read sitemap files directly from the object storage provider. File reads are done via a {@link HedgedReader} to
+ * reduce tail latency.
+ *
+ * Reads use their own storage client and {@link StorageBulkhead}, so they are not affected by the many storage requests
+ * done during sitemap generation. If storage is failing or very slow, the read circuit breaker opens and we serve the
+ * last known good version of a file (if available) instead of waiting for storage. Concurrent reads of the same file
+ * are coalesced into a single storage read, see {@link SingleFlight}.
+ *
+ * Sitemap files and index files of the active deployment are cached, and the active pointer is re-read only after a
+ * short time. When a new deployment becomes active, the cache is cleared of files of other deployments and (unless
+ * that was already done before the switch) warmed up with the most requested files of the new deployment. Together
+ * with the active pointer we re-read the revision of the active deployment, so files that were rendered again on
+ * another instance are removed from our cache as well (see {@link SitemapRevision}).
  *
  * @author Patrick Ehlert on 11-9-17.
  */
-@Service
-@Primary
 public class ReadSitemapServiceImpl implements ReadSitemapService {
 
+    private static final Logger LOG = LogManager.getLogger(ReadSitemapServiceImpl.class);
+
+    /** Allowed file set and variant names **/
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-z0-9-]+");
+    private static final char CACHE_KEY_SEPARATOR = '|';
+    /** Revision number used when we don't know the revision of the active deployment **/
+    private static final long UNKNOWN_REVISION = -1;
 
     private final ObjectStorageClient objectStorageProvider;
+    private final HedgedReader hedgedReader;
+    private final StorageBulkhead readBulkhead;
+    private final CircuitBreaker readCircuitBreaker;
+    private final ContentCache lastKnownGood;
+    private final ContentCache fileCache;
+    private final SitemapCacheWarmer cacheWarmer;
+    private final SingleFlight<CachedFile> fileReads;
+
+    @Value("${read.pointer.ttl.ms:2000}")
+    private long pointerTtlMs;
+    @Value("${read.manifest.max.age.ms:3600000}")
+    private long manifestMaxAgeMs;
+    @Value("${read.manifest.retry.ms:5000}")
+    private long manifestRetryMs;
+    @Value("${read.list.cache.ms:60000}")
+    private long listCacheMs;
+
+    private volatile DeploymentManifest activeManifest;
+    private volatile ActivePointer activePointer;
+    private volatile StoredFiles storedFiles;
+    private final Object storedFilesLock = new Object();
 
-    public ReadSitemapServiceImpl (ObjectStorageClient objectStorageProvider) {
+    public ReadSitemapServiceImpl (@Qualifier("readObjectStorageClient") ObjectStorageClient objectStorageProvider,
+                                   HedgedReader hedgedReader,
+                                   @Qualifier("readStorageBulkhead") StorageBulkhead readBulkhead,
+                                   CircuitBreaker readCircuitBreaker,
+                                   @Qualifier("lastKnownGoodCache") ContentCache lastKnownGood,
+                                   @Qualifier("fileCache") ContentCache fileCache,
+                                   SitemapCacheWarmer cacheWarmer,
+                                   SingleFlight<CachedFile> fileReads) {
         this.objectStorageProvider = objectStorageProvider;
+        this.hedgedReader = hedgedReader;
+        this.readBulkhead = readBulkhead;
+        this.readCircuitBreaker = readCircuitBreaker;
+        this.lastKnownGood = lastKnownGood;
+        this.fileCache = fileCache;
+        this.cacheWarmer = cacheWarmer;
+        this.fileReads = fileReads;
+    }
+
+    /**
+     * Warm up the cache for the active deployment as soon as the application is started
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        try {
+            // the first time we read the active pointer a warm-up is started
+            getActiveDeployment();
+        } catch (SiteMapException e) {
+            LOG.warn("Unable to warm up cache on startup", e);
+            cacheWarmer.markStartupFinished();
+        }
     }
 
     /**
-     * @see ReadSitemapService#getFiles()
+     * The storage client doesn't support paging, so we cache the full listing (sorted by name) and look up the
+     * requested page in there. The listing is reloaded when the active deployment or its revision changed, or when
+     * it's older than the list cache ttl (files of the inactive deployment change during an update)
+     * @see ReadSitemapService#getFiles(String, String, int, boolean)
      */
     @Override
-    public String getFiles() {
-        List<StorageObject> files = objectStorageProvider.list();
-        Collections.sort(files, (StorageObject o1, StorageObject o2) -> o1.getLastModified().compareTo(o2.getLastModified()));
-        StringBuilder result = new StringBuilder();
-        for (StorageObject file : files) {
-            result.append(file.getLastModified());
-            result.append('\t');
-            result.append(file.getName());
-            result.append('\n');
+    public FileListing getFiles(String prefix, String marker, int limit, boolean sortByDate) {
+        StoredFiles stored = getStoredFiles();
+        List<String> names = stored.names;
+        List<StorageObject> all = stored.files;
+        int start = 0;
+        if (marker != null) {
+            int pos = Collections.binarySearch(names, marker);
+            start = (pos >= 0 ? pos + 1 : -pos - 1);
         }
-        return result.toString();
+        if (prefix != null) {
+            int pos = Collections.binarySearch(names, prefix);
+            start = Math.max(start, pos >= 0 ? pos : -pos - 1);
+        }
+        // files with the prefix are listed one after another
+        int end = start;
+        while (end < names.size() && end - start <= limit && (prefix == null || names.get(end).startsWith(prefix))) {
+            end++;
+        }
+        boolean more = (end - start > limit);
+        List<StorageObject> files = new ArrayList<>(all.subList(start, Math.min(end, start + limit)));
+        String nextMarker = (more && !files.isEmpty() ? files.get(files.size() - 1).getName() : null);
+        if (sortByDate) {
+            files.sort(Comparator.comparing(StorageObject::getLastModified,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
+        }
+        return new FileListing(files, nextMarker);
+    }
+
+    private StoredFiles getStoredFiles() {
+        ActivePointer pointer = activePointer;
+        StoredFiles current = storedFiles;
+        if (current == null || !current.isValidFor(pointer)) {
+            synchronized (storedFilesLock) {
+                current = storedFiles;
+                if (current == null || !current.isValidFor(pointer)) {
+                    List<StorageObject> files = new ArrayList<>(objectStorageProvider.list());
+                    files.sort(Comparator.comparing(StorageObject::getName));
+                    current = new StoredFiles(pointer, files, listCacheMs);
+                    storedFiles = current;
+                }
+            }
+        }
+        return current;
     }
 
     /**
      * @see ReadSitemapService#getFileContent(String)
      */
     @Override
-    public String getFileContent(String fileName) throws SiteMapNotFoundException {
+    public String getFileContent(String fileName) throws SiteMapException {
+        return new String(getFile(fileName).getContent(), StandardCharsets.UTF_8);
+    }
+
+    private CachedFile getFile(String fileName) throws SiteMapException {
+        return fileReads.execute(fileName, () -> readFile(fileName));
+    }
+
+    /**
+     * Read a file from storage. The last known good version of a file is only returned when the circuit breaker is
+     * open, never for the active pointer file (see {@link #getActiveDeployment()})
+     */
+    private CachedFile readFile(String fileName) throws SiteMapException {
+        if (!readCircuitBreaker.allowRequest()) {
+            return getLastKnownGood(fileName);
+        }
+        long start = System.currentTimeMillis();
+        CachedFile file;
+        try {
+            file = hedgedReader.read(() -> readBulkhead.execute(() -> readFromStorage(fileName)));
+        } catch (SiteMapNotFoundException e) {
+            // storage responded correctly, the file simply doesn't exist
+            readCircuitBreaker.recordSuccess(System.currentTimeMillis() - start);
+            throw e;
+        } catch (Exception e) {
+            throw handleReadError(e, "file " + fileName);
+        }
+        readCircuitBreaker.recordSuccess(System.currentTimeMillis() - start);
+        if (!isPointerFile(fileName)) {
+            lastKnownGood.put(fileName, file);
+        }
+        return file;
+    }
+
+    /**
+     * Register a failed storage read with the circuit breaker, unless the read wasn't executed because our own read
+     * bulkhead was full (that says nothing about the state of storage)
+     * @return exception to throw
+     */
+    private SiteMapException handleReadError(Exception e, String what) {
+        if (e instanceof SiteMapUnavailableException) {
+            // only thrown by the bulkhead
+            readCircuitBreaker.recordNotExecuted();
+            return (SiteMapUnavailableException) e;
+        }
+        readCircuitBreaker.recordFailure();
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.error("Error reading {} from storage", what, e);
+        return new SiteMapUnavailableException("Error reading " + what + ", please try again later");
+    }
+
+    private static boolean isPointerFile(String fileName) {
+        return ActiveSiteMapService.EUROPEANA_ACTIVE_SITEMAP_SWITCH_FILE.equals(fileName);
+    }
+
+    private CachedFile getLastKnownGood(String fileName) throws SiteMapUnavailableException {
+        CachedFile file = (isPointerFile(fileName) ? null : lastKnownGood.get(fileName));
+        if (file == null) {
+            throw new SiteMapUnavailableException("File " + fileName + " is temporarily unavailable");
+        }
+        LOG.warn("Storage unavailable, returning last known good version of {}", fileName);
+        return file;
+    }
+
+    /**
+     * Retrieve a file and its contents in 1 storage request
+     */
+    private CachedFile readFromStorage(String fileName) throws SiteMapException, IOException {
         Optional<StorageObject> file = objectStorageProvider.get(fileName);
-        if (file.isPresent()) {
-            return new String(objectStorageProvider.getContent(fileName), StandardCharsets.UTF_8);
+        if (!file.isPresent()) {
+            throw new SiteMapNotFoundException("File " + fileName + " not found!");
+        }
+        try (InputStream in = file.get().getPayload().openStream()) {
+            byte[] content = IOUtils.toByteArray(in);
+            return new CachedFile(content, SitemapVerifier.toHex(SitemapVerifier.md5(content)),
+                    file.get().getLastModified());
+        } finally {
+            file.get().getPayload().close();
+        }
+    }
+
+    /**
+     * @see ReadSitemapService#getSitemapFileContent(String, String, String)
+     */
+    @Override
+    public String getSitemapFileContent(String set, String from, String to) throws SiteMapException {
+        return new String(getSitemapFile(set, from, to).getContent(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @see ReadSitemapService#getSitemapFile(String, String, String)
+     */
+    @Override
+    public CachedFile getSitemapFile(String set, String from, String to) throws SiteMapException {
+        String deployment = getActiveDeployment();
+        String fileName = getSitemapFileName(deployment, set, from, to, true);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Retrieving sitemap file {} ", fileName);
+        }
+        return getCachedFile(deployment, fileName);
+    }
+
+    /**
+     * @see ReadSitemapService#getSitemapFileInfo(String, String, String)
+     */
+    @Override
+    public SitemapFileInfo getSitemapFileInfo(String set, String from, String to) throws SiteMapException {
+        String deployment = getActiveDeployment();
+        CachedFile file = getCachedFile(deployment, getSitemapFileName(deployment, set, from, to, false));
+        return new SitemapFileInfo(file.getContent().length, file.getETag(), file.getLastModified());
+    }
+
+    /**
+     * Check the requested sitemap file and find out where it's stored
+     * @param countRequest if true the request is counted for the cache warm-up
+     * @return name of the sitemap file in storage
+     */
+    private String getSitemapFileName(String deployment, String set, String from, String to, boolean countRequest)
+            throws SiteMapNotFoundException {
+        String fileSet = (set == null ? Naming.DEFAULT_FILE_SET : set);
+        if (!NAME_PATTERN.matcher(fileSet).matches()) {
+            throw new SiteMapNotFoundException("Invalid sitemap file set " + set);
+        }
+        long fromNr = parseIndex(from);
+        long toNr = parseIndex(to);
+        if (fromNr >= toNr) {
+            throw new SiteMapNotFoundException("Invalid sitemap file range from=" + from + " to=" + to);
+        }
+
+        SitemapManifest manifest = getManifest(deployment);
+        if (manifest != null && !manifest.contains(fileSet, fromNr, toNr)) {
+            throw new SiteMapNotFoundException("Sitemap file set=" + fileSet + " from=" + fromNr + " to=" + toNr
+                    + " does not exist");
+        }
+        // files of a file set may be stored in the other deployment if they weren't regenerated
+        String location = (manifest == null ? deployment : manifest.getLocation(fileSet));
+        if (manifest != null && countRequest) {
+            cacheWarmer.recordRequest(getFileKey(fileSet, fromNr, toNr));
+        }
+        return Naming.getSitemapFileName(location, fileSet, fromNr, toNr);
+    }
+
+    /**
+     * @return key identifying a sitemap file regardless of the deployment
+     */
+    private static String getFileKey(String fileSet, long from, long to) {
+        return fileSet + ' ' + from + ' ' + to;
+    }
+
+    private static String getCacheKey(String deployment, String fileName) {
+        return deployment + CACHE_KEY_SEPARATOR + fileName;
+    }
+
+    /**
+     * Retrieve a file that is part of a deployment from the cache, or from storage if it's not cached yet
+     */
+    private CachedFile getCachedFile(String deployment, String fileName) throws SiteMapException {
+        CachedFile cached = fileCache.get(getCacheKey(deployment, fileName));
+        if (cached != null) {
+            return cached;
+        }
+        ActivePointer before = activePointer;
+        CachedFile result = getFile(fileName);
+        String key = getCacheKey(deployment, fileName);
+        fileCache.put(key, result);
+        // if we switched to another deployment or revision while reading, the switch may have cleared the cache before
+        // our put
+        ActivePointer current = activePointer;
+        if (before == null || current == null || !current.deployment.equals(deployment)
+                || current.revision != before.revision) {
+            fileCache.remove(key);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the active deployment, which we re-read from storage only when our copy is older than the pointer ttl
+     * @see ReadSitemapService#getActiveDeployment()
+     */
+    @Override
+    public String getActiveDeployment() throws SiteMapException {
+        ActivePointer current = activePointer;
+        if (current != null && System.currentTimeMillis() - current.readTime < pointerTtlMs) {
+            return current.deployment;
+        }
+        return refreshActiveDeployment(current);
+    }
+
+    /**
+     * Read the active pointer and the revision of the active deployment from storage. If the pointer changed, files of
+     * other deployments are removed from the cache and a warm-up of the new deployment is started (if it isn't warmed
+     * up yet). If only the revision changed, the files that were rendered again are removed from the cache
+     */
+    private String refreshActiveDeployment(ActivePointer current) throws SiteMapException {
+        long now = System.currentTimeMillis();
+        String deployment;
+        try {
+            deployment = getFileContent(ActiveSiteMapService.EUROPEANA_ACTIVE_SITEMAP_SWITCH_FILE);
+        } catch (SiteMapUnavailableException e) {
+            if (current == null) {
+                throw e;
+            }
+            // there's no last known good version of the pointer, but the one we have is the most recent one we know
+            LOG.warn("Unable to refresh active deployment, still using {}", current.deployment);
+            return current.deployment;
+        }
+        boolean switched = (current == null || !current.deployment.equals(deployment));
+        SitemapRevision revision = readRevision(deployment);
+        long revisionNumber;
+        if (revision != null) {
+            revisionNumber = revision.getNumber();
+        } else {
+            revisionNumber = (switched ? UNKNOWN_REVISION : current.revision);
+        }
+        activePointer = new ActivePointer(deployment, revisionNumber, now);
+        if (switched) {
+            LOG.info("Active deployment is {}", deployment);
+            // remove files of other deployments, they will be overwritten during the next update
+            fileCache.removeAll(key -> !key.startsWith(getCacheKey(deployment, "")));
+            if (!cacheWarmer.isWarmingOrWarmed(deployment)) {
+                cacheWarmer.warmUpAsync(() -> warmUpQuietly(deployment));
+            }
+        } else if (revisionNumber != current.revision) {
+            if (current.revision != UNKNOWN_REVISION && revisionNumber == current.revision + 1) {
+                LOG.info("Active deployment {} is at revision {}, {} files changed", deployment, revisionNumber,
+                        revision.getFileNames().size());
+                evict(revision.getFileNames());
+            } else {
+                // we missed one or more revisions, so we don't know which files changed
+                LOG.info("Active deployment {} is at revision {}, clearing cache", deployment, revisionNumber);
+                fileCache.removeAll(key -> key.startsWith(getCacheKey(deployment, "")));
+            }
+        }
+        return deployment;
+    }
+
+    /**
+     * @return the latest revision of a deployment, or null if it can't be read
+     */
+    private SitemapRevision readRevision(String deployment) {
+        String revisionFile = deployment + Naming.REVISION_SUFFIX;
+        try {
+            return SitemapRevision.parse(getFileContent(revisionFile));
+        } catch (SiteMapNotFoundException e) {
+            // no files were rendered again since the deployment was generated
+            return SitemapRevision.INITIAL;
+        } catch (NumberFormatException e) {
+            LOG.error("Invalid revision {}", revisionFile, e);
+            return null;
+        } catch (SiteMapException e) {
+            LOG.warn("Unable to read revision {}", revisionFile, e);
+            return null;
+        }
+    }
+
+    private void warmUpQuietly(String deployment) {
+        try {
+            warmUp(deployment);
+        } catch (InterruptedException e) {
+            LOG.warn("Cache warm-up of {} was interrupted", deployment);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @see ReadSitemapService#warmUp(String)
+     */
+    @Override
+    public void warmUp(String deployment) throws InterruptedException {
+        List<String> fileNames = new ArrayList<>();
+        fileNames.add(Naming.SITEMAP_INDEX_FILE);
+        DeploymentManifest deploymentManifest = loadManifest(deployment);
+        SitemapManifest manifest = (deploymentManifest == null ? null : deploymentManifest.manifest);
+        if (manifest != null) {
+            fileNames.addAll(getMostRequestedFiles(manifest));
+        }
+        cacheWarmer.warmUp(deployment, fileNames, fileName ->
+            fileCache.put(getCacheKey(deployment, fileName), getFile(fileName)));
+        // also preload the active pointer, so the first request after the warm-up doesn't have to wait for it
+        try {
+            refreshActiveDeployment(activePointer);
+        } catch (SiteMapException e) {
+            LOG.warn("Unable to preload active deployment", e);
+        }
+    }
+
+    /**
+     * @see ReadSitemapService#evict(Collection)
+     */
+    @Override
+    public void evict(Collection<String> fileNames) {
+        Set<String> names = new HashSet<>(fileNames);
+        fileCache.removeAll(key -> names.contains(key.substring(key.indexOf(CACHE_KEY_SEPARATOR) + 1)));
+    }
+
+    /**
+     * @return names of the most requested files in the manifest. Files that weren't requested yet are ordered as
+     * listed in the manifest
+     */
+    private List<String> getMostRequestedFiles(SitemapManifest manifest) {
+        List<String> keys = new ArrayList<>();
+        Map<String, String> fileNames = new HashMap<>();
+        for (String fileSet : manifest.getFileSets()) {
+            for (long[] range : manifest.getRanges(fileSet)) {
+                String key = getFileKey(fileSet, range[0], range[1]);
+                keys.add(key);
+                fileNames.put(key, Naming.getSitemapFileName(manifest.getLocation(fileSet), fileSet, range[0], range[1]));
+            }
+        }
+        // sorting is stable, so files with equal counts keep the manifest order
+        keys.sort(Comparator.comparingLong(cacheWarmer::getRequestCount).reversed());
+        List<String> result = new ArrayList<>();
+        for (String key : keys.subList(0, Math.min(keys.size(), cacheWarmer.getMaxFiles()))) {
+            result.add(fileNames.get(key));
+        }
+        return result;
+    }
+
+    private long parseIndex(String value) throws SiteMapNotFoundException {
+        try {
+            long result = Long.parseLong(value);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            LOG.debug("Invalid sitemap file index {}", value, e);
+        }
+        throw new SiteMapNotFoundException("Invalid sitemap file index " + value);
+    }
+
+    /**
+     * @see ReadSitemapService#getActiveManifest()
+     */
+    @Override
+    public SitemapManifest getActiveManifest() throws SiteMapException {
+        return getManifest(getActiveDeployment());
+    }
+
+    /**
+     * Returns the manifest of the provided deployment. We reload the manifest whenever the active deployment changes
+     * (or when it's older than the maximum age, in case we missed a switch). If the manifest can't be loaded because of
+     * a storage problem we try again after a short backoff, not on every request. Until then we keep using the manifest
+     * we had for this deployment, or don't check requests at all
+     * @return manifest of the deployment, or null if there is no (valid) manifest available
+     */
+    private SitemapManifest getManifest(String deployment) {
+        DeploymentManifest current = activeManifest;
+        if (current == null || !current.isValidFor(deployment)) {
+            synchronized (this) {
+                DeploymentManifest previous = activeManifest;
+                current = previous;
+                if (current == null || !current.isValidFor(deployment)) {
+                    current = loadManifest(deployment);
+                    if (current == null) {
+                        SitemapManifest stale = (previous != null && previous.deployment.equals(deployment)
+                                ? previous.manifest : null);
+                        current = new DeploymentManifest(deployment, stale, manifestRetryMs);
+                    }
+                    activeManifest = current;
+                }
+            }
+        }
+        return current.manifest;
+    }
+
+    private DeploymentManifest loadManifest(String deployment) {
+        String manifestFile = deployment + Naming.MANIFEST_SUFFIX;
+        try {
+            SitemapManifest manifest = SitemapManifest.parse(getFileContent(manifestFile), deployment);
+            LOG.info("Loaded manifest {} listing {} sitemap files", manifestFile, manifest.size());
+            return new DeploymentManifest(deployment, manifest, manifestMaxAgeMs);
+        } catch (SiteMapNotFoundException e) {
+            LOG.warn("No manifest {} found, unable to check requests for non-existing files", manifestFile);
+            return new DeploymentManifest(deployment, null, manifestMaxAgeMs);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            LOG.error("Invalid manifest {}", manifestFile, e);
+            return new DeploymentManifest(deployment, null, manifestMaxAgeMs);
+        } catch (SiteMapException e) {
+            LOG.warn("Unable to load manifest {}, will try again in {} ms", manifestFile, manifestRetryMs, e);
+            return null;
         }
-        throw new SiteMapNotFoundException("File " + fileName + " not found!");
     }
 
     /**
      * @see ReadSitemapService#getIndexFileContent()
      */
     @Override
-    public String getIndexFileContent() throws SiteMapNotFoundException {
+    public String getIndexFileContent() throws SiteMapException {
         return getFileContent(Naming.SITEMAP_INDEX_FILE);
     }
 
+    /**
+     * @see ReadSitemapService#getIndexFileContent(String)
+     */
+    @Override
+    public String getIndexFileContent(String variant) throws SiteMapException {
+        if (variant != null && !NAME_PATTERN.matcher(variant).matches()) {
+            throw new SiteMapNotFoundException("Invalid sitemap variant " + variant);
+        }
+        String deployment = getActiveDeployment();
+        return new String(getCachedFile(deployment, Naming.getIndexFileName(variant)).getContent(),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The active deployment (blue or green), its revision and when we read it
+     */
+    private static final class ActivePointer {
+
+        private final String deployment;
+        private final long revision;
+        private final long readTime;
+
+        private ActivePointer(String deployment, long revision, long readTime) {
+            this.deployment = deployment;
+            this.revision = revision;
+            this.readTime = readTime;
+        }
+    }
+
+    /**
+     * Listing of all stored files sorted by name, and the active deployment and revision at the time of listing
+     */
+    private static final class StoredFiles {
+
+        private final String deployment;
+        private final long revision;
+        private final List<StorageObject> files;
+        private final List<String> names;
+        private final long validUntil;
+
+        private StoredFiles(ActivePointer pointer, List<StorageObject> files, long maxAgeMs) {
+            this.deployment = (pointer == null ? null : pointer.deployment);
+            this.revision = (pointer == null ? UNKNOWN_REVISION : pointer.revision);
+            this.files = files;
+            this.names = new ArrayList<>(files.size());
+            for (StorageObject file : files) {
+                names.add(file.getName());
+            }
+            this.validUntil = System.currentTimeMillis() + maxAgeMs;
+        }
+
+        private boolean isValidFor(ActivePointer pointer) {
+            String activeDeployment = (pointer == null ? null : pointer.deployment);
+            long activeRevision = (pointer == null ? UNKNOWN_REVISION : pointer.revision);
+            return Objects.equals(deployment, activeDeployment) && activeRevision == revision
+                    && System.currentTimeMillis() < validUntil;
+        }
+    }
+
+    /**
+     * Manifest belonging to a particular deployment (blue or green)
+     */
+    private static final class DeploymentManifest {
+
+        private final String deployment;
+        private final SitemapManifest manifest;
+        private final long validUntil;
+
+        private DeploymentManifest(String deployment, SitemapManifest manifest, long maxAgeMs) {
+            this.deployment = deployment;
+            this.manifest = manifest;
+            this.validUntil = System.currentTimeMillis() + maxAgeMs;
+        }
+
+        private boolean isValidFor(String activeDeployment) {
+            return deployment.equals(activeDeployment) && System.currentTimeMillis() < validUntil;
+        }
+    }
+
 }
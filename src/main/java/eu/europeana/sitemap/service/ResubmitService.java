@@ -1,5 +1,6 @@
 package eu.europeana.sitemap.service;
 
+import eu.europeana.sitemap.SitemapApplication;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -11,6 +12,7 @@ import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
@@ -26,6 +28,7 @@ import java.net.URISyntaxException;
  * @author Patrick Ehlert on 11-9-17.
  */
 @Service
+@Profile("!" + SitemapApplication.READ_ONLY_PROFILE)
 public class ResubmitService {
 
     private static final Logger LOG = LogManager.getLogger(ResubmitService.class);
@@ -0,0 +1,214 @@
+package eu.europeana.sitemap.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Preloads files of a new deployment into the cache, so the first requests after a switch (or after startup) don't
+ * all go to storage at the same time. Files are loaded in parallel with a bounded concurrency and only one warm-up
+ * runs at a time. We also count requests per sitemap file, so we know which files to preload first.
+ */
+public class SitemapCacheWarmer {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapCacheWarmer.class);
+
+    /**
+     * State of the most recent warm-up
+     */
+    public enum State { IDLE, WARMING, DONE }
+
+    private final int maxFiles;
+    private final ExecutorService loaders;
+    private final ExecutorService background;
+    private final ConcurrentMap<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile State state = State.IDLE;
+    private volatile String deployment;
+    private volatile int nrFiles;
+    private final AtomicInteger nrLoaded = new AtomicInteger();
+    private final AtomicInteger nrFailed = new AtomicInteger();
+    private volatile long durationMs;
+    private volatile boolean startupFinished;
+
+    /**
+     * Create a new cache warmer
+     * @param concurrency maximum number of files that are loaded in parallel
+     * @param maxFiles maximum number of sitemap files preloaded per warm-up
+     */
+    public SitemapCacheWarmer(int concurrency, int maxFiles) {
+        this.maxFiles = maxFiles;
+        this.loaders = Executors.newFixedThreadPool(concurrency, new CustomizableThreadFactory("sitemap-warmup-"));
+        this.background = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("sitemap-warmup-async-"));
+    }
+
+    /**
+     * Loads a file into the cache
+     */
+    @FunctionalInterface
+    public interface FileLoader {
+        void load(String fileName) throws Exception;
+    }
+
+    /**
+     * Count a request for a sitemap file
+     * @param fileKey key identifying the file regardless of deployment (e.g. file set and range)
+     */
+    public void recordRequest(String fileKey) {
+        requestCounts.computeIfAbsent(fileKey, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param fileKey key identifying the file regardless of deployment
+     * @return number of requests for the file since startup
+     */
+    public long getRequestCount(String fileKey) {
+        LongAdder count = requestCounts.get(fileKey);
+        return (count == null ? 0 : count.sum());
+    }
+
+    /**
+     * @return maximum number of sitemap files preloaded per warm-up
+     */
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * @param deployment name of a deployment (blue/green)
+     * @return true if the deployment is being warmed up, or was the last one warmed up
+     */
+    public boolean isWarmingOrWarmed(String deployment) {
+        return state != State.IDLE && deployment.equals(this.deployment);
+    }
+
+    /**
+     * Load all provided files and wait until they are done. Failures of individual files are logged but do not stop the
+     * warm-up. If the deployment is already being warmed up, or was the last one warmed up, nothing is done.
+     * @param deployment name of the deployment (blue/green) that is warmed up
+     * @param fileNames names of the files to load
+     * @param loader loads one file into the cache
+     * @return true if the warm-up was done, false if it was skipped
+     * @throws InterruptedException when interrupted while waiting for the files to load
+     */
+    public synchronized boolean warmUp(String deployment, List<String> fileNames, FileLoader loader)
+            throws InterruptedException {
+        if (isWarmingOrWarmed(deployment)) {
+            LOG.debug("Deployment {} is already warmed up", deployment);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        this.deployment = deployment;
+        this.nrFiles = fileNames.size();
+        nrLoaded.set(0);
+        nrFailed.set(0);
+        state = State.WARMING;
+        LOG.info("Warming up cache for {} with {} files...", deployment, fileNames.size());
+
+        List<Future<?>> tasks = new ArrayList<>(fileNames.size());
+        try {
+            for (String fileName : fileNames) {
+                tasks.add(loaders.submit(() -> load(fileName, loader)));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            // shouldn't happen, load() handles all errors
+            LOG.error("Error warming up cache", e);
+        } catch (InterruptedException e) {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+            state = State.IDLE;
+            throw e;
+        }
+        durationMs = System.currentTimeMillis() - start;
+        state = State.DONE;
+        startupFinished = true;
+        LOG.info("Warmed up cache for {}: {} files loaded, {} failed in {} ms", deployment, nrLoaded.get(),
+                nrFailed.get(), durationMs);
+        return true;
+    }
+
+    private void load(String fileName, FileLoader loader) {
+        try {
+            loader.load(fileName);
+            nrLoaded.incrementAndGet();
+        } catch (InterruptedException e) {
+            nrFailed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            nrFailed.incrementAndGet();
+            LOG.warn("Unable to preload file {}: {}", fileName, e.getMessage());
+        }
+    }
+
+    /**
+     * Run a warm-up in the background
+     * @param warmUp the warm-up to run
+     */
+    public void warmUpAsync(Runnable warmUp) {
+        background.execute(warmUp);
+    }
+
+    /**
+     * Indicate that the startup warm-up is finished even though it couldn't be done (e.g. because there is no sitemap
+     * yet), so we don't report being out of service forever
+     */
+    public void markStartupFinished() {
+        startupFinished = true;
+    }
+
+    /**
+     * @return true if the first warm-up after startup is done (or was skipped)
+     */
+    public boolean isStartupFinished() {
+        return startupFinished;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getDeployment() {
+        return deployment;
+    }
+
+    public int getNrFiles() {
+        return nrFiles;
+    }
+
+    public int getNrLoaded() {
+        return nrLoaded.get();
+    }
+
+    public int getNrFailed() {
+        return nrFailed.get();
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * Stop all warm-up threads when the application is shutting down
+     */
+    @PreDestroy
+    public void shutdown() {
+        background.shutdownNow();
+        loaders.shutdownNow();
+    }
+}
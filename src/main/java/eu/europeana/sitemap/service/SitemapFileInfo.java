@@ -0,0 +1,46 @@
+package eu.europeana.sitemap.service;
+
+import java.util.Date;
+
+/**
+ * Metadata of a stored sitemap file, used to answer HEAD requests without downloading the file
+ */
+public final class SitemapFileInfo {
+
+    private final long size;
+    private final String eTag;
+    private final Date lastModified;
+
+    /**
+     * Create new file metadata
+     * @param size size of the file in bytes, -1 if unknown
+     * @param eTag entity tag (MD5 checksum in hex) of the file, null if unknown
+     * @param lastModified time the file was last modified, null if unknown
+     */
+    public SitemapFileInfo(long size, String eTag, Date lastModified) {
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return size of the file in bytes, or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return entity tag (MD5 checksum in hex) of the file, or null if unknown
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return time the file was last modified, or null if unknown
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,245 @@
+package eu.europeana.sitemap.service;
+
+import eu.europeana.domain.StorageObject;
+import eu.europeana.features.ObjectStorageClient;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.generate.SitemapManifest;
+import eu.europeana.sitemap.storage.StorageBulkhead;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the integrity of a newly generated sitemap before we switch to it. Individual uploads are already validated
+ * with their MD5 checksum when they are saved (see {@link #md5(byte[])} and {@link #isMatchingETag(String, byte[])}),
+ * the verification afterwards checks that every file listed in the new manifest and all index files are present in
+ * storage. This is done in parallel with a bounded number of threads. Optionally a random sample of sitemap files is
+ * downloaded to check that they contain the expected number of urls.
+ */
+public class SitemapVerifier {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapVerifier.class);
+
+    private static final Pattern MD5_ETAG = Pattern.compile("[0-9a-fA-F]{32}");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String LOC_OPENING = "<loc>";
+
+    private final boolean enabled;
+    private final ObjectStorageClient objectStorageProvider;
+    private final StorageBulkhead writeBulkhead;
+    private final ExecutorService checkers;
+    private final int sampleFiles;
+
+    /**
+     * Create a new verifier
+     * @param enabled if false no verification is done after generation (uploads are always validated)
+     * @param objectStorageProvider storage where the sitemap files are saved
+     * @param writeBulkhead limits concurrent storage requests
+     * @param threads maximum number of files that are checked in parallel
+     * @param sampleFiles number of randomly chosen sitemap files that are downloaded to check their number of urls
+     */
+    public SitemapVerifier(boolean enabled, ObjectStorageClient objectStorageProvider, StorageBulkhead writeBulkhead,
+                           int threads, int sampleFiles) {
+        this.enabled = enabled;
+        this.objectStorageProvider = objectStorageProvider;
+        this.writeBulkhead = writeBulkhead;
+        this.checkers = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("sitemap-verify-"));
+        this.sampleFiles = sampleFiles;
+    }
+
+    /**
+     * @param content file contents
+     * @return MD5 checksum of the contents
+     */
+    public static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not available", e);
+        }
+    }
+
+    /**
+     * Check the ETag returned by storage after saving a file. For single uploads both S3 and Swift return the MD5 of
+     * the contents as ETag, so we compare it with our own checksum. ETags in another format (e.g. of multipart uploads)
+     * can't be compared and are accepted.
+     * @param eTag ETag returned by storage
+     * @param md5 MD5 checksum of the uploaded contents
+     * @return true if the upload succeeded and wasn't corrupted, otherwise false
+     */
+    public static boolean isMatchingETag(String eTag, byte[] md5) {
+        if (eTag == null) {
+            return false;
+        }
+        String value = eTag.replace("\"", "").trim();
+        if (value.isEmpty()) {
+            return false;
+        }
+        if (!MD5_ETAG.matcher(value).matches()) {
+            LOG.debug("Unable to compare ETag {} with checksum", eTag);
+            return true;
+        }
+        return value.equalsIgnoreCase(toHex(md5));
+    }
+
+    /**
+     * @param bytes binary value, e.g. a checksum
+     * @return the value as lowercase hexadecimal string, as used in ETags
+     */
+    public static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            result[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    /**
+     * @return true if sitemaps should be verified after generation
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Check that all files listed in the manifest of a new deployment and all provided index files are present in
+     * storage, and that a sample of the newly generated sitemap files has the expected number of urls
+     * @param manifest manifest of the new deployment
+     * @param deployment the new deployment (blue/green), only files stored in this deployment are sampled
+     * @param indexFileNames names of all sitemap index files
+     * @throws SiteMapException if one or more files are missing or incorrect
+     * @throws InterruptedException when interrupted while verifying
+     */
+    public void verify(SitemapManifest manifest, String deployment, List<String> indexFileNames)
+            throws SiteMapException, InterruptedException {
+        long start = System.currentTimeMillis();
+        List<SitemapFile> files = new ArrayList<>(manifest.size());
+        List<SitemapFile> sample = new ArrayList<>();
+        for (String fileSet : manifest.getFileSets()) {
+            String location = manifest.getLocation(fileSet);
+            for (long[] range : manifest.getRanges(fileSet)) {
+                SitemapFile file = new SitemapFile(Naming.getSitemapFileName(location, fileSet, range[0], range[1]),
+                        range[1] - range[0]);
+                files.add(file);
+                // kept files may have been rendered again after changes, so their number of urls can differ
+                if (deployment.equals(location)) {
+                    sample.add(file);
+                }
+            }
+        }
+        Collections.shuffle(sample);
+        sample = sample.subList(0, Math.min(sampleFiles, sample.size()));
+
+        List<Future<String>> tasks = new ArrayList<>(indexFileNames.size() + files.size() + sample.size());
+        try {
+            for (String indexFileName : indexFileNames) {
+                tasks.add(checkers.submit(() -> checkExists(indexFileName)));
+            }
+            for (SitemapFile file : files) {
+                tasks.add(checkers.submit(() -> checkExists(file.name)));
+            }
+            for (SitemapFile file : sample) {
+                tasks.add(checkers.submit(() -> checkNrUrls(file)));
+            }
+            List<String> errors = new ArrayList<>();
+            for (Future<String> task : tasks) {
+                String error = getResult(task);
+                if (error != null) {
+                    errors.add(error);
+                }
+            }
+            if (!errors.isEmpty()) {
+                LOG.error("Sitemap verification failed: {}", errors);
+                throw new SiteMapException("Sitemap verification failed, " + errors.size() + " problems found, first is: "
+                        + errors.get(0));
+            }
+        } finally {
+            for (Future<String> task : tasks) {
+                task.cancel(true);
+            }
+        }
+        LOG.info("Verified {} index files and {} sitemap files ({} sampled) in {} ms", indexFileNames.size(),
+                files.size(), sample.size(), System.currentTimeMillis() - start);
+    }
+
+    private static String getResult(Future<String> task) throws InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            return "Error verifying file: " + e.getCause();
+        }
+    }
+
+    /**
+     * @return null if the file exists, otherwise an error message
+     */
+    private String checkExists(String fileName) throws SiteMapException, InterruptedException {
+        Optional<StorageObject> file = writeBulkhead.executeUnchecked(() ->
+                objectStorageProvider.getWithoutBody(fileName));
+        return (file.isPresent() ? null : "File " + fileName + " is missing");
+    }
+
+    /**
+     * @return null if the file contains the expected number of urls, otherwise an error message
+     */
+    private String checkNrUrls(SitemapFile file) throws SiteMapException, InterruptedException, IOException {
+        Optional<StorageObject> object = writeBulkhead.executeUnchecked(() -> objectStorageProvider.get(file.name));
+        if (!object.isPresent()) {
+            return "File " + file.name + " is missing";
+        }
+        long nrUrls = 0;
+        try (InputStream in = object.get().getPayload().openStream();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (int i = line.indexOf(LOC_OPENING); i >= 0; i = line.indexOf(LOC_OPENING, i + 1)) {
+                    nrUrls++;
+                }
+            }
+        } finally {
+            object.get().getPayload().close();
+        }
+        if (nrUrls != file.expectedNrUrls) {
+            return "File " + file.name + " contains " + nrUrls + " urls instead of " + file.expectedNrUrls;
+        }
+        return null;
+    }
+
+    /**
+     * Stop the verification threads when the application is shutting down
+     */
+    @PreDestroy
+    public void shutdown() {
+        checkers.shutdownNow();
+    }
+
+    private static final class SitemapFile {
+        private final String name;
+        private final long expectedNrUrls;
+
+        private SitemapFile(String name, long expectedNrUrls) {
+            this.name = name;
+            this.expectedNrUrls = expectedNrUrls;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package eu.europeana.sitemap.service;
 
+import eu.europeana.sitemap.SitemapApplication;
+import eu.europeana.sitemap.exceptions.SiteMapConfigException;
 import eu.europeana.sitemap.exceptions.SiteMapException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.support.CronTrigger;
@@ -11,6 +14,8 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 /**
@@ -19,6 +24,7 @@ import java.util.TimeZone;
  */
 @Component
 @EnableScheduling
+@Profile("!" + SitemapApplication.READ_ONLY_PROFILE)
 public class UpdateScheduler {
 
     private static final Logger LOG = LogManager.getLogger(UpdateScheduler.class);
@@ -27,6 +33,8 @@ public class UpdateScheduler {
 
     @Value("${scheduler.cron.update}")
     private String updateCronConfig;
+    @Value("${scheduler.cron.tiers:}")
+    private String tierCronConfig;
 
     private ThreadPoolTaskScheduler scheduler;
 
@@ -36,28 +44,79 @@ public class UpdateScheduler {
 
     /**
      * Initialize scheduler according to cron settings in properties file. If no configuration is found
-     * then it won't be scheduled (no automatic updates)
+     * then it won't be scheduled (no automatic updates). Record tiers can have their own schedule, defined as
+     * tier=cron pairs separated by a semicolon. All updates run on the same thread, so they never overlap.
+     * @throws SiteMapConfigException when a tier schedule is invalid or refers to an unknown record tier
      */
     @PostConstruct
-    public void init() {
+    public void init() throws SiteMapConfigException {
         if (updateCronConfig == null) {
             LOG.warn("No update cron settings specified!");
         } else {
+            TimeZone timezone = TimeZone.getTimeZone("Europe/Amsterdam");
+            // validate everything before we start the scheduler thread
+            CronTrigger updateTrigger = createTrigger(updateCronConfig, timezone);
+            Map<String, CronTrigger> tierTriggers = new LinkedHashMap<>();
+            if (tierCronConfig != null) {
+                for (String tierCron : tierCronConfig.split(";")) {
+                    if (!tierCron.trim().isEmpty()) {
+                        String[] parts = tierCron.split("=", 2);
+                        String tier = parts[0].trim();
+                        if (parts.length != 2 || tier.isEmpty()) {
+                            throw new SiteMapConfigException("Invalid tier schedule " + tierCron
+                                    + ", expected tier=cron");
+                        }
+                        if (!mongoSitemapService.isTierConfigured(tier)) {
+                            throw new SiteMapConfigException("Tier schedule " + tierCron
+                                    + " refers to unknown record tier " + tier);
+                        }
+                        tierTriggers.put(tier, createTrigger(parts[1].trim(), timezone));
+                    }
+                }
+            }
+
             scheduler = new ThreadPoolTaskScheduler();
             scheduler.setPoolSize(1);
             scheduler.initialize();
-            TimeZone timezone = TimeZone.getTimeZone("Europe/Amsterdam");
             LOG.info("Cron update schedule is: {} {}", updateCronConfig, timezone.getID());
-            scheduler.schedule(new UpdateRunnable(), new CronTrigger(updateCronConfig, timezone));
+            scheduler.schedule(new UpdateRunnable(null), updateTrigger);
+            for (Map.Entry<String, CronTrigger> tierTrigger : tierTriggers.entrySet()) {
+                LOG.info("Cron update schedule for record tier {} is: {} {}", tierTrigger.getKey(),
+                        tierTrigger.getValue().getExpression(), timezone.getID());
+                scheduler.schedule(new UpdateRunnable(tierTrigger.getKey()), tierTrigger.getValue());
+            }
+        }
+    }
+
+    private static CronTrigger createTrigger(String cron, TimeZone timezone) throws SiteMapConfigException {
+        try {
+            return new CronTrigger(cron, timezone);
+        } catch (IllegalArgumentException e) {
+            throw new SiteMapConfigException("Invalid cron expression " + cron, e);
         }
     }
 
     private class UpdateRunnable implements Runnable {
+
+        private final String tier;
+
+        /**
+         * @param tier the record tier to update, null to update all sources
+         */
+        UpdateRunnable(String tier) {
+            this.tier = tier;
+        }
+
         @Override
         public void run() {
-            LOG.info("Update scheduler: starting update...");
             try {
-                mongoSitemapService.update();
+                if (tier == null) {
+                    LOG.info("Update scheduler: starting update...");
+                    mongoSitemapService.update();
+                } else {
+                    LOG.info("Update scheduler: starting update of record tier {}...", tier);
+                    mongoSitemapService.updateTier(tier);
+                }
             } catch (SiteMapException e) {
                 LOG.error("Error running automatic update process: {}", e.getMessage(), e);
             }
@@ -0,0 +1,47 @@
+package eu.europeana.sitemap.storage;
+
+import java.util.Date;
+
+/**
+ * Contents of a file read from storage, together with its ETag and last modified date. These are determined once when
+ * the file is read, so they are the same every time the file is served from a cache.
+ */
+public final class CachedFile {
+
+    private final byte[] content;
+    private final String eTag;
+    private final Date lastModified;
+
+    /**
+     * Create a new cached file
+     * @param content contents of the file
+     * @param eTag entity tag (MD5 checksum in hex) of the contents
+     * @param lastModified time the file was last modified in storage, null if unknown
+     */
+    public CachedFile(byte[] content, String eTag, Date lastModified) {
+        this.content = content;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return contents of the file
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return entity tag (MD5 checksum in hex) of the contents
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return time the file was last modified in storage, or null if unknown
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
+}
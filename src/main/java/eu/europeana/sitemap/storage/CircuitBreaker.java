@@ -0,0 +1,154 @@
+package eu.europeana.sitemap.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Simple count-based circuit breaker. It keeps track of the outcome of the most recent calls and 'opens' when the
+ * fraction of failed or slow calls exceeds the configured threshold. While open, calls are not allowed so callers can
+ * fail fast (or use a fallback) instead of waiting for a degraded storage provider. After the open period one trial
+ * call is allowed ('half-open'); if that succeeds the breaker closes again, otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LogManager.getLogger(CircuitBreaker.class);
+
+    /**
+     * Possible states of the circuit breaker
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final boolean[] failedCalls;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long slowCallMs;
+    private final long openDurationMs;
+
+    private State state = State.CLOSED;
+    private int nrCalls;
+    private int nrFailed;
+    private int position;
+    private long openedAt;
+    private boolean trialInProgress;
+
+    /**
+     * Create a new circuit breaker
+     * @param name name of the circuit breaker (used for logging)
+     * @param windowSize the number of most recent calls that are evaluated
+     * @param minCalls minimum number of calls in the window before the breaker can open
+     * @param failureRateThreshold fraction of failed or slow calls (0-1) at which the breaker opens
+     * @param slowCallMs calls that take longer than this number of milliseconds are counted as failed
+     * @param openDurationMs time in milliseconds the breaker stays open before allowing a trial call
+     */
+    public CircuitBreaker(String name, int windowSize, int minCalls, double failureRateThreshold, long slowCallMs,
+                          long openDurationMs) {
+        this.name = name;
+        this.failedCalls = new boolean[windowSize];
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMs = slowCallMs;
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Check if a call is allowed. Note that if this returns true the caller should always report the outcome of the
+     * call using {@link #recordSuccess(long)} or {@link #recordFailure()}
+     * @return true if the call is allowed, false if the breaker is open
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDurationMs) {
+            LOG.info("Circuit breaker {} half-open, allowing trial call", name);
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !trialInProgress) {
+            trialInProgress = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Register a successful call
+     * @param durationMs duration of the call in milliseconds
+     */
+    public synchronized void recordSuccess(long durationMs) {
+        boolean slow = durationMs > slowCallMs;
+        if (state == State.HALF_OPEN) {
+            trialInProgress = false;
+            if (slow) {
+                open();
+            } else {
+                close();
+            }
+        } else {
+            record(slow);
+        }
+    }
+
+    /**
+     * Register a failed call
+     */
+    public synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            trialInProgress = false;
+            open();
+        } else {
+            record(true);
+        }
+    }
+
+    /**
+     * Register that an allowed call was not executed (e.g. because we were too busy), so it doesn't count as success
+     * or failure. If it was the trial call, another trial call is allowed
+     */
+    public synchronized void recordNotExecuted() {
+        if (state == State.HALF_OPEN) {
+            trialInProgress = false;
+        }
+    }
+
+    private void record(boolean failed) {
+        if (nrCalls == failedCalls.length) {
+            // window is full, so we overwrite the oldest outcome
+            if (failedCalls[position]) {
+                nrFailed--;
+            }
+        } else {
+            nrCalls++;
+        }
+        failedCalls[position] = failed;
+        if (failed) {
+            nrFailed++;
+        }
+        position = (position + 1) % failedCalls.length;
+
+        if (state == State.CLOSED && nrCalls >= minCalls && nrFailed >= failureRateThreshold * nrCalls) {
+            open();
+        }
+    }
+
+    private void open() {
+        LOG.warn("Circuit breaker {} opened ({} of last {} calls failed or were slow)", name, nrFailed, nrCalls);
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        LOG.info("Circuit breaker {} closed", name);
+        state = State.CLOSED;
+        nrCalls = 0;
+        nrFailed = 0;
+        position = 0;
+    }
+
+    /**
+     * @return the current state of the circuit breaker
+     */
+    public synchronized State getState() {
+        return state;
+    }
+}
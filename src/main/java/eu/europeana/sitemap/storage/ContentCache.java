@@ -0,0 +1,95 @@
+package eu.europeana.sitemap.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the contents of recently read files in memory (least-recently-used), up to a maximum total size in bytes.
+ * The ETag and last modified date of a file are kept with its contents, see {@link CachedFile}.
+ */
+public class ContentCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Create a new content cache
+     * @param maxBytes maximum total size of all cached contents. If 0 then nothing is cached
+     */
+    public ContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add or replace the contents of a file. Files larger than the maximum cache size are not cached.
+     * @param fileName name of the file
+     * @param file contents and metadata of the file
+     */
+    public synchronized void put(String fileName, CachedFile file) {
+        if (file.getContent().length > maxBytes) {
+            return;
+        }
+        CachedFile old = entries.put(fileName, file);
+        if (old != null) {
+            totalBytes -= old.getContent().length;
+        }
+        totalBytes += file.getContent().length;
+
+        Iterator<Map.Entry<String, CachedFile>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().getValue().getContent().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * @param fileName name of the file
+     * @return cached contents and metadata of the file, or null if it's not in the cache
+     */
+    public synchronized CachedFile get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * Remove a file from the cache
+     * @param fileName name of the file
+     */
+    public synchronized void remove(String fileName) {
+        CachedFile old = entries.remove(fileName);
+        if (old != null) {
+            totalBytes -= old.getContent().length;
+        }
+    }
+
+    /**
+     * Remove all files of which the name matches the provided filter
+     * @param fileNameFilter returns true for file names that should be removed
+     */
+    public synchronized void removeAll(Predicate<String> fileNameFilter) {
+        Iterator<Map.Entry<String, CachedFile>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CachedFile> entry = it.next();
+            if (fileNameFilter.test(entry.getKey())) {
+                totalBytes -= entry.getValue().getContent().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return total size in bytes of all cached contents
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
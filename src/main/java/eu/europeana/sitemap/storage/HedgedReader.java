@@ -0,0 +1,293 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes storage reads as 'hedged requests' to cut tail latency: if a read has not returned within a delay based on
+ * a percentile of recent read latencies, a second identical read is started and whichever returns first is used. The
+ * other read is cancelled.
+ *
+ * To avoid doubling storage costs when storage is slow in general, the fraction of recent reads that may be hedged is
+ * capped. If no hedge thread is available we simply don't hedge. A read only fails when all its attempts have failed,
+ * or when no attempt completed within the timeout. If no thread is available for the primary read either, the read
+ * fails immediately.
+ */
+public class HedgedReader {
+
+    private static final Logger LOG = LogManager.getLogger(HedgedReader.class);
+
+    private static final int LATENCY_WINDOW = 1000;
+    private static final int MIN_SAMPLES = 100;
+    private static final int DELAY_REFRESH_INTERVAL = 50;
+    /** The hedge budget is calculated over roughly this number of most recent reads **/
+    private static final int BUDGET_WINDOW = 1000;
+
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMs;
+    private final double maxHedgeFraction;
+    private final long timeoutMs;
+
+    private final LatencyTracker latencies = new LatencyTracker(LATENCY_WINDOW);
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong nrReads = new AtomicLong();
+    private final AtomicLong nrHedged = new AtomicLong();
+    private final AtomicLong recentReads = new AtomicLong();
+    private final AtomicLong recentHedged = new AtomicLong();
+    private volatile long hedgeDelayMs;
+
+    /**
+     * Create a new hedged reader
+     * @param enabled if false all reads are executed directly in the calling thread without hedging
+     * @param threads maximum number of concurrent reads (primary and hedged)
+     * @param percentile latency percentile (0-100) after which a read is hedged
+     * @param minDelayMs minimum delay before a read is hedged, also used until there are enough latency samples
+     * @param maxHedgeFraction maximum fraction of recent reads that may be hedged (e.g. 0.05 for 5%)
+     * @param timeoutMs maximum time we wait for a read (primary and hedged together)
+     */
+    public HedgedReader(boolean enabled, int threads, double percentile, long minDelayMs, double maxHedgeFraction,
+                        long timeoutMs) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayMs = minDelayMs;
+        this.maxHedgeFraction = maxHedgeFraction;
+        this.timeoutMs = timeoutMs;
+        this.hedgeDelayMs = minDelayMs;
+        this.executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new CustomizableThreadFactory("sitemap-storage-read-"));
+        this.timer = new ScheduledThreadPoolExecutor(1, new CustomizableThreadFactory("sitemap-hedge-timer-"));
+        if (enabled) {
+            LOG.info("Hedged reads enabled: hedging after p{} latency (at least {} ms), max {}% of reads",
+                    percentile, minDelayMs, maxHedgeFraction * 100);
+        }
+    }
+
+    /**
+     * Execute a read, hedging it if it takes too long
+     * @param read the read operation
+     * @param <T> type of the result
+     * @return the result of the first read that completes
+     * @throws TimeoutException when no read completed within the timeout
+     * @throws SiteMapUnavailableException when no thread is available to execute the read
+     * @throws Exception the exception thrown by the primary read operation, if all attempts failed
+     */
+    public <T> T read(Callable<T> read) throws Exception {
+        long count = nrReads.incrementAndGet();
+        if (count % DELAY_REFRESH_INTERVAL == 0) {
+            refreshHedgeDelay();
+        }
+        if (recentReads.incrementAndGet() >= BUDGET_WINDOW) {
+            decayBudget();
+        }
+        if (!enabled) {
+            return timed(read);
+        }
+
+        Attempts<T> attempts = new Attempts<>();
+        Future<?> primary;
+        try {
+            primary = executor.submit(() -> attempt(read, attempts, true));
+        } catch (RejectedExecutionException e) {
+            // all threads busy, reading in the calling thread would bypass the timeout so we fail fast
+            throw new SiteMapUnavailableException("Too many concurrent storage reads, please try again later");
+        }
+        HedgeTask<T> hedge = new HedgeTask<>(read, attempts);
+        ScheduledFuture<?> hedgeTimer = timer.schedule(hedge, hedgeDelayMs, TimeUnit.MILLISECONDS);
+        try {
+            return attempts.result.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Storage read did not complete within {} ms", timeoutMs);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            hedgeTimer.cancel(false);
+            primary.cancel(true);
+            hedge.cancel();
+        }
+    }
+
+    private <T> T timed(Callable<T> read) throws Exception {
+        long start = System.nanoTime();
+        T value = read.call();
+        latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return value;
+    }
+
+    /**
+     * Execute one read attempt. The result only fails when all started attempts have failed. The latency of the read
+     * is measured from the start of the primary attempt, that is what the caller waited for.
+     */
+    private <T> void attempt(Callable<T> read, Attempts<T> attempts, boolean isPrimary) {
+        try {
+            if (attempts.result.complete(read.call())) {
+                latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attempts.start));
+            }
+        } catch (Exception e) {
+            if (!isPrimary) {
+                LOG.debug("Hedged read failed", e);
+            }
+            attempts.failed(e, isPrimary);
+        }
+    }
+
+    private boolean hedgeBudgetAvailable() {
+        return recentHedged.get() < maxHedgeFraction * recentReads.get();
+    }
+
+    /**
+     * Halve the recent counts, so the budget is based on recent reads and not on all reads since startup
+     */
+    private synchronized void decayBudget() {
+        long reads = recentReads.get();
+        if (reads >= BUDGET_WINDOW) {
+            recentReads.addAndGet(-reads / 2);
+            recentHedged.addAndGet(-recentHedged.get() / 2);
+        }
+    }
+
+    private void refreshHedgeDelay() {
+        if (latencies.getSampleCount() >= MIN_SAMPLES) {
+            hedgeDelayMs = Math.max(minDelayMs, latencies.getPercentile(percentile));
+        }
+    }
+
+    /**
+     * @return the current delay in milliseconds after which reads are hedged
+     */
+    public long getHedgeDelayMs() {
+        return hedgeDelayMs;
+    }
+
+    /**
+     * @return the total number of reads
+     */
+    public long getNrReads() {
+        return nrReads.get();
+    }
+
+    /**
+     * @return the total number of reads that were hedged
+     */
+    public long getNrHedged() {
+        return nrHedged.get();
+    }
+
+    /**
+     * Clean up when the application is shutting down
+     */
+    @PreDestroy
+    public void shutdown() {
+        LOG.info("Shutting down hedged reader...");
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Result of a read and the state of its attempts. If the primary read fails before the hedged read was started,
+     * the hedged read is not started anymore and the read fails immediately
+     */
+    private static final class Attempts<T> {
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long start = System.nanoTime();
+        private boolean hedgeStarted;
+        private boolean hedgeFailed;
+        private Exception primaryError;
+
+        /**
+         * @return true if the hedged read may be started
+         */
+        private synchronized boolean startHedge() {
+            if (result.isDone() || primaryError != null) {
+                return false;
+            }
+            hedgeStarted = true;
+            return true;
+        }
+
+        private synchronized void hedgeNotStarted() {
+            hedgeStarted = false;
+            if (primaryError != null) {
+                result.completeExceptionally(primaryError);
+            }
+        }
+
+        private synchronized void failed(Exception e, boolean isPrimary) {
+            if (isPrimary) {
+                primaryError = e;
+            } else {
+                hedgeFailed = true;
+            }
+            if (primaryError != null && (!hedgeStarted || hedgeFailed)) {
+                // we report the error of the primary read, that's the one that would have been thrown without hedging
+                result.completeExceptionally(primaryError);
+            }
+        }
+    }
+
+    /**
+     * Starts the hedged (second) read when the hedge delay has passed and the primary read is still running
+     */
+    private final class HedgeTask<T> implements Runnable {
+
+        private final Callable<T> read;
+        private final Attempts<T> attempts;
+        private volatile Future<?> secondary;
+
+        private HedgeTask(Callable<T> read, Attempts<T> attempts) {
+            this.read = read;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public void run() {
+            if (!hedgeBudgetAvailable() || !attempts.startHedge()) {
+                return;
+            }
+            try {
+                secondary = executor.submit(() -> attempt(read, attempts, false));
+                nrHedged.incrementAndGet();
+                recentHedged.incrementAndGet();
+                // the read may have finished (and tried to cancel us) while we were submitting
+                if (attempts.result.isDone()) {
+                    cancel();
+                }
+            } catch (RejectedExecutionException e) {
+                LOG.debug("No thread available for hedged read");
+                attempts.hedgeNotStarted();
+            }
+        }
+
+        private void cancel() {
+            Future<?> s = secondary;
+            if (s != null) {
+                s.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package eu.europeana.sitemap.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the most recent latencies of an operation in a fixed-size ring buffer, so we can calculate
+ * percentiles over a sliding window without locking on the request path.
+ */
+public class LatencyTracker {
+
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Create a new latency tracker
+     * @param windowSize the number of most recent samples to keep
+     */
+    public LatencyTracker(int windowSize) {
+        this.samples = new AtomicLongArray(windowSize);
+    }
+
+    /**
+     * Register a new latency
+     * @param latencyMs the latency in milliseconds
+     */
+    public void record(long latencyMs) {
+        long index = count.getAndIncrement();
+        samples.set((int) (index % samples.length()), latencyMs);
+    }
+
+    /**
+     * @return the number of samples currently available (at most the window size)
+     */
+    public int getSampleCount() {
+        return (int) Math.min(count.get(), samples.length());
+    }
+
+    /**
+     * Calculate a percentile over the recent latencies
+     * @param percentile value between 0 and 100
+     * @return the latency in milliseconds at the requested percentile, or -1 if there are no samples yet
+     */
+    public long getPercentile(double percentile) {
+        int nrSamples = getSampleCount();
+        if (nrSamples == 0) {
+            return -1;
+        }
+        long[] sorted = new long[nrSamples];
+        for (int i = 0; i < nrSamples; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * nrSamples) - 1;
+        return sorted[Math.max(0, Math.min(index, nrSamples - 1))];
+    }
+}
@@ -0,0 +1,210 @@
+package eu.europeana.sitemap.storage;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import eu.europeana.domain.StorageObject;
+import eu.europeana.features.ObjectStorageClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jclouds.io.Payload;
+import org.jclouds.io.payloads.FilePayload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores objects as files in a local directory instead of in S3, for development and load testing without access to
+ * the real storage. Object names are url-encoded to get valid file names. Uploads are written to a temporary file
+ * first and then moved, so readers never see a partially written file.
+ */
+@SuppressWarnings("deprecation") // md5 is what S3 uses for ETags
+public class LocalObjectStorageClient implements ObjectStorageClient {
+
+    private static final Logger LOG = LogManager.getLogger(LocalObjectStorageClient.class);
+
+    private static final String ENCODING = "UTF-8";
+    private static final String UPLOAD_DIR = ".uploads";
+
+    private final File dir;
+    private final File uploadDir;
+    /** MD5 checksums are calculated only once per version of a file (files may be changed outside this client) **/
+    private final Map<String, FileMd5> md5s = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new local storage client
+     * @param dir directory where objects are stored, created if it doesn't exist
+     */
+    public LocalObjectStorageClient(File dir) {
+        this.dir = dir;
+        this.uploadDir = new File(dir, UPLOAD_DIR);
+        if (!uploadDir.isDirectory() && !uploadDir.mkdirs()) {
+            throw new IllegalStateException("Unable to create storage directory " + uploadDir);
+        }
+        LOG.warn("Using local storage in {}", dir.getAbsolutePath());
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public String getBucketName() {
+        return dir.getAbsolutePath();
+    }
+
+    @Override
+    public List<StorageObject> list() {
+        List<StorageObject> result = new ArrayList<>();
+        File[] files = dir.listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                result.add(new StorageObject(decode(file.getName()), file.toURI(), new Date(file.lastModified()), null));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String put(String key, Payload value) {
+        try {
+            Path upload = Files.createTempFile(uploadDir.toPath(), "upload-", ".tmp");
+            HashCode md5;
+            try (InputStream in = value.openStream();
+                 HashingInputStream hashing = new HashingInputStream(Hashing.md5(), in);
+                 OutputStream out = Files.newOutputStream(upload)) {
+                ByteStreams.copy(hashing, out);
+                md5 = hashing.hash();
+            }
+            File file = getFile(key);
+            Files.move(upload, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            md5s.put(key, new FileMd5(file, md5));
+            return md5.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error saving " + key, e);
+        }
+    }
+
+    @Override
+    public String put(StorageObject storageObject) {
+        return put(storageObject.getName(), storageObject.getPayload());
+    }
+
+    @Override
+    public Optional<StorageObject> getWithoutBody(String objectName) {
+        return get(objectName);
+    }
+
+    @Override
+    public Optional<StorageObject> get(String objectName) {
+        File file = getFile(objectName);
+        if (!file.isFile()) {
+            return Optional.empty();
+        }
+        // the file payload is only opened when it's read, so this works without body as well
+        FilePayload payload = new FilePayload(file);
+        payload.getContentMetadata().setContentLength(file.length());
+        payload.getContentMetadata().setContentMD5(getMd5(objectName, file));
+        return Optional.of(new StorageObject(objectName, file.toURI(), new Date(file.lastModified()), payload));
+    }
+
+    private HashCode getMd5(String objectName, File file) {
+        return md5s.compute(objectName, (name, cached) -> {
+            if (cached != null && cached.isFor(file)) {
+                return cached;
+            }
+            try {
+                return new FileMd5(file, com.google.common.io.Files.asByteSource(file).hash(Hashing.md5()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading " + name, e);
+            }
+        }).md5;
+    }
+
+    @Override
+    public byte[] getContent(String objectName) {
+        try {
+            return Files.readAllBytes(getFile(objectName).toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading " + objectName, e);
+        }
+    }
+
+    @Override
+    public boolean isAvailable(String id) {
+        return getFile(id).isFile();
+    }
+
+    @Override
+    public void delete(String objectName) {
+        md5s.remove(objectName);
+        try {
+            Files.deleteIfExists(getFile(objectName).toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error deleting " + objectName, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    private File getFile(String objectName) {
+        return new File(dir, encode(objectName));
+    }
+
+    private static String encode(String objectName) {
+        try {
+            // url-encoding leaves dots, so make sure names like '..' can't point outside the directory
+            return URLEncoder.encode(objectName, ENCODING).replace(".", "%2E");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String fileName) {
+        try {
+            return URLDecoder.decode(fileName, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * MD5 checksum of a particular version (last modified date and size) of a file
+     */
+    private static final class FileMd5 {
+
+        private final long lastModified;
+        private final long length;
+        private final HashCode md5;
+
+        private FileMd5(File file, HashCode md5) {
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.md5 = md5;
+        }
+
+        private boolean isFor(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller (the leader) executes the call and all callers that
+ * arrive while it's in progress wait for and share its result. This prevents a 'thundering herd' of identical storage
+ * reads, e.g. when many crawlers request the same file right after a new sitemap goes live.
+ *
+ * A failure is also shared with the callers that arrive shortly after it (within the failure ttl), so a failing file
+ * doesn't trigger a new storage read for each of them. Callers wait at most the wait timeout for the result of another
+ * caller.
+ * @param <T> type of the result
+ */
+public class SingleFlight<T> {
+
+    private static final Logger LOG = LogManager.getLogger(SingleFlight.class);
+
+    /** When there are more finished flights than this, expired ones are removed **/
+    private static final int SWEEP_THRESHOLD = 1000;
+
+    private final boolean enabled;
+    private final long failureTtlMs;
+    private final long waitTimeoutMs;
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong nrCalls = new AtomicLong();
+    private final AtomicLong nrCoalesced = new AtomicLong();
+
+    /**
+     * Create a new single flight group
+     * @param enabled if false all calls are executed directly
+     * @param failureTtlMs time in milliseconds during which a failure is returned to new callers
+     * @param waitTimeoutMs maximum time in milliseconds to wait for the result of another caller
+     */
+    public SingleFlight(boolean enabled, long failureTtlMs, long waitTimeoutMs) {
+        this.enabled = enabled;
+        this.failureTtlMs = failureTtlMs;
+        this.waitTimeoutMs = waitTimeoutMs;
+    }
+
+    /**
+     * Execute a call, or wait for the result of the same call if that's already in progress
+     * @param key identifies the call, e.g. the name of the object that is read
+     * @param call the call to execute
+     * @return the result of the call
+     * @throws SiteMapException the exception thrown by the call, or a SiteMapUnavailableException if we were interrupted
+     * or timed out while waiting for another caller
+     */
+    public T execute(String key, Call<T> call) throws SiteMapException {
+        nrCalls.incrementAndGet();
+        if (!enabled) {
+            return call.execute();
+        }
+        Flight own = new Flight();
+        while (true) {
+            Flight flight = flights.putIfAbsent(key, own);
+            if (flight == null) {
+                return lead(key, own, call);
+            }
+            if (flight.isExpired(System.currentTimeMillis())) {
+                flights.remove(key, flight);
+            } else {
+                nrCoalesced.incrementAndGet();
+                LOG.debug("Waiting for call in progress for {}", key);
+                return flight.await(key);
+            }
+        }
+    }
+
+    private T lead(String key, Flight flight, Call<T> call) throws SiteMapException {
+        boolean done = false;
+        try {
+            T result = call.execute();
+            flights.remove(key, flight);
+            flight.result.complete(result);
+            done = true;
+            return result;
+        } catch (SiteMapException | RuntimeException e) {
+            flight.failedAt = System.currentTimeMillis();
+            if (failureTtlMs <= 0) {
+                flights.remove(key, flight);
+            } else if (flights.size() > SWEEP_THRESHOLD) {
+                flights.values().removeIf(f -> f.isExpired(flight.failedAt));
+            }
+            flight.result.completeExceptionally(e);
+            done = true;
+            throw e;
+        } finally {
+            if (!done) {
+                // an error, make sure no caller keeps waiting
+                flights.remove(key, flight);
+                flight.result.completeExceptionally(new SiteMapUnavailableException("Unable to read " + key));
+            }
+        }
+    }
+
+    /**
+     * @return total number of calls
+     */
+    public long getNrCalls() {
+        return nrCalls.get();
+    }
+
+    /**
+     * @return number of calls that shared the result of another call
+     */
+    public long getNrCoalesced() {
+        return nrCoalesced.get();
+    }
+
+    /**
+     * A call that can be coalesced
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T execute() throws SiteMapException;
+    }
+
+    /**
+     * A call in progress, or a call that failed recently
+     */
+    private final class Flight {
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile long failedAt;
+
+        private boolean isExpired(long now) {
+            return failedAt > 0 && now - failedAt >= failureTtlMs;
+        }
+
+        private T await(String key) throws SiteMapException {
+            try {
+                return result.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SiteMapUnavailableException("Interrupted while waiting for " + key);
+            } catch (TimeoutException e) {
+                LOG.warn("Timeout waiting {} ms for call in progress for {}", waitTimeoutMs, key);
+                throw new SiteMapUnavailableException("Timeout while waiting for " + key + ", please try again later");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SiteMapException) {
+                    throw (SiteMapException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                LOG.error("Error in call for {}", key, e.getCause());
+                throw new SiteMapUnavailableException("Unable to read " + key);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package eu.europeana.sitemap.storage;
+
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent storage operations of one type of traffic (e.g. reads by crawlers or writes by the
+ * sitemap generation), so one type of traffic can never use up all connections to the storage provider.
+ */
+public class StorageBulkhead {
+
+    private static final Logger LOG = LogManager.getLogger(StorageBulkhead.class);
+
+    private final String name;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long maxWaitMs;
+
+    /**
+     * Create a new bulkhead
+     * @param name name of the bulkhead (used for logging)
+     * @param maxConcurrent maximum number of concurrent operations
+     * @param maxWaitMs maximum time in milliseconds to wait for a free slot
+     */
+    public StorageBulkhead(String name, int maxConcurrent, long maxWaitMs) {
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMs = maxWaitMs;
+        LOG.info("Storage {} bulkhead: max {} concurrent operations", name, maxConcurrent);
+    }
+
+    /**
+     * Execute a storage operation if a slot becomes available in time
+     * @param operation the storage operation
+     * @param <T> type of the result
+     * @return the result of the operation
+     * @throws SiteMapUnavailableException if no slot became available within the maximum wait time
+     * @throws Exception any exception thrown by the operation itself
+     */
+    public <T> T execute(Callable<T> operation) throws Exception {
+        acquire();
+        try {
+            return operation.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Execute a storage operation that doesn't throw checked exceptions
+     * @param operation the storage operation
+     * @param <T> type of the result
+     * @return the result of the operation
+     * @throws SiteMapUnavailableException if no slot became available within the maximum wait time
+     * @throws InterruptedException if we were interrupted while waiting for a slot
+     */
+    public <T> T executeUnchecked(UncheckedOperation<T> operation) throws SiteMapUnavailableException, InterruptedException {
+        acquire();
+        try {
+            return operation.execute();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void acquire() throws SiteMapUnavailableException, InterruptedException {
+        if (!permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Storage {} bulkhead full, all {} slots in use", name, maxConcurrent);
+            throw new SiteMapUnavailableException("Storage " + name + " capacity exceeded, please try again later");
+        }
+    }
+
+    /**
+     * @return the number of operations currently in progress
+     */
+    public int getInUse() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * A storage operation without checked exceptions
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface UncheckedOperation<T> {
+        T execute();
+    }
+}
@@ -0,0 +1,105 @@
+package eu.europeana.sitemap.web;
+
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.exceptions.SiteMapUnavailableException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes (blocking) storage reads on a dedicated, bounded thread pool so that Tomcat worker threads are released
+ * as soon as a request is received. Results are returned as a {@link DeferredResult} which Spring MVC completes
+ * asynchronously.
+ *
+ * When all threads are busy and the queue is full, or when a read takes longer than the configured timeout, the
+ * request fails with a {@link SiteMapUnavailableException} (HTTP 503) instead of queueing indefinitely.
+ */
+public class AsyncReadExecutor {
+
+    private static final Logger LOG = LogManager.getLogger(AsyncReadExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMs;
+
+    /**
+     * Create a new executor for asynchronous reads
+     * @param threads maximum number of concurrent storage reads
+     * @param queueSize maximum number of reads waiting for a free thread
+     * @param timeoutMs maximum time in milliseconds a request may take (including waiting in the queue)
+     */
+    public AsyncReadExecutor(int threads, int queueSize, long timeoutMs) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("sitemap-read-"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutMs = timeoutMs;
+        LOG.info("Asynchronous reads: {} threads, queue size {}, timeout {} ms", threads, queueSize, timeoutMs);
+    }
+
+    /**
+     * Schedule a read operation on the read thread pool
+     * @param read the read operation to execute
+     * @param <T> type of the result
+     * @return deferred result that will be completed when the read operation is done, fails or times out
+     */
+    public <T> DeferredResult<T> submit(ReadOperation<T> read) {
+        DeferredResult<T> result = new DeferredResult<>(timeoutMs);
+        try {
+            Future<?> task = executor.submit(() -> {
+                try {
+                    result.setResult(read.execute());
+                } catch (SiteMapException | RuntimeException e) {
+                    result.setErrorResult(e);
+                }
+            });
+            result.onTimeout(() -> {
+                task.cancel(true);
+                result.setErrorResult(new SiteMapUnavailableException("Request timed out, please try again later"));
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Rejected read request, all {} read threads are busy and queue is full", executor.getMaximumPoolSize());
+            result.setErrorResult(new SiteMapUnavailableException("Too many requests, please try again later"));
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of reads that are currently being executed
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of reads waiting for a free thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Clean up when the application is shutting down
+     */
+    @PreDestroy
+    public void shutdown() {
+        LOG.info("Shutting down read executor...");
+        executor.shutdownNow();
+    }
+
+    /**
+     * A (blocking) read operation
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface ReadOperation<T> {
+        T execute() throws SiteMapException;
+    }
+
+}
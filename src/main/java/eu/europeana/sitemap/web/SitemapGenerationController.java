@@ -1,12 +1,16 @@
 package eu.europeana.sitemap.web;
 
 
+import eu.europeana.sitemap.SitemapApplication;
 import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.generate.GenerationStats;
+import eu.europeana.sitemap.index.RecordIndex;
 import eu.europeana.sitemap.service.GenerateSitemapService;
 import org.apache.commons.lang.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -23,6 +27,7 @@ import java.io.IOException;
  */
 @RestController
 @RequestMapping("/")
+@Profile("!" + SitemapApplication.READ_ONLY_PROFILE)
 public class SitemapGenerationController {
 
 
@@ -40,20 +45,55 @@ public class SitemapGenerationController {
     /**
      * Start the sitemap update process
      * @param wskey apikey that verify access to the update procedure
+     * @param tier optional, if provided only the files of this record tier are regenerated
      * @param response
      * @return The index file in plain text
      */
     @RequestMapping(value = "update", method = RequestMethod.GET)
     public String update(@RequestParam(value = "wskey", required = true) String wskey,
+                         @RequestParam(value = "tier", required = false) String tier,
                          HttpServletResponse response) throws SiteMapException {
         if (verifyKey(wskey)) {
             response.setStatus(HttpServletResponse.SC_ACCEPTED);
-            updateService.update();
+            if (tier == null) {
+                updateService.update();
+            } else {
+                updateService.updateTier(tier);
+            }
             return "Update finished";
         }
         return null;
     }
 
+    /**
+     * Do a dry run of the sitemap generation: all records are retrieved and rendered, but nothing is saved
+     * @param wskey apikey that verify access to the update procedure
+     * @param tier optional, if provided only this record tier is scanned
+     * @return timings and sizes of the generation in json format
+     */
+    @RequestMapping(value = "dryrun", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public GenerationStats dryRun(@RequestParam(value = "wskey", required = true) String wskey,
+                                  @RequestParam(value = "tier", required = false) String tier) throws SiteMapException {
+        if (verifyKey(wskey)) {
+            return updateService.dryRun(tier);
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild the local record index from scratch
+     * @param wskey apikey that verify access to the update procedure
+     * @return number of records, size and build time of the new index in json format
+     */
+    @RequestMapping(value = "index/rebuild", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public RecordIndex rebuildRecordIndex(@RequestParam(value = "wskey", required = true) String wskey)
+            throws SiteMapException {
+        if (verifyKey(wskey)) {
+            return updateService.rebuildRecordIndex();
+        }
+        return null;
+    }
+
     /**
      * For now we do a very simple verification and check if the key matches the one set in the sitemap.properties file
      * If there is no admin key set, we do not allow any updates
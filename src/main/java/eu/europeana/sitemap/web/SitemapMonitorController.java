@@ -0,0 +1,105 @@
+package eu.europeana.sitemap.web;
+
+import eu.europeana.sitemap.exceptions.SiteMapException;
+import eu.europeana.sitemap.monitor.CrawlerHeatmap;
+import eu.europeana.sitemap.monitor.FlightRecorder;
+import eu.europeana.sitemap.monitor.RunHistory;
+import eu.europeana.sitemap.monitor.RunTrend;
+import eu.europeana.sitemap.service.ReadSitemapService;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * Rest controller for monitoring (run reports, flight recordings and crawler requests). This is available in both generation and
+ * read-only mode
+ */
+@RestController
+@RequestMapping("/")
+public class SitemapMonitorController {
+
+    private final FlightRecorder flightRecorder;
+    private final RunHistory runHistory;
+    private final CrawlerHeatmap heatmap;
+    private final ReadSitemapService readService;
+
+    @Value("${admin.apikey}")
+    private String adminKey;
+
+    public SitemapMonitorController(FlightRecorder flightRecorder, RunHistory runHistory, CrawlerHeatmap heatmap,
+                                    ReadSitemapService readService) {
+        this.flightRecorder = flightRecorder;
+        this.runHistory = runHistory;
+        this.heatmap = heatmap;
+        this.readService = readService;
+    }
+
+    /**
+     * Return the reports of the last update runs, with moving averages of their duration and throughput and a list of
+     * runs that were much slower than the runs before them
+     * @param wskey apikey that verify access to the update procedure
+     * @param limit maximum number of runs
+     * @return run reports and trend in json format
+     */
+    @RequestMapping(value = "runs", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public RunTrend runs(@RequestParam(value = "wskey", required = true) String wskey,
+                         @RequestParam(value = "limit", required = false, defaultValue = "20") int limit)
+            throws SiteMapException {
+        if (verifyKey(wskey)) {
+            return runHistory.getTrend(limit);
+        }
+        return null;
+    }
+
+    /**
+     * Start a Java Flight Recorder recording of the application for a number of minutes. When finished the recording is
+     * saved in storage
+     * @param wskey apikey that verify access to the update procedure
+     * @param minutes duration of the recording
+     * @return name under which the recording will be saved
+     */
+    @RequestMapping(value = "jfr/record", method = RequestMethod.GET, produces = MediaType.TEXT_PLAIN_VALUE)
+    public String recordFlight(@RequestParam(value = "wskey", required = true) String wskey,
+                               @RequestParam(value = "minutes", required = false, defaultValue = "5") long minutes)
+            throws SiteMapException {
+        if (verifyKey(wskey)) {
+            return flightRecorder.record(minutes);
+        }
+        return null;
+    }
+
+    /**
+     * Return how often the sitemap files of the active deployment were requested (by this instance) since they were
+     * generated, per crawler family, with the most requested files and the files that were never requested
+     * @param wskey apikey that verify access to the update procedure
+     * @param limit maximum number of most requested and never requested files listed
+     * @return request counts in json format
+     */
+    @RequestMapping(value = "heatmap", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> heatmap(@RequestParam(value = "wskey", required = true) String wskey,
+                                       @RequestParam(value = "limit", required = false, defaultValue = "100") int limit)
+            throws SiteMapException {
+        if (verifyKey(wskey)) {
+            return heatmap.getReport(readService.getActiveDeployment(), readService.getActiveManifest(), limit);
+        }
+        return null;
+    }
+
+    /**
+     * Same verification as for updates: the key should match the one set in the sitemap.properties file
+     */
+    private boolean verifyKey(String wskey) {
+        if (StringUtils.isEmpty(adminKey)) {
+            throw new SecurityException("No updates are allowed");
+        } else if (!adminKey.equals(wskey)) {
+            throw new SecurityException("Invalid key");
+        }
+        return true;
+    }
+}
@@ -0,0 +1,254 @@
+package eu.europeana.sitemap.web;
+
+import eu.europeana.sitemap.Naming;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protects the sitemap read endpoints against aggressive clients. Each endpoint can have its own per-client rate limit
+ * (requests exceeding it get a 429 with a Retry-After header), and when the total number of requests in progress
+ * exceeds a threshold new requests are refused with a 503 (load shedding).
+ */
+public class SitemapRateLimitFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LogManager.getLogger(SitemapRateLimitFilter.class);
+
+    public static final String ENDPOINT_INDEX = "index";
+    public static final String ENDPOINT_FILE = "file";
+    public static final String ENDPOINT_DELTA = "delta";
+    public static final String ENDPOINT_LIST = "list";
+
+    public static final String CLIENT_KEY_IP = "ip";
+    public static final String CLIENT_KEY_USER_AGENT = "useragent";
+
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String COMPATIBLE = "compatible;";
+
+    private static final Map<String, String> ENDPOINTS = new HashMap<>();
+    static {
+        ENDPOINTS.put("/index", ENDPOINT_INDEX);
+        ENDPOINTS.put("/" + Naming.SITEMAP_INDEX_FILE, ENDPOINT_INDEX);
+        ENDPOINTS.put("/" + Naming.SITEMAP_FILE, ENDPOINT_FILE);
+        ENDPOINTS.put("/" + Naming.SITEMAP_DELTA_FILE, ENDPOINT_DELTA);
+        ENDPOINTS.put("/list", ENDPOINT_LIST);
+        ENDPOINTS.put("/files", ENDPOINT_LIST);
+        ENDPOINTS.put("/file", ENDPOINT_LIST);
+    }
+
+    private final Map<String, TokenBucketLimiter> limiters;
+    private final int maxInFlight;
+    private final String clientKeyType;
+    private final String forwardedHeader;
+    private final int trustedProxies;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final LongAdder nrShed = new LongAdder();
+
+    /**
+     * Create a new filter
+     * @param limiters rate limiter per endpoint, endpoints without limiter are not rate limited
+     * @param maxInFlight maximum number of requests in progress, 0 or less means no maximum
+     * @param clientKeyType how clients are identified: ip or useragent (family)
+     * @param forwardedHeader optional header containing the original client ip (e.g. X-Forwarded-For)
+     * @param trustedProxies number of proxies in front of the application that append to the forwarded header. The
+     *                       forwarded header is only used if this is at least 1
+     */
+    public SitemapRateLimitFilter(Map<String, TokenBucketLimiter> limiters, int maxInFlight, String clientKeyType,
+                                  String forwardedHeader, int trustedProxies) {
+        this.limiters = new HashMap<>(limiters);
+        this.maxInFlight = maxInFlight;
+        this.clientKeyType = clientKeyType;
+        if (forwardedHeader != null && trustedProxies <= 0) {
+            LOG.warn("Ignoring forwarded header {} because no trusted proxies are configured", forwardedHeader);
+            this.forwardedHeader = null;
+        } else {
+            this.forwardedHeader = forwardedHeader;
+        }
+        this.trustedProxies = trustedProxies;
+    }
+
+    /**
+     * @return url patterns of all endpoints that this filter should handle
+     */
+    public static Collection<String> getUrlPatterns() {
+        return Collections.unmodifiableSet(ENDPOINTS.keySet());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String endpoint = ENDPOINTS.get(request.getRequestURI().substring(request.getContextPath().length()));
+        TokenBucketLimiter limiter = (endpoint == null ? null : limiters.get(endpoint));
+        if (limiter != null) {
+            long waitNanos = limiter.tryAcquire(getClientKey(request));
+            if (waitNanos > 0) {
+                reject(response, HttpStatus.TOO_MANY_REQUESTS, waitNanos);
+                return;
+            }
+        }
+
+        int current = inFlight.incrementAndGet();
+        if (maxInFlight > 0 && current > maxInFlight) {
+            inFlight.decrementAndGet();
+            nrShed.increment();
+            reject(response, HttpStatus.SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toNanos(1));
+            return;
+        }
+        peakInFlight.accumulateAndGet(current, Math::max);
+
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // most sitemap requests are handled asynchronously, they are done when the async request completes
+                request.getAsyncContext().addListener(new InFlightListener());
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private static void reject(HttpServletResponse response, HttpStatus status, long retryAfterNanos) throws IOException {
+        long retryAfterSeconds = Math.max(1, (retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setStatus(status.value());
+        response.setHeader(RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        response.setContentType("text/plain");
+        response.getWriter().write(status.getReasonPhrase());
+    }
+
+    /**
+     * @return key identifying the client, either its ip address or the family of its user agent
+     */
+    private String getClientKey(HttpServletRequest request) {
+        if (CLIENT_KEY_USER_AGENT.equalsIgnoreCase(clientKeyType)) {
+            return getUserAgentFamily(request.getHeader("User-Agent"));
+        }
+        if (forwardedHeader != null) {
+            String forwarded = request.getHeader(forwardedHeader);
+            if (StringUtils.hasText(forwarded)) {
+                return getForwardedClient(forwarded, trustedProxies);
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Clients can put anything in a forwarded header, so we can't trust its leftmost entries. Each proxy appends the
+     * address it received the request from, so the entry added by our outermost proxy is the rightmost one we can
+     * trust.
+     * @param forwarded value of the forwarded header, a comma-separated list of addresses
+     * @param trustedProxies number of proxies in front of the application that append to the header
+     * @return the address of the client as seen by the outermost trusted proxy
+     */
+    static String getForwardedClient(String forwarded, int trustedProxies) {
+        String[] hops = forwarded.split(",");
+        return hops[Math.max(0, hops.length - trustedProxies)].trim();
+    }
+
+    /**
+     * Crawlers usually identify themselves as "Mozilla/5.0 (compatible; Name/version; ...)", other clients as
+     * "Name/version ...". We use only the name, so all versions of a client share one limit.
+     * @param userAgent user agent header value
+     * @return lower case name of the user agent
+     */
+    static String getUserAgentFamily(String userAgent) {
+        if (userAgent == null) {
+            return "";
+        }
+        String value = userAgent.toLowerCase(Locale.ENGLISH);
+        int compatible = value.indexOf(COMPATIBLE);
+        if (compatible >= 0) {
+            value = value.substring(compatible + COMPATIBLE.length()).trim();
+        }
+        int end = 0;
+        while (end < value.length() && value.charAt(end) != '/' && value.charAt(end) != ';'
+                && value.charAt(end) != ' ' && value.charAt(end) != ')') {
+            end++;
+        }
+        return value.substring(0, end);
+    }
+
+    public Collection<TokenBucketLimiter> getLimiters() {
+        return Collections.unmodifiableCollection(limiters.values());
+    }
+
+    /**
+     * @return number of requests currently in progress
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return highest number of requests in progress at the same time since startup
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * @return total number of requests refused because too many requests were in progress
+     */
+    public long getNrShed() {
+        return nrShed.sum();
+    }
+
+    /**
+     * Decreases the number of requests in progress when an async request is done (completed, timed out or failed)
+     */
+    private final class InFlightListener implements AsyncListener {
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            LOG.debug("Async request failed", event.getThrowable());
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // nothing to do
+        }
+
+        private void finish() {
+            if (done.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -17,24 +17,50 @@
 
 package eu.europeana.sitemap.web;
 
+import eu.europeana.domain.StorageObject;
+import eu.europeana.sitemap.Naming;
+import eu.europeana.sitemap.exceptions.SiteMapBadRequestException;
 import eu.europeana.sitemap.exceptions.SiteMapNotFoundException;
+import eu.europeana.sitemap.monitor.CrawlerHeatmap;
+import eu.europeana.sitemap.service.FileListing;
 import eu.europeana.sitemap.service.ReadSitemapService;
+import eu.europeana.sitemap.service.SitemapFileInfo;
+import eu.europeana.sitemap.storage.CachedFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Handles requests for sitemap files from external parties
  * The controller checks which deployment is currently active (blue or green) and retrieves the correct file.
  * Note that there is only a blue/green version for sitemap files and not for the sitemap index file.
+ * All files are read asynchronously (see {@link AsyncReadExecutor}) so Tomcat threads are not blocked by storage calls.
+ * Requests for sitemap files are counted per crawler family (see {@link CrawlerHeatmap}).
  * @author luthien, created on 07/12/2015.
  * @author Patrick Ehlert, major refactoring on 21/08/2017
  */
@@ -42,65 +68,249 @@ import java.io.IOException;
 @RequestMapping("/")
 public class SitemapReadController {
 
-    public static final String INDEX_FILE = "europeana-sitemap-index-hashed.xml";
     public static final String ACTIVE_SITEMAP_FILE = "europeana-sitemap-active-xml-file.txt";
 
     private static final Logger LOG = LogManager.getLogger(SitemapReadController.class);
 
+    private static final String BYTES = "bytes";
+    private static final MediaType XML_UTF8 = new MediaType("text", "xml", StandardCharsets.UTF_8);
+    private static final MediaType TEXT_UTF8 = new MediaType("text", "plain", StandardCharsets.UTF_8);
+    private static final String NEXT_MARKER_HEADER = "X-Next-Marker";
+
     private final ReadSitemapService service;
+    private final AsyncReadExecutor readExecutor;
+    private final CrawlerHeatmap heatmap;
+
+    @Value("${read.unknown.file.redirect:false}")
+    private boolean redirectUnknownFiles;
+    @Value("${read.list.max.limit:10000}")
+    private int maxListLimit;
 
-    public SitemapReadController(ReadSitemapService service) {
+    public SitemapReadController(ReadSitemapService service, AsyncReadExecutor readExecutor, CrawlerHeatmap heatmap) {
         this.service = service;
+        this.readExecutor = readExecutor;
+        this.heatmap = heatmap;
     }
 
     /**
      * Return the sitemap index file
      *
-     * @throws SiteMapNotFoundException if the index file wasn't found
-     * @return contents of sitemap index file
+     * @param variant  name of a portal variant (optional, default is the main sitemap index)
+     * @return contents of sitemap index file (or a SiteMapNotFoundException if the index file wasn't found)
      */
     @RequestMapping(value = {"index", "europeana-sitemap-index-hashed.xml"}, method = RequestMethod.GET)
-    public String handleSitemapIndex() throws SiteMapNotFoundException {
-        return service.getFileContent(INDEX_FILE);
+    public DeferredResult<String> handleSitemapIndex(@RequestParam(value = "variant", required = false) String variant) {
+        return readExecutor.submit(() -> service.getIndexFileContent(variant));
     }
 
     /**
      * Return a sitemap file. Note that the to and from are fixed values, a list of all files with to/from values
-     * can be found in the sitemap index
+     * can be found in the sitemap index. Requests for files that don't exist (anymore) are answered with a 404, or
+     * redirected to the sitemap index if this is configured.
+     * A single byte range can be requested with a Range header (optionally with If-Range), this is served from the
+     * cached file. Multiple ranges are not supported, in that case the whole file is returned.
      *
+     * @param set      name of the file set (optional, default is the record set)
      * @param from     start index
      * @param to       end index
-     * @throws SiteMapNotFoundException if the sitemap file wasn't found
-     * @return contents of sitemap file
+     * @param range    optional requested byte range
+     * @param ifRange  optional ETag, the range is only returned if the file still has this ETag
+     * @param userAgent optional user agent, used to count requests per crawler family
+     * @return contents of sitemap file (or a SiteMapNotFoundException if the sitemap file wasn't found)
      */
     @RequestMapping(value = "europeana-sitemap-hashed.xml", method = RequestMethod.GET)
-    public String handleSitemapFile(@RequestParam(value = "from", required = true) String from,
-                                    @RequestParam(value = "to", required = true) String to) throws SiteMapNotFoundException {
-        String fileName = getActiveDeployment() + "?from=" + from + "&to=" + to;
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Retrieving sitemap file {} ", fileName);
+    public DeferredResult<ResponseEntity<?>> handleSitemapFile(@RequestParam(value = "set", required = false) String set,
+                                                               @RequestParam(value = "from", required = true) String from,
+                                                               @RequestParam(value = "to", required = true) String to,
+                                                               @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                                               @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                                               @RequestHeader(value = HttpHeaders.USER_AGENT, required = false) String userAgent) {
+        return readExecutor.submit(() -> {
+            try {
+                long requestStart = System.currentTimeMillis();
+                String deployment = (heatmap.isEnabled() ? service.getActiveDeployment() : null);
+                CachedFile file = service.getSitemapFile(set, from, to);
+                ResponseEntity<?> response = (range == null ? getSitemapFileFull(file)
+                        : getSitemapFileRange(file, range, ifRange));
+                long bytes = (response.getBody() instanceof byte[] ? ((byte[]) response.getBody()).length : 0);
+                if (deployment != null) {
+                    // the file exists, so set, from and to are valid
+                    heatmap.record(deployment, requestStart, Naming.getPublicSitemapFileName(set, Long.parseLong(from),
+                            Long.parseLong(to)), SitemapRateLimitFilter.getUserAgentFamily(userAgent), bytes);
+                }
+                return response;
+            } catch (SiteMapNotFoundException e) {
+                if (redirectUnknownFiles) {
+                    return ResponseEntity.status(HttpStatus.MOVED_PERMANENTLY).location(URI.create(Naming.SITEMAP_INDEX_FILE)).build();
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * @return 200 response with the whole file and its ETag and last modified date (if known)
+     */
+    private static ResponseEntity<?> getSitemapFileFull(CachedFile file) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                .contentType(XML_UTF8)
+                .eTag('"' + file.getETag() + '"');
+        if (file.getLastModified() != null) {
+            response.lastModified(file.getLastModified().getTime());
         }
-        return service.getFileContent(fileName);
+        return response.body(file.getContent());
+    }
+
+    private static ResponseEntity<?> getSitemapFileRange(CachedFile file, String range, String ifRange) {
+        byte[] content = file.getContent();
+        String eTag = '"' + file.getETag() + '"';
+        // we only support ETags here, a date means the client doesn't know the ETag so we return the whole file
+        if (ifRange != null && !eTag.equals(ifRange.trim())) {
+            return getSitemapFileFull(file);
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            // a range header we don't understand is ignored
+            LOG.debug("Invalid range {}", range, e);
+            ranges = Collections.emptyList();
+        }
+        if (ranges.size() != 1) {
+            return getSitemapFileFull(file);
+        }
+        long start;
+        long end;
+        try {
+            start = ranges.get(0).getRangeStart(content.length);
+            end = ranges.get(0).getRangeEnd(content.length);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid range {}", range, e);
+            return getRangeNotSatisfiable(content.length);
+        }
+        if (start >= content.length || start > end) {
+            return getRangeNotSatisfiable(content.length);
+        }
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                .header(HttpHeaders.CONTENT_RANGE, BYTES + ' ' + start + '-' + end + '/' + content.length)
+                .contentType(XML_UTF8)
+                .eTag(eTag)
+                .body(Arrays.copyOfRange(content, (int) start, (int) end + 1));
+    }
+
+    private static ResponseEntity<?> getRangeNotSatisfiable(long size) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, BYTES + " */" + size).build();
     }
 
     /**
-     * The active sitemap file stores either the value 'blue' or 'green' so we know which deployment of the files we
-     * need to retrieve
-     * @return
-     * @throws SiteMapNotFoundException if the active deployment file was not found
+     * Return only the size, ETag and last modified date of a sitemap file. These are the same as for a GET request, so
+     * if the file isn't cached yet it's read from storage (and cached).
+     *
+     * @param set      name of the file set (optional, default is the record set)
+     * @param from     start index
+     * @param to       end index
+     * @return empty response with the file metadata in the headers
      */
-    private String getActiveDeployment() throws SiteMapNotFoundException {
-        return service.getFileContent(ACTIVE_SITEMAP_FILE);
+    @RequestMapping(value = "europeana-sitemap-hashed.xml", method = RequestMethod.HEAD)
+    public DeferredResult<ResponseEntity<?>> handleSitemapFileHead(@RequestParam(value = "set", required = false) String set,
+                                                                   @RequestParam(value = "from", required = true) String from,
+                                                                   @RequestParam(value = "to", required = true) String to) {
+        return readExecutor.submit(() -> {
+            try {
+                SitemapFileInfo info = service.getSitemapFileInfo(set, from, to);
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok().header(HttpHeaders.ACCEPT_RANGES, BYTES)
+                        .contentType(XML_UTF8);
+                if (info.getSize() >= 0) {
+                    response.contentLength(info.getSize());
+                }
+                if (info.getETag() != null) {
+                    response.eTag('"' + info.getETag() + '"');
+                }
+                if (info.getLastModified() != null) {
+                    response.lastModified(info.getLastModified().getTime());
+                }
+                return response.build();
+            } catch (SiteMapNotFoundException e) {
+                if (redirectUnknownFiles) {
+                    return ResponseEntity.status(HttpStatus.MOVED_PERMANENTLY).location(URI.create(Naming.SITEMAP_INDEX_FILE)).build();
+                }
+                throw e;
+            }
+        });
     }
 
     /**
-     * Lists all files stored in the used bucket/container (only for debugging purposes)
-     * @param response
-     * @return
+     * Return the delta sitemap, listing all records that were added or changed in the last sitemap generation
+     *
+     * @return contents of the delta sitemap file (or a SiteMapNotFoundException if there is no delta sitemap)
+     */
+    @RequestMapping(value = Naming.SITEMAP_DELTA_FILE, method = RequestMethod.GET)
+    public DeferredResult<String> handleSitemapDelta() {
+        return readExecutor.submit(() -> service.getFileContent(Naming.SITEMAP_DELTA_FILE));
+    }
+
+    /**
+     * Lists the files stored in the used bucket/container (only for debugging purposes). Files are listed in pages of
+     * at most limit files, ordered by name. If there are more files the response contains a header with the marker for
+     * the next page.
+     * @param prefix optional, only list files whose name starts with this prefix
+     * @param deployment optional, only list files of this deployment (blue or green). If a prefix is provided as well
+     *                   it should match files of this deployment
+     * @param marker optional, list the files after this marker (the name of the last file of the previous page)
+     * @param limit maximum number of files to list
+     * @param sort optional, 'date' to sort the files on the page by last modified date
+     * @return one line per file with its last modified date and name
      */
     @RequestMapping(value = {"list", "files"}, method = RequestMethod.GET, produces = MediaType.TEXT_PLAIN_VALUE)
-    public String files(HttpServletResponse response) {
-        return service.getFiles();
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> files(
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "deployment", required = false) String deployment,
+            @RequestParam(value = "marker", required = false) String marker,
+            @RequestParam(value = "limit", required = false, defaultValue = "1000") int limit,
+            @RequestParam(value = "sort", required = false) String sort) throws SiteMapBadRequestException {
+        if (limit <= 0 || limit > maxListLimit) {
+            throw new SiteMapBadRequestException("Limit should be between 1 and " + maxListLimit);
+        }
+        String namePrefix = prefix;
+        if (deployment != null) {
+            if (!"blue".equals(deployment) && !"green".equals(deployment)) {
+                throw new SiteMapBadRequestException("Deployment should be blue or green");
+            }
+            // with both a prefix and a deployment we list the files matching both
+            String deploymentPrefix = Naming.SITEMAP_FILE.replace(".xml", "-" + deployment + ".xml");
+            if (prefix == null || deploymentPrefix.startsWith(prefix)) {
+                namePrefix = deploymentPrefix;
+            } else if (!prefix.startsWith(deploymentPrefix)) {
+                throw new SiteMapBadRequestException("Prefix " + prefix + " doesn't match files of deployment "
+                        + deployment);
+            }
+        }
+        String listPrefix = namePrefix;
+        return readExecutor.submit(() -> {
+            FileListing listing = service.getFiles(listPrefix, marker, limit, "date".equals(sort));
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(TEXT_UTF8);
+            if (listing.getNextMarker() != null) {
+                response.header(NEXT_MARKER_HEADER, listing.getNextMarker());
+            }
+            return response.body(out -> writeListing(listing, out));
+        });
+    }
+
+    private static void writeListing(FileListing listing, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        for (StorageObject file : listing.getFiles()) {
+            writer.write(String.valueOf(file.getLastModified()));
+            writer.write('\t');
+            writer.write(file.getName());
+            writer.write('\n');
+        }
+        if (listing.getNextMarker() != null) {
+            writer.write("# more files available, use marker="
+                    + URLEncoder.encode(listing.getNextMarker(), StandardCharsets.UTF_8.name()) + "\n");
+        }
+        writer.flush();
     }
 
     /**
@@ -110,19 +320,21 @@ public class SitemapReadController {
      * @return
      */
     @RequestMapping(value = "file", method = RequestMethod.GET, produces = {MediaType.TEXT_PLAIN_VALUE, MediaType.TEXT_XML_VALUE})
-    public String file(@RequestParam(value = "name", required = true, defaultValue = "") String fileName,
-                       HttpServletResponse response) throws SiteMapNotFoundException {
+    public DeferredResult<String> file(@RequestParam(value = "name", required = true, defaultValue = "") String fileName,
+                                       HttpServletResponse response) {
         if (fileName == null || fileName.isEmpty()) {
             throw new IllegalArgumentException("Please provide a file name");
         }
-        String contents = service.getFileContent(fileName);
-        // TODO setting response content type to xml doesn't work. Response always has the (first-listed) produces = type)
-        if (contents.startsWith("<?xml")) {
-            response.setContentType("text/xml");
-        } else {
-            response.setContentType("text/plain");
-        }
-        return contents;
+        return readExecutor.submit(() -> {
+            String contents = service.getFileContent(fileName);
+            // TODO setting response content type to xml doesn't work. Response always has the (first-listed) produces = type)
+            if (contents.startsWith("<?xml")) {
+                response.setContentType("text/xml");
+            } else {
+                response.setContentType("text/plain");
+            }
+            return contents;
+        });
     }
 
 
@@ -0,0 +1,100 @@
+package eu.europeana.sitemap.web;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free rate limiter with a token bucket per client. Clients are mapped to a fixed number of stripes by the hash
+ * of their key, so memory use is constant no matter how many clients there are (clients that end up in the same stripe
+ * share a bucket).
+ *
+ * Each bucket is implemented as a generic cell rate algorithm: we only store the theoretical arrival time of the next
+ * request, which is updated with a single compare-and-set. This behaves exactly like a token bucket that is refilled
+ * with the configured rate and holds at most the configured burst.
+ */
+public class TokenBucketLimiter {
+
+    private final String name;
+    private final boolean enabled;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLongArray arrivalTimes;
+    private final int mask;
+
+    private final LongAdder nrAllowed = new LongAdder();
+    private final LongAdder nrLimited = new LongAdder();
+
+    /**
+     * Create a new limiter
+     * @param name name of the limiter (used in metrics)
+     * @param ratePerSecond number of requests per second allowed per client, 0 or less means unlimited
+     * @param burst maximum number of requests a client can do at once
+     * @param stripes number of buckets (rounded up to a power of 2)
+     */
+    public TokenBucketLimiter(String name, double ratePerSecond, int burst, int stripes) {
+        this.name = name;
+        this.enabled = ratePerSecond > 0;
+        this.intervalNanos = (enabled ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0);
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.arrivalTimes = new AtomicLongArray(size);
+        this.mask = size - 1;
+        long now = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            arrivalTimes.set(i, now);
+        }
+    }
+
+    /**
+     * Try to take a token from the bucket of a client
+     * @param clientKey key identifying the client
+     * @return 0 if the request is allowed, otherwise the number of nanoseconds after which the client can try again
+     */
+    public long tryAcquire(String clientKey) {
+        if (!enabled) {
+            return 0;
+        }
+        int stripe = getStripe(clientKey);
+        while (true) {
+            long now = System.nanoTime();
+            long previous = arrivalTimes.get(stripe);
+            long arrival = (previous - now < 0 ? now : previous);
+            long excess = arrival - now - toleranceNanos;
+            if (excess > 0) {
+                nrLimited.increment();
+                return excess;
+            }
+            if (arrivalTimes.compareAndSet(stripe, previous, arrival + intervalNanos)) {
+                nrAllowed.increment();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return number of the bucket used for the client
+     */
+    int getStripe(String clientKey) {
+        int hash = clientKey.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return total number of allowed requests
+     */
+    public long getNrAllowed() {
+        return nrAllowed.sum();
+    }
+
+    /**
+     * @return total number of requests that were refused because the client exceeded the limit
+     */
+    public long getNrLimited() {
+        return nrLimited.sum();
+    }
+}
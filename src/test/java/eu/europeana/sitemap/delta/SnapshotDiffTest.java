@@ -0,0 +1,84 @@
+package eu.europeana.sitemap.delta;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests comparing two snapshots
+ */
+public class SnapshotDiffTest {
+
+    /**
+     * Check that added, removed and modified records are all reported
+     */
+    @Test
+    public void testDiff() throws IOException {
+        List<String> result = diff("/1\t100\n/2\t100\n/4\t100\n/5\t\n",
+                "/2\t101\n/3\t100\n/4\t100\n/5\t-1\n/6\t\n");
+        assertEquals(Arrays.asList("removed /1", "modified /2 101", "added /3 100", "modified /5 -1",
+                "added /6 " + SnapshotWriter.UNKNOWN_DAY), result);
+    }
+
+    /**
+     * Check that nothing is reported if both snapshots are the same
+     */
+    @Test
+    public void testNoDifferences() throws IOException {
+        String snapshot = "/1\t100\n/2\t\n";
+        assertEquals(0, diff(snapshot, snapshot).size());
+    }
+
+    /**
+     * Check that comparing with an empty snapshot reports all records
+     */
+    @Test
+    public void testEmptySnapshot() throws IOException {
+        assertEquals(Arrays.asList("added /1 100", "added /2 100"), diff("", "/1\t100\n/2\t100\n"));
+        assertEquals(Arrays.asList("removed /1", "removed /2"), diff("/1\t100\n/2\t100\n", ""));
+    }
+
+    /**
+     * Check that keys containing characters that sort before the separator are matched correctly
+     */
+    @Test
+    public void testKeyOrder() throws IOException {
+        String snapshot = "/a\t1\n/a\u0001b\t1\n/a b\t1\n";
+        assertEquals(0, diff(snapshot, snapshot).size());
+        assertEquals(Arrays.asList("removed /a\u0001b"), diff(snapshot, "/a\t1\n/a b\t1\n"));
+    }
+
+    private static List<String> diff(String oldSnapshot, String newSnapshot) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (SnapshotReader oldReader = reader(oldSnapshot); SnapshotReader newReader = reader(newSnapshot)) {
+            SnapshotDiff.diff(oldReader, newReader, new SnapshotDiff.Listener() {
+                @Override
+                public void added(String key, long lastModifiedDay) {
+                    result.add("added " + key + " " + lastModifiedDay);
+                }
+
+                @Override
+                public void removed(String key) {
+                    result.add("removed " + key);
+                }
+
+                @Override
+                public void modified(String key, long lastModifiedDay) {
+                    result.add("modified " + key + " " + lastModifiedDay);
+                }
+            });
+        }
+        return result;
+    }
+
+    private static SnapshotReader reader(String snapshot) {
+        return new SnapshotReader(new ByteArrayInputStream(snapshot.getBytes(StandardCharsets.UTF_8)));
+    }
+}
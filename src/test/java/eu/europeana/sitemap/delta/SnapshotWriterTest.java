@@ -0,0 +1,111 @@
+package eu.europeana.sitemap.delta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the external sort of the SnapshotWriter and reading the result with the SnapshotReader
+ */
+public class SnapshotWriterTest {
+
+    private File workDir;
+
+    @Before
+    public void setup() throws IOException {
+        workDir = Files.createTempDirectory("snapshot-test").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = workDir.listFiles();
+        assertEquals("Temporary files should be removed", 0, files == null ? 0 : files.length);
+        assertTrue(workDir.delete());
+    }
+
+    /**
+     * Check that records added in random order are sorted by key across multiple chunks
+     */
+    @Test
+    public void testSortMultipleChunks() throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("/" + (i * 7919 % 1000) + "/item");
+        }
+        try (SnapshotWriter writer = new SnapshotWriter(workDir, 64)) {
+            for (String key : keys) {
+                writer.add(key, key.length());
+            }
+            List<String> result = readKeys(writer.finish());
+            keys.sort(SnapshotWriter::compareKeys);
+            assertEquals(keys, result);
+            assertEquals(1000, writer.getNrRecords());
+        }
+    }
+
+    /**
+     * Check that keys are sorted on key only, also if a key contains characters that sort before the separator
+     */
+    @Test
+    public void testSortOnKeyOnly() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(workDir, 2)) {
+            writer.add("/a\u0001b", 2);
+            writer.add("/a", 1);
+            writer.add("/a b", 3);
+            assertEquals(Arrays.asList("/a", "/a\u0001b", "/a b"), readKeys(writer.finish()));
+        }
+    }
+
+    /**
+     * Check that an unknown last modified date is kept and doesn't collide with a real date
+     */
+    @Test
+    public void testUnknownDay() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(workDir, 10)) {
+            writer.add("/1", SnapshotWriter.UNKNOWN_DAY);
+            writer.add("/2", -1);
+            try (SnapshotReader reader = open(writer.finish())) {
+                assertTrue(reader.next());
+                assertEquals(SnapshotWriter.UNKNOWN_DAY, reader.getLastModifiedDay());
+                assertTrue(reader.next());
+                assertEquals(-1, reader.getLastModifiedDay());
+            }
+        }
+    }
+
+    /**
+     * Check that an empty snapshot can be written and read
+     */
+    @Test
+    public void testEmpty() throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(workDir, 10)) {
+            assertEquals(0, readKeys(writer.finish()).size());
+        }
+    }
+
+    private static SnapshotReader open(File snapshot) throws IOException {
+        return new SnapshotReader(new GZIPInputStream(new FileInputStream(snapshot)));
+    }
+
+    private static List<String> readKeys(File snapshot) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (SnapshotReader reader = open(snapshot)) {
+            while (reader.next()) {
+                result.add(reader.getKey());
+            }
+        }
+        return result;
+    }
+}
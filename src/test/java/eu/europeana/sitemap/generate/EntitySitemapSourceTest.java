@@ -0,0 +1,89 @@
+package eu.europeana.sitemap.generate;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests mapping entities to sitemap entries
+ */
+public class EntitySitemapSourceTest {
+
+    private static final String ENTITY_URL_PATH = "/portal/explore";
+
+    private final EntitySitemapSource source = new EntitySitemapSource(null, "db", "entity", ENTITY_URL_PATH,
+            null, 100);
+
+    /**
+     * Check that labels are converted to lowercase and all other characters than letters and digits are replaced
+     */
+    @Test
+    public void testSlug() {
+        assertEquals("leonardo-da-vinci", EntitySitemapSource.toSlug("Leonardo da Vinci"));
+        assertEquals("art-nouveau", EntitySitemapSource.toSlug("(Art) Nouveau!"));
+        assertEquals("\u00e9douard-manet-1832", EntitySitemapSource.toSlug("\u00c9douard Manet, 1832"));
+    }
+
+    /**
+     * Check that the slug doesn't depend on the default locale (in Turkish an uppercase I becomes a dotless i)
+     */
+    @Test
+    public void testSlugLocale() {
+        Locale defaultLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr"));
+            assertEquals("impressionism", EntitySitemapSource.toSlug("IMPRESSIONISM"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    /**
+     * Check that agents and concepts are mapped to people and topics urls
+     */
+    @Test
+    public void testToEntry() {
+        Date modified = new Date(1_500_000_000_000L);
+        SitemapEntry agent = source.toEntry(entity("http://data.europeana.eu/agent/base/146741", "Leonardo da Vinci",
+                modified));
+        assertEquals("/people/146741-leonardo-da-vinci", agent.getKey());
+        assertEquals(ENTITY_URL_PATH + "/people/146741-leonardo-da-vinci.html", agent.getUrlPath());
+        assertEquals(modified, agent.getLastModified());
+
+        BasicDBList labels = new BasicDBList();
+        labels.add("Photography");
+        labels.add("Photographs");
+        SitemapEntry concept = source.toEntry(entity("http://data.europeana.eu/concept/base/48", labels, null));
+        assertEquals("/topics/48-photography", concept.getKey());
+        assertNull(concept.getLastModified());
+    }
+
+    /**
+     * Check that entities without english label or with an unexpected uri are skipped
+     */
+    @Test
+    public void testSkipped() {
+        assertNull(source.toEntry(entity("http://data.europeana.eu/agent/base/146741", null, null)));
+        assertNull(source.toEntry(entity("http://data.europeana.eu/agent/146741", "Leonardo da Vinci", null)));
+    }
+
+    private static DBObject entity(String uri, Object englishLabel, Date modified) {
+        BasicDBObject prefLabel = new BasicDBObject();
+        if (englishLabel != null) {
+            prefLabel.put("en", englishLabel);
+        }
+        BasicDBObject entity = new BasicDBObject("codeUri", uri)
+                .append("representation", new BasicDBObject("prefLabel", prefLabel));
+        if (modified != null) {
+            entity.append("modified", modified);
+        }
+        return entity;
+    }
+}
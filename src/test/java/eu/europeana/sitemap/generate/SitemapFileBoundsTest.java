@@ -0,0 +1,60 @@
+package eu.europeana.sitemap.generate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests finding the sitemap file that contains an entry
+ */
+public class SitemapFileBoundsTest {
+
+    private static SitemapFileBounds createBounds() {
+        StringBuilder text = new StringBuilder();
+        SitemapFileBounds.appendFile(text, 0, 45000, "/10/abc");
+        SitemapFileBounds.appendFile(text, 45000, 90000, "/20/def");
+        SitemapFileBounds.appendFile(text, 90000, 120000, "/30/ghi");
+        return SitemapFileBounds.parse(text.toString());
+    }
+
+    /**
+     * Check that the textual representation is parsed correctly
+     */
+    @Test
+    public void testParse() {
+        SitemapFileBounds bounds = createBounds();
+        assertEquals(3, bounds.size());
+        assertEquals(45000, bounds.getFrom(1));
+        assertEquals(90000, bounds.getTo(1));
+        try {
+            SitemapFileBounds.parse("0\t45000\n");
+            throw new AssertionError("Expected NumberFormatException");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Check that a file contains all keys from its own first key up to the first key of the next file
+     */
+    @Test
+    public void testFindFile() {
+        SitemapFileBounds bounds = createBounds();
+        assertEquals(0, bounds.findFile("/10/abc"));
+        assertEquals(0, bounds.findFile("/10/xyz"));
+        assertEquals(1, bounds.findFile("/20/def"));
+        assertEquals(1, bounds.findFile("/29/zzz"));
+        assertEquals(2, bounds.findFile("/30/ghi"));
+        assertEquals(2, bounds.findFile("/99/zzz"));
+    }
+
+    /**
+     * Check that keys before the first file belong to the first file, and that there is no file when there are no
+     * bounds
+     */
+    @Test
+    public void testFindFileOutsideBounds() {
+        assertEquals(0, createBounds().findFile("/01/abc"));
+        assertEquals(-1, SitemapFileBounds.parse("").findFile("/10/abc"));
+    }
+}
@@ -0,0 +1,169 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.Naming;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests splitting generated sitemap files on the maximum number of urls and the maximum size
+ */
+public class SitemapGeneratorTest {
+
+    private static final String DEPLOYMENT = "blue";
+    private static final String SOURCE = "test";
+
+    private final Map<String, String> saved = new ConcurrentHashMap<>();
+    private SitemapGenerator generator;
+
+    @After
+    public void shutdown() {
+        if (generator != null) {
+            generator.shutdown();
+        }
+    }
+
+    /**
+     * Check that a file is finished when it reaches the maximum number of urls
+     */
+    @Test
+    public void testSplitOnUrls() throws Exception {
+        List<SitemapVariant> variants = Collections.singletonList(new SitemapVariant(null,
+                new SitemapRenderer("http://www.europeana.eu")));
+        generate(variants, 10, Long.MAX_VALUE, 25);
+
+        List<long[]> ranges = getRanges(SOURCE);
+        assertEquals(3, ranges.size());
+        assertEquals(10, countUrls(getFile(SOURCE, ranges.get(0))));
+        assertEquals(10, countUrls(getFile(SOURCE, ranges.get(1))));
+        assertEquals(5, countUrls(getFile(SOURCE, ranges.get(2))));
+        checkRanges(ranges, 25);
+    }
+
+    /**
+     * Check that a file is finished before it exceeds the maximum (UTF-8 encoded) size, also when the file continues
+     * in the next chunk of entries, and that variants with alternate urls are split independently
+     */
+    @Test
+    public void testSplitOnBytes() throws Exception {
+        List<SitemapVariant> variants = Arrays.asList(
+                new SitemapVariant(null, new SitemapRenderer("http://www.europeana.eu")),
+                new SitemapVariant("alt", new SitemapRenderer("http://www.europeana.eu",
+                        Collections.singletonMap("nl", "http://www.europeana.eu/nl"))));
+        long maxBytes = 2000;
+        generate(variants, 20, maxBytes, 100);
+
+        for (String fileSet : Arrays.asList(SOURCE, SOURCE + "-alt")) {
+            List<long[]> ranges = getRanges(fileSet);
+            assertTrue(fileSet + " has " + ranges.size() + " files", ranges.size() > 100 / 20);
+            for (long[] range : ranges) {
+                String file = getFile(fileSet, range);
+                int bytes = file.getBytes(StandardCharsets.UTF_8).length;
+                assertTrue(fileSet + " file of " + bytes + " bytes", bytes <= maxBytes);
+                assertEquals(range[1] - range[0], countUrls(file));
+            }
+            checkRanges(ranges, 100);
+        }
+        assertTrue(getRanges(SOURCE + "-alt").size() > getRanges(SOURCE).size());
+    }
+
+    /**
+     * Check that a single entry that is larger than the maximum size still gets a file of its own
+     */
+    @Test
+    public void testEntryLargerThanMaxBytes() throws Exception {
+        List<SitemapVariant> variants = Collections.singletonList(new SitemapVariant(null,
+                new SitemapRenderer("http://www.europeana.eu")));
+        generate(variants, 10, 100, 3);
+
+        List<long[]> ranges = getRanges(SOURCE);
+        assertEquals(3, ranges.size());
+        checkRanges(ranges, 3);
+    }
+
+    private void generate(List<SitemapVariant> variants, int maxUrls, long maxBytes, int nrEntries) throws Exception {
+        generator = new SitemapGenerator(1, variants, maxUrls, maxBytes, null);
+        generator.generate(Collections.singletonList(new TestSource(nrEntries)),
+                Collections.singletonMap(SOURCE, DEPLOYMENT), null, DEPLOYMENT, saved::put, new GenerationStats(false));
+    }
+
+    private List<long[]> getRanges(String fileSet) {
+        String manifest = saved.get(DEPLOYMENT + Naming.MANIFEST_SUFFIX);
+        return SitemapManifest.parse(manifest, DEPLOYMENT).getRanges(fileSet);
+    }
+
+    private String getFile(String fileSet, long[] range) {
+        return saved.get(Naming.getSitemapFileName(DEPLOYMENT, fileSet, range[0], range[1]));
+    }
+
+    /**
+     * Files should follow each other without gaps and together contain all entries
+     */
+    private static void checkRanges(List<long[]> ranges, long nrEntries) {
+        long from = 0;
+        for (long[] range : ranges) {
+            assertEquals(from, range[0]);
+            assertTrue(range[1] > range[0]);
+            from = range[1];
+        }
+        assertEquals(nrEntries, from);
+    }
+
+    private static int countUrls(String file) {
+        return file.split("<url>", -1).length - 1;
+    }
+
+    /**
+     * Source with entries that contain multi-byte characters, so the UTF-8 size differs from the number of chars
+     */
+    private static final class TestSource implements SitemapSource {
+
+        private final int nrEntries;
+
+        private TestSource(int nrEntries) {
+            this.nrEntries = nrEntries;
+        }
+
+        @Override
+        public String getName() {
+            return SOURCE;
+        }
+
+        @Override
+        public EntryCursor open(GenerationStats stats) {
+            return new EntryCursor() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < nrEntries;
+                }
+
+                @Override
+                public SitemapEntry next() {
+                    String key = String.format("/%05d/caf\u00e9-\u00e9t\u00e9", next++);
+                    return new SitemapEntry(key, getUrlPath(key), "0.5", null);
+                }
+
+                @Override
+                public void close() {
+                    // nothing to release
+                }
+            };
+        }
+
+        @Override
+        public String getUrlPath(String key) {
+            return "/portal/record" + key + ".html";
+        }
+    }
+}
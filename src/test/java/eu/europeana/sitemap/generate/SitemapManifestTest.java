@@ -0,0 +1,101 @@
+package eu.europeana.sitemap.generate;
+
+import eu.europeana.sitemap.Naming;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests writing, parsing and looking up files in a sitemap manifest
+ */
+public class SitemapManifestTest {
+
+    private static final String DEPLOYMENT = "blue";
+
+    /**
+     * Check that files written to a manifest can be found again, for the default and other file sets
+     */
+    @Test
+    public void testContains() {
+        StringBuilder text = new StringBuilder();
+        SitemapManifest.appendEntry(text, Naming.DEFAULT_FILE_SET, 0, 45000);
+        SitemapManifest.appendEntry(text, Naming.DEFAULT_FILE_SET, 45000, 90000);
+        SitemapManifest.appendEntry(text, "entity", 0, 30000);
+        SitemapManifest manifest = SitemapManifest.parse(text.toString(), DEPLOYMENT);
+
+        assertEquals(3, manifest.size());
+        assertTrue(manifest.contains(Naming.DEFAULT_FILE_SET, 0, 45000));
+        assertTrue(manifest.contains(Naming.DEFAULT_FILE_SET, 45000, 90000));
+        assertTrue(manifest.contains("entity", 0, 30000));
+
+        assertFalse(manifest.contains(Naming.DEFAULT_FILE_SET, 0, 90000));
+        assertFalse(manifest.contains(Naming.DEFAULT_FILE_SET, 90000, 135000));
+        assertFalse(manifest.contains("entity", 0, 45000));
+        assertFalse(manifest.contains("image", 0, 45000));
+    }
+
+    /**
+     * Check that file sets are stored in the manifest's deployment, unless the manifest lists another location
+     */
+    @Test
+    public void testLocation() {
+        StringBuilder text = new StringBuilder();
+        SitemapManifest.appendLocation(text, "entity", "green");
+        SitemapManifest.appendEntry(text, Naming.DEFAULT_FILE_SET, 0, 45000);
+        SitemapManifest.appendEntry(text, "entity", 0, 30000);
+        SitemapManifest manifest = SitemapManifest.parse(text.toString(), DEPLOYMENT);
+
+        assertEquals(DEPLOYMENT, manifest.getLocation(Naming.DEFAULT_FILE_SET));
+        assertEquals("green", manifest.getLocation("entity"));
+        assertNull(manifest.getLocation("image"));
+        assertEquals(Arrays.asList(Naming.DEFAULT_FILE_SET, "entity"),
+                Arrays.asList(manifest.getFileSets().toArray()));
+    }
+
+    /**
+     * Check that ranges are returned in ascending order regardless of the order in the text, also when there are more
+     * files than the initial capacity and when values use all 32 bits
+     */
+    @Test
+    public void testRanges() {
+        StringBuilder text = new StringBuilder();
+        long max = 0xFFFF_FFFFL;
+        SitemapManifest.appendEntry(text, Naming.DEFAULT_FILE_SET, max - 1000, max);
+        for (int i = 49; i >= 0; i--) {
+            SitemapManifest.appendEntry(text, Naming.DEFAULT_FILE_SET, i * 1000L, (i + 1) * 1000L);
+        }
+        SitemapManifest manifest = SitemapManifest.parse(text.toString(), DEPLOYMENT);
+
+        List<long[]> ranges = manifest.getRanges(Naming.DEFAULT_FILE_SET);
+        assertEquals(51, ranges.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i * 1000L, ranges.get(i)[0]);
+            assertEquals((i + 1) * 1000L, ranges.get(i)[1]);
+        }
+        assertEquals(max - 1000, ranges.get(50)[0]);
+        assertEquals(max, ranges.get(50)[1]);
+        assertTrue(manifest.contains(Naming.DEFAULT_FILE_SET, max - 1000, max));
+        assertTrue(manifest.getRanges("entity").isEmpty());
+    }
+
+    /**
+     * Check that empty lines are ignored and invalid values are rejected
+     */
+    @Test
+    public void testParse() {
+        assertEquals(0, SitemapManifest.parse("", DEPLOYMENT).size());
+        assertEquals(1, SitemapManifest.parse("\n0 45000\n\n", DEPLOYMENT).size());
+        try {
+            SitemapManifest.parse("0 abc\n", DEPLOYMENT);
+            throw new AssertionError("Expected NumberFormatException");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+}
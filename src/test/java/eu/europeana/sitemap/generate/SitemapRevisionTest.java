@@ -0,0 +1,49 @@
+package eu.europeana.sitemap.generate;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests creating and parsing revisions of a deployment
+ */
+public class SitemapRevisionTest {
+
+    /**
+     * Check that the next revision has a higher number and lists the changed files
+     */
+    @Test
+    public void testNext() {
+        SitemapRevision first = SitemapRevision.parse(SitemapRevision.INITIAL.next(
+                Arrays.asList("blue-sitemap-record-0-100.xml", "green-sitemap-record-hq-200-300.xml")));
+        assertEquals(1, first.getNumber());
+        assertEquals(Arrays.asList("blue-sitemap-record-0-100.xml", "green-sitemap-record-hq-200-300.xml"),
+                first.getFileNames());
+
+        SitemapRevision second = SitemapRevision.parse(first.next(Collections.singletonList("blue-sitemap-x-0-1.xml")));
+        assertEquals(2, second.getNumber());
+        assertEquals(Collections.singletonList("blue-sitemap-x-0-1.xml"), second.getFileNames());
+    }
+
+    /**
+     * Check that a revision without files can be parsed
+     */
+    @Test
+    public void testParseWithoutFiles() {
+        SitemapRevision revision = SitemapRevision.parse("7\n");
+        assertEquals(7, revision.getNumber());
+        assertTrue(revision.getFileNames().isEmpty());
+    }
+
+    /**
+     * Check that an invalid revision number is refused
+     */
+    @Test(expected = NumberFormatException.class)
+    public void testParseInvalid() {
+        SitemapRevision.parse("blue-sitemap-record-0-100.xml\n");
+    }
+}
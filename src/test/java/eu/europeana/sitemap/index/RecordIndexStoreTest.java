@@ -0,0 +1,234 @@
+package eu.europeana.sitemap.index;
+
+import eu.europeana.sitemap.delta.SnapshotReader;
+import eu.europeana.sitemap.delta.SnapshotWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests writing and reading the prefix-compressed record index, and merging changes into a new version of the index
+ */
+public class RecordIndexStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("record-index-test").toFile();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Check that keys are decoded correctly when they share a prefix with the previous key, share nothing, need more
+     * than one byte to encode their length, contain multi-byte characters, are longer than the initial key buffer, and
+     * when the key file is larger than the read buffer
+     */
+    @Test
+    public void testPrefixDecoding() throws IOException {
+        StringBuilder longSuffix = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longSuffix.append((char) ('a' + i % 26));
+        }
+        List<String> keys = new ArrayList<>(Arrays.asList(
+                "/0/item",
+                "/0/item-" + longSuffix,
+                "/0/item-" + longSuffix + "-\u00e9t\u00e9",
+                "/0/j"));
+        for (int i = 0; i < 5000; i++) {
+            keys.add(String.format("/1/dataset/record-with-a-fairly-long-identifier-%06d", i));
+        }
+        keys.add("/9/" + longSuffix + longSuffix);
+
+        File versionDir = new File(dir, "version");
+        assertTrue(versionDir.mkdir());
+        try (RecordIndexWriter writer = new RecordIndexWriter(versionDir)) {
+            for (int i = 0; i < keys.size(); i++) {
+                writer.add(keys.get(i), i % 256, i == 0 ? -1 : 17000 + i);
+            }
+        }
+        RecordIndex index = RecordIndex.create(versionDir, keys.size(), 0, 0);
+        assertTrue("key file should be smaller than the keys",
+                new File(versionDir, RecordIndex.KEYS_FILE).length() < keys.size() * 40L);
+
+        try (RecordIndex.Cursor cursor = index.open()) {
+            for (int i = 0; i < keys.size(); i++) {
+                assertTrue(cursor.next());
+                assertEquals(keys.get(i), cursor.getKey());
+                assertEquals(i % 256, cursor.getCompleteness());
+                assertEquals(i == 0 ? -1 : 17000 + i, cursor.getLastModifiedDay());
+            }
+            assertFalse(cursor.next());
+        }
+    }
+
+    /**
+     * Check that keys have to be added in ascending order
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedKeys() throws IOException {
+        try (RecordIndexWriter writer = new RecordIndexWriter(dir)) {
+            writer.add("/2/b", 0, 0);
+            writer.add("/1/a", 0, 0);
+        }
+    }
+
+    /**
+     * Check that changes (provided in any order) are merged in key order with the records of the previous version,
+     * and that changed records replace their previous version
+     */
+    @Test
+    public void testMerge() throws IOException {
+        RecordIndexStore store = createStore(2, "/2/b", "/4/d", "/6/f");
+        RecordIndex result = store.apply(Arrays.asList(
+                new RecordChange("/6/f", 9, 18000),
+                new RecordChange("/1/a", 1, 17001),
+                new RecordChange("/5/e", 5, -1),
+                new RecordChange("/3/c", 3, 17003),
+                new RecordChange("/7/g", 7, 17007)));
+
+        assertEquals(7, result.getNrRecords());
+        List<String[]> records = read(result);
+        assertEquals(Arrays.asList("/1/a", "/2/b", "/3/c", "/4/d", "/5/e", "/6/f", "/7/g"), keysOf(records));
+        assertEquals("1 17001", records.get(0)[1]);
+        assertEquals("0 17000", records.get(1)[1]);
+        assertEquals("5 -1", records.get(4)[1]);
+        assertEquals("9 18000", records.get(5)[1]);
+    }
+
+    /**
+     * Check that when a record is retrieved more than once (also in different sort chunks), the last version wins
+     */
+    @Test
+    public void testMergeDuplicates() throws IOException {
+        RecordIndexStore store = createStore(2, "/2/b");
+        RecordIndex result = store.apply(Arrays.asList(
+                new RecordChange("/2/b", 1, 17001),
+                new RecordChange("/1/a", 1, 17001),
+                new RecordChange("/3/c", 1, 17001),
+                new RecordChange("/2/b", 2, 17002),
+                new RecordChange("/4/d", 1, 17001),
+                new RecordChange("/2/b", 3, 17003)));
+
+        List<String[]> records = read(result);
+        assertEquals(Arrays.asList("/1/a", "/2/b", "/3/c", "/4/d"), keysOf(records));
+        assertEquals("3 17003", records.get(1)[1]);
+    }
+
+    /**
+     * Check that without a previous version (a rebuild) only the retrieved records end up in the index, so records
+     * that were deleted are dropped
+     */
+    @Test
+    public void testMergeWithoutPrevious() throws IOException {
+        File versionDir = new File(dir, "rebuild");
+        assertTrue(versionDir.mkdir());
+        try (SnapshotWriter changes = new SnapshotWriter(dir, 10)) {
+            changes.add("/3/c", (17003L << 8) | 3);
+            changes.add("/1/a", (17001L << 8) | 1);
+            File sorted = changes.finish();
+            try (SnapshotReader changed = new SnapshotReader(new GZIPInputStream(new FileInputStream(sorted)));
+                 RecordIndexWriter writer = new RecordIndexWriter(versionDir)) {
+                RecordIndexStore.merge(null, changed, writer);
+                assertEquals(2, writer.getNrRecords());
+            }
+        }
+        List<String[]> records = read(RecordIndex.create(versionDir, 2, 0, 0));
+        assertEquals(Arrays.asList("/1/a", "/3/c"), keysOf(records));
+        assertEquals("3 17003", records.get(1)[1]);
+    }
+
+    /**
+     * Check that a new version becomes the current one (also after a restart), and that old versions are removed
+     */
+    @Test
+    public void testSwitchTo() throws IOException {
+        RecordIndexStore store = createStore(10, "/1/a");
+        File oldVersion = store.getIndex().getDir();
+        long updatedSince = store.getIndex().getUpdatedSince();
+
+        RecordIndex result = store.apply(Arrays.asList(new RecordChange("/2/b", 2, 17002)));
+        assertEquals(result.getDir(), store.getIndex().getDir());
+        assertFalse(oldVersion.exists());
+        assertEquals(updatedSince, result.getUpdatedSince());
+        String current = new String(Files.readAllBytes(new File(dir, RecordIndexStore.CURRENT_FILE).toPath()),
+                StandardCharsets.UTF_8);
+        assertEquals(result.getDir().getName(), current);
+
+        RecordIndexStore restarted = new RecordIndexStore(true, null, dir, 10, null, 100);
+        restarted.load();
+        assertEquals(result.getDir(), restarted.getIndex().getDir());
+        assertEquals(Arrays.asList("/1/a", "/2/b"), keysOf(read(restarted.getIndex())));
+    }
+
+    /**
+     * Check that changes can't be applied when there is no index yet
+     */
+    @Test(expected = IOException.class)
+    public void testApplyWithoutIndex() throws IOException {
+        new RecordIndexStore(true, null, dir, 10, null, 100).apply(Arrays.asList(new RecordChange("/1/a", 1, 1)));
+    }
+
+    /**
+     * Create a store with an existing index containing the provided keys (completeness 0, last modified day 17000)
+     */
+    private RecordIndexStore createStore(int sortChunkSize, String... keys) throws IOException {
+        File versionDir = new File(dir, "index-1");
+        assertTrue(versionDir.mkdir());
+        try (RecordIndexWriter writer = new RecordIndexWriter(versionDir)) {
+            for (String key : keys) {
+                writer.add(key, 0, 17000);
+            }
+        }
+        RecordIndex.create(versionDir, keys.length, 1_500_000_000_000L, 0);
+        Files.write(new File(dir, RecordIndexStore.CURRENT_FILE).toPath(),
+                versionDir.getName().getBytes(StandardCharsets.UTF_8));
+        RecordIndexStore result = new RecordIndexStore(true, null, dir, sortChunkSize, null, 100);
+        result.load();
+        return result;
+    }
+
+    /**
+     * @return for each record its key and its completeness and last modified day separated by a space
+     */
+    private static List<String[]> read(RecordIndex index) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        try (RecordIndex.Cursor cursor = index.open()) {
+            while (cursor.next()) {
+                result.add(new String[]{cursor.getKey(), cursor.getCompleteness() + " " + cursor.getLastModifiedDay()});
+            }
+        }
+        return result;
+    }
+
+    private static List<String> keysOf(List<String[]> records) {
+        List<String> result = new ArrayList<>(records.size());
+        for (String[] record : records) {
+            result.add(record[0]);
+        }
+        return result;
+    }
+}
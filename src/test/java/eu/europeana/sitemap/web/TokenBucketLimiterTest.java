@@ -0,0 +1,110 @@
+package eu.europeana.sitemap.web;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the burst and refill behaviour of the rate limiter and the mapping of clients to buckets
+ */
+public class TokenBucketLimiterTest {
+
+    private static final double RATE = 10;
+    private static final int BURST = 5;
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / (long) RATE;
+
+    /**
+     * Check that a client can do a full burst at once, after which requests are refused until a token is refilled
+     */
+    @Test
+    public void testBurst() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter("test", RATE, BURST, 16);
+        for (int i = 0; i < BURST; i++) {
+            assertEquals("request " + i, 0, limiter.tryAcquire("client"));
+        }
+        long retryAfter = limiter.tryAcquire("client");
+        assertTrue("retry after " + retryAfter, retryAfter > 0 && retryAfter <= INTERVAL_NANOS);
+        assertEquals(BURST, limiter.getNrAllowed());
+        assertEquals(1, limiter.getNrLimited());
+    }
+
+    /**
+     * Check that tokens are refilled at the configured rate, and only one request is allowed per refilled token
+     */
+    @Test
+    public void testRefill() throws InterruptedException {
+        TokenBucketLimiter limiter = new TokenBucketLimiter("test", RATE, BURST, 16);
+        for (int i = 0; i < BURST; i++) {
+            limiter.tryAcquire("client");
+        }
+        long retryAfter = limiter.tryAcquire("client");
+        assertTrue(retryAfter > 0);
+
+        TimeUnit.NANOSECONDS.sleep(retryAfter + TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(0, limiter.tryAcquire("client"));
+        assertTrue(limiter.tryAcquire("client") > 0);
+    }
+
+    /**
+     * Check that a burst of 1 allows only one request per interval
+     */
+    @Test
+    public void testNoBurst() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter("test", RATE, 1, 16);
+        assertEquals(0, limiter.tryAcquire("client"));
+        assertTrue(limiter.tryAcquire("client") > 0);
+    }
+
+    /**
+     * Check that clients in different buckets are limited independently, while clients in the same bucket share it
+     */
+    @Test
+    public void testStripes() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter("test", RATE, 1, 16);
+        String client = "client";
+        String otherStripe = null;
+        String sameStripe = null;
+        for (int i = 0; otherStripe == null || sameStripe == null; i++) {
+            String key = "client" + i;
+            if (limiter.getStripe(key) == limiter.getStripe(client)) {
+                sameStripe = key;
+            } else {
+                otherStripe = key;
+            }
+        }
+        assertEquals(0, limiter.tryAcquire(client));
+        assertEquals(0, limiter.tryAcquire(otherStripe));
+        assertTrue(limiter.tryAcquire(sameStripe) > 0);
+    }
+
+    /**
+     * Check that the number of buckets is rounded up to a power of 2
+     */
+    @Test
+    public void testStripeCount() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter("test", RATE, 1, 5);
+        boolean[] used = new boolean[8];
+        for (int i = 0; i < 1000; i++) {
+            int stripe = limiter.getStripe("client" + i);
+            assertTrue("stripe " + stripe, stripe >= 0 && stripe < used.length);
+            used[stripe] = true;
+        }
+        for (boolean stripeUsed : used) {
+            assertTrue(stripeUsed);
+        }
+    }
+
+    /**
+     * Check that a rate of 0 means unlimited
+     */
+    @Test
+    public void testDisabled() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter("test", 0, 1, 16);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.tryAcquire("client"));
+        }
+    }
+}